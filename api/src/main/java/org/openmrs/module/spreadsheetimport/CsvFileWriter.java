@@ -0,0 +1,134 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.openmrs.module.spreadsheetimport.reader.CellValues;
+
+/**
+ * Writes a CSV file in UTF-8 one record at a time, quoting fields as in RFC 4180, for the files an
+ * import writes as it goes. Nothing but the current buffer is held in memory.
+ */
+public class CsvFileWriter {
+
+	File file;
+
+	Writer writer;
+
+	boolean append;
+
+	boolean header;
+
+	boolean firstField = true;
+
+	int count = 0;
+
+	/**
+	 * @param append whether to add to an existing file, e.g. when a job is resumed
+	 */
+	public CsvFileWriter(File file, boolean append) throws IOException {
+		this.file = file;
+		this.append = append;
+		header = !append || file.length() == 0;
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), "UTF-8"));
+	}
+
+	/**
+	 * @return whether the file is new or was empty, so the subclass writes the header record
+	 */
+	protected boolean needsHeader() {
+		return header;
+	}
+
+	/**
+	 * Write the next field of the current record
+	 */
+	protected void writeField(String s) throws IOException {
+		if (!firstField)
+			writer.write(',');
+		firstField = false;
+		boolean quote = false;
+		for (int i = 0; i < s.length() && !quote; i++) {
+			char c = s.charAt(i);
+			quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+		}
+		if (!quote) {
+			writer.write(s);
+			return;
+		}
+		writer.write('"');
+		writer.write(s.replace("\"", "\"\""));
+		writer.write('"');
+	}
+
+	/**
+	 * End the current record
+	 *
+	 * @param data whether it is a data record, counted by {@link #getCount()}, or the header
+	 */
+	protected void endRecord(boolean data) throws IOException {
+		writer.write("\r\n");
+		firstField = true;
+		if (data)
+			count++;
+	}
+
+	/**
+	 * @return the text of a decoded cell, as typed in the sheet
+	 */
+	static String toText(Object value) {
+		if (value == null)
+			return "";
+		if (value instanceof Double) {
+			double d = ((Double) value).doubleValue();
+			// whole numbers without ".0", so identifiers come back as they were
+			if (d == Math.rint(d) && Math.abs(d) < 1e15)
+				return String.valueOf((long) d);
+			return value.toString();
+		}
+		return CellValues.unquote(value);
+	}
+
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return whether records written before are kept in the file
+	 */
+	public boolean isAppend() {
+		return append;
+	}
+
+	/**
+	 * @return the data records written by this writer
+	 */
+	public int getCount() {
+		return count;
+	}
+}
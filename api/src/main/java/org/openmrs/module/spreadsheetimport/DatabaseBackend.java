@@ -24,8 +24,10 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -334,26 +336,91 @@ public class DatabaseBackend {
 		}
 	}
 	
+	/**
+	 * Open a connection to the OpenMRS database; the caller closes it
+	 */
+	public static Connection openConnection() throws Exception {
+		Class.forName("com.mysql.jdbc.Driver").newInstance();
+		
+		Properties p = Context.getRuntimeProperties();
+		String url = p.getProperty("connection.url");
+		
+		return DriverManager.getConnection(url, p.getProperty("connection.username"),
+		    p.getProperty("connection.password"));
+	}
+	
 	public static String importData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
 	                              boolean rollbackTransaction) throws Exception {
-		Connection conn = null;
+		Connection conn = openConnection();
+		try {
+			return importData(conn, Context.getAuthenticatedUser().getId(), rowData,
+			    Collections.<UniqueImport> emptySet(), rollbackTransaction);
+		}
+		finally {
+			try {
+				conn.close();
+			}
+			catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Import one row on a connection owned by the caller, so that import workers can keep their
+	 * connection open across rows. Every row is still committed (or rolled back) on its own.
+	 * 
+	 * @param creatorId user recorded as creator; passed in because import workers do not run with
+	 *            the user context of the request
+	 * @param batchedImports unique imports nothing else in the row depends on (see
+	 *            {@link ImportPlan#getBatchedImports()}); they are inserted at the end of the row,
+	 *            one multi-row insert per table and column list
+	 */
+	public static String importData(Connection conn, Integer creatorId,
+	                              Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
+	                              Set<UniqueImport> batchedImports, boolean rollbackTransaction) throws Exception {
+		return importData(conn, creatorId, rowData, batchedImports, rollbackTransaction, null);
+	}
+	
+	/**
+	 * Writes to the transaction of a row after all its inserts succeeded, right before the commit
+	 */
+	public interface RowTransactionHook {
+		
+		public void beforeCommit(Connection conn, String encounterId) throws SQLException;
+	}
+	
+	/**
+	 * @param hook called before the row is committed, may be null
+	 */
+	public static String importData(Connection conn, Integer creatorId,
+	                              Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
+	                              Set<UniqueImport> batchedImports, boolean rollbackTransaction,
+	                              RowTransactionHook hook) throws Exception {
+		return importData(conn, creatorId, rowData, batchedImports, rollbackTransaction, hook, null);
+	}
+	
+	/**
+	 * @param statistics where the time spent matching, inserting and committing and the rows
+	 *            inserted per table are added, may be null
+	 */
+	public static String importData(Connection conn, Integer creatorId,
+	                              Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
+	                              Set<UniqueImport> batchedImports, boolean rollbackTransaction,
+	                              RowTransactionHook hook, ImportStatistics statistics) throws Exception {
 		Statement s = null;
 		Exception exception = null;
+		boolean succeeded = false;
 		String sql = null;
 		
 		String encounterId = null;
 		
+		Map<String, InsertBatch> batches = new LinkedHashMap<String, InsertBatch>();
+		
+		long start = System.nanoTime();
+		long matchNanos = 0;
+		Map<String, Integer> insertedRows = new HashMap<String, Integer>();
+		
 		try {
 			
-			// Connect to db
-			Class.forName("com.mysql.jdbc.Driver").newInstance();
-			
-			Properties p = Context.getRuntimeProperties();
-			String url = p.getProperty("connection.url");
-			
-			conn = DriverManager.getConnection(url, p.getProperty("connection.username"),
-			    p.getProperty("connection.password"));
-			
 			conn.setAutoCommit(false);
 			
 			s = conn.createStatement();
@@ -380,6 +447,7 @@ public class DatabaseBackend {
 						Object columnValue = column.getValue();
 						if (!columnValue.equals("")) {
 							column.setGeneratedKey(columnValue.toString());
+							encounterId = columnValue.toString();
 							skip = true;
 							importedTables.add("encounter"); // fake as just imported encounter
 							break;
@@ -407,6 +475,7 @@ public class DatabaseBackend {
 				
 				 
 				if (isPerson) {
+					long matchStart = System.nanoTime();
 					boolean isIdentifierExist = false;
 					
 					// SPECIAL TREATMENT 1
@@ -449,8 +518,10 @@ public class DatabaseBackend {
 							}
 						}
 					}
-					if (skip)
+					if (skip) {
+						matchNanos += System.nanoTime() - matchStart;
 						continue;
+					}
 					
 					// now, if we proceed to this point, it means patient identifier, if exists, does not match, and in that case, no point to match with person name
 					
@@ -506,6 +577,7 @@ public class DatabaseBackend {
 
 						}
 					}					
+					matchNanos += System.nanoTime() - matchStart;
 					if (skip)
 						continue;
 				}				
@@ -619,11 +691,12 @@ public class DatabaseBackend {
 							importedTables.contains("person") &&
 							!importedTables.contains("patient")) {
 
-							sql = "insert into patient (patient_id, creator) values (" + columnGeneratedKey + ", " + Context.getAuthenticatedUser().getId() + ")";
+							sql = "insert into patient (patient_id, creator) values (" + columnGeneratedKey + ", " + creatorId + ")";
 							if (log.isDebugEnabled()) {
 								log.debug(sql);
 							}	
 							s.executeUpdate(sql, Statement.RETURN_GENERATED_KEYS);
+							countInserted(insertedRows, "patient", 1);
 //							ResultSet rs = s.getGeneratedKeys();
 //							rs.next();
 //							if (!columnGeneratedKey.equals(rs.getString(1))) {
@@ -672,7 +745,7 @@ public class DatabaseBackend {
 							
 				// creator
 				columnNames += ",creator";
-				columnValues += "," + Context.getAuthenticatedUser().getId();
+				columnValues += "," + creatorId;
 				
 				// uuid
 				DatabaseMetaData dmd = conn.getMetaData();
@@ -683,6 +756,20 @@ public class DatabaseBackend {
 				}
 				rsColumns.close();
 				
+				// Independent imports, e.g. the observations of an encounter, are inserted together
+				if (batchedImports.contains(uniqueImport)) {
+					String insertInto = "insert into " + uniqueImport.getTableName() + " (" + columnNames + ")";
+					InsertBatch batch = batches.get(insertInto);
+					if (batch == null) {
+						batch = new InsertBatch(insertInto);
+						batches.put(insertInto, batch);
+					}
+					batch.add(columnValues, columnSet);
+					countInserted(insertedRows, uniqueImport.getTableName(), 1);
+					importedTables.add(uniqueImport.getTableName());
+					continue;
+				}
+				
 				// Insert tableName
 				sql = "insert into " + uniqueImport.getTableName() + " (" + columnNames + ")" + " values ("
 				        + columnValues + ")";
@@ -692,6 +779,7 @@ public class DatabaseBackend {
 				}
 			
 				s.executeUpdate(sql, Statement.RETURN_GENERATED_KEYS);
+				countInserted(insertedRows, uniqueImport.getTableName(), 1);
 				ResultSet rs = s.getGeneratedKeys();
 				rs.next();
 				for (SpreadsheetImportTemplateColumn column : columnSet) {
@@ -704,6 +792,29 @@ public class DatabaseBackend {
 				
 				importedTables.add(uniqueImport.getTableName());
 			}
+			
+			for (InsertBatch batch : batches.values()) {
+				sql = batch.getSql();
+				if (log.isDebugEnabled()) {
+					log.debug(sql);
+				}
+				
+				s.executeUpdate(sql, Statement.RETURN_GENERATED_KEYS);
+				// keys come back in the order of the value lists
+				ResultSet rs = s.getGeneratedKeys();
+				for (Set<SpreadsheetImportTemplateColumn> columnSet : batch.getColumnSets()) {
+					if (!rs.next())
+						break;
+					for (SpreadsheetImportTemplateColumn column : columnSet) {
+						column.setGeneratedKey(rs.getString(1));
+					}
+				}
+				rs.close();
+			}
+			
+			if (hook != null)
+				hook.beforeCommit(conn, encounterId);
+			succeeded = true;
 		} catch (SQLSyntaxErrorException e) {
 			throw new SpreadsheetImportSQLSyntaxException(sql, e.getMessage());
 		} catch (Exception e) {
@@ -718,16 +829,19 @@ public class DatabaseBackend {
 				}
 				catch (Exception e) {}
 			}
-			if (conn != null) {
-				if (rollbackTransaction) {
-					conn.rollback();
-				} else {
-					conn.commit();
-				}
-				try {
-					conn.close();
-				}
-				catch (Exception e) {}
+			long commitStart = System.nanoTime();
+			// a row which failed leaves nothing behind, so the import can go on without it
+			if (rollbackTransaction || !succeeded) {
+				conn.rollback();
+			} else {
+				conn.commit();
+			}
+			if (statistics != null) {
+				statistics.addMatch(matchNanos);
+				statistics.addInsert(commitStart - start - matchNanos);
+				statistics.addCommit(System.nanoTime() - commitStart);
+				if (succeeded && !rollbackTransaction)
+					statistics.addInserted(insertedRows);
 			}
 		}
 		
@@ -738,150 +852,169 @@ public class DatabaseBackend {
 		return encounterId;
 	}
 	
+	/**
+	 * Void the observations of an encounter, before a changed row adds its observations again. Runs
+	 * in the transaction of the row, which is started here if needed.
+	 */
+	public static void voidObservations(Connection conn, String encounterId, Integer creatorId) throws SQLException {
+		conn.setAutoCommit(false);
+		String sql = "update obs set voided = 1, voided_by = " + creatorId
+		        + ", date_voided = now(), void_reason = 'Changed in spreadsheet import' where encounter_id = "
+		        + encounterId + " and voided = 0";
+		if (log.isDebugEnabled()) {
+			log.debug(sql);
+		}
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate(sql);
+		}
+		finally {
+			s.close();
+		}
+	}
+	
 	public static void validateData(Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData) throws SQLException, SpreadsheetImportTemplateValidationException {
 		Connection conn = null;
-		Statement s = null;
-		String sql = null;
-		SQLException exception = null;
-		ResultSet rs = null;
 		
 		try {
-			
-			// Connect to db
-			Class.forName("com.mysql.jdbc.Driver").newInstance();
-			
-			Properties p = Context.getRuntimeProperties();
-			String url = p.getProperty("connection.url");
-			
-			conn = DriverManager.getConnection(url, p.getProperty("connection.username"),
-			    p.getProperty("connection.password"));
-						
-			s = conn.createStatement();
-			
-			for (UniqueImport uniqueImport : rowData.keySet()) {
-				if ("obs".equals(uniqueImport.getTableName())) {
-					Set<SpreadsheetImportTemplateColumn> obsColumns = rowData.get(uniqueImport);
-					for (SpreadsheetImportTemplateColumn obsColumn : obsColumns) {
-						String columnName = obsColumn.getColumnName();
-						String conceptId = getPrespecifiedConceptIdFromObsColumn(obsColumn);
-						if (conceptId == null)
-							 throw new SpreadsheetImportTemplateValidationException("no prespecified concept ID");
+			conn = openConnection();
+		} catch (SQLException e) {
+			log.debug(e.toString());
+			throw e;
+		} catch (Exception e) {
+			log.debug(e.toString());
+			return;
+		}
+		
+		try {
+			validateData(conn, rowData, new ValidationCache());
+		} catch (SQLException e) {
+			log.debug(e.toString());
+			throw e;
+		} finally {
+			try {
+				conn.close();
+			}
+			catch (SQLException e) {}
+		}
+	}
+	
+	/**
+	 * Validate one row on a connection owned by the caller. Concept and identifier type definitions
+	 * are taken from the cache, which is shared by all rows of an import.
+	 */
+	public static void validateData(Connection conn, Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
+	                                ValidationCache cache) throws SQLException, SpreadsheetImportTemplateValidationException {
+		for (UniqueImport uniqueImport : rowData.keySet()) {
+			if ("obs".equals(uniqueImport.getTableName())) {
+				Set<SpreadsheetImportTemplateColumn> obsColumns = rowData.get(uniqueImport);
+				for (SpreadsheetImportTemplateColumn obsColumn : obsColumns) {
+					String columnName = obsColumn.getColumnName();
+					String conceptId = getPrespecifiedConceptIdFromObsColumn(obsColumn);
+					if (conceptId == null)
+						 throw new SpreadsheetImportTemplateValidationException("no prespecified concept ID", obsColumn);
 
-						if ("value_coded".equals(columnName)) {
-							// skip if empty
-							if (obsColumn.getValue().equals(""))
-								continue;
-							
-							// verify the answers are the concepts which are possible answers							
-							//sql = "select answer_concept from concept_answer join concept_name on concept_answer.answer_concept = concept_name.concept_id where concept_name.name = '" + obsColumn.getValue() + "' and concept_answer.concept_id = '" + conceptId + "'";
-							sql = "select answer_concept from concept_answer where answer_concept = '" + obsColumn.getValue() + "' and concept_id = '" + conceptId + "'";
-							rs = s.executeQuery(sql);
-							if (!rs.next()) {
-								sql = "select name from concept_name where concept_id = " + conceptId;
-								rs = s.executeQuery(sql);
-								rs.next();
-								String conceptName = rs.getString(1);
-								throw new SpreadsheetImportTemplateValidationException("invalid concept answer for the prespecified concept ID " + conceptName);
-							}
-						} else if ("value_text".equals(columnName)) {
-							// skip if empty
-							if (obsColumn.getValue().equals(""))
-								continue;
-							
-							// verify the number of characters is less than the allowed length							
-						} else if ("value_numeric".equals(columnName)) {
-							// skip if empty
-							if (obsColumn.getValue().equals(""))
-								continue;
-							
-							// verify it's within the range specified in the concept definition
-							sql = "select hi_absolute, low_absolute from concept_numeric where concept_id = '" + conceptId + "'";
-							rs = s.executeQuery(sql);
-							if (!rs.next())
-								throw new SpreadsheetImportTemplateValidationException("prespecified concept ID " + conceptId + " is not a numeric concept");
-							double hiAbsolute = rs.getDouble(1);
-							double lowAbsolute = rs.getDouble(2);
-							double value = 0.0;
-							try {
-								value = Double.parseDouble(obsColumn.getValue().toString());
-							} catch (NumberFormatException nfe) {
-								throw new SpreadsheetImportTemplateValidationException("concept value is not a number");
-							}
-							if (hiAbsolute < value || lowAbsolute > value)
-								throw new SpreadsheetImportTemplateValidationException("concept value " + value + " of column " + columnName + " is out of range " + lowAbsolute + " - " + hiAbsolute);
-						} else if ("value_datetime".equals(columnName) || "obs_datetime".equals(columnName)) {
-							// skip if empty
-							if (obsColumn.getValue().equals(""))
-								continue;
-							
-							// verify datetime is defined and it can not be in the future
-							String value = obsColumn.getValue().toString();
-							String date = value.substring(1, value.length()-1);
-							if (Timestamp.valueOf(date).after(new Timestamp(System.currentTimeMillis())))
-								throw new SpreadsheetImportTemplateValidationException("date is in the future");
-						}
-					}
-				} else if ("patient_identifier".equals(uniqueImport.getTableName())) {
-					Set<SpreadsheetImportTemplateColumn> piColumns = rowData.get(uniqueImport);
-					for (SpreadsheetImportTemplateColumn piColumn : piColumns) {
-						String columnName = piColumn.getColumnName();
-						if (!"identifier".equals(columnName))
+					if ("value_coded".equals(columnName)) {
+						// skip if empty
+						if (obsColumn.getValue().equals(""))
 							continue;
 						
-						String pitId = getPrespecifiedPatientIdentifierTypeIdFromPatientIdentifierColumn(piColumn);
-						if (pitId == null)
-							 throw new SpreadsheetImportTemplateValidationException("no prespecified patient identifier type ID");
+						// verify the answers are the concepts which are possible answers
+						if (!cache.isConceptAnswer(conn, conceptId, obsColumn.getValue())) {
+							String conceptName = cache.getConceptName(conn, conceptId);
+							throw new SpreadsheetImportTemplateValidationException("invalid concept answer for the prespecified concept ID " + conceptName, obsColumn);
+						}
+					} else if ("value_text".equals(columnName)) {
+						// skip if empty
+						if (obsColumn.getValue().equals(""))
+							continue;
 						
-						sql = "select format from patient_identifier_type where patient_identifier_type_id = " + pitId;
-						rs = s.executeQuery(sql);
-						if (!rs.next())
-							throw new SpreadsheetImportTemplateValidationException("invalid prespcified patient identifier type ID");
+						// verify the number of characters is less than the allowed length							
+					} else if ("value_numeric".equals(columnName)) {
+						// skip if empty
+						if (obsColumn.getValue().equals(""))
+							continue;
 						
-						String format = rs.getString(1);
-						if (format != null && format.trim().length() != 0) {
-							String value = piColumn.getValue().toString();
-							value = value.substring(1, value.length()-1);
-							Pattern pattern = Pattern.compile(format);
-							Matcher matcher = pattern.matcher(value);
-							if (!matcher.matches())
-								throw new SpreadsheetImportTemplateValidationException("Patient ID is not conforming to patient identifier type");						
+						// verify it's within the range specified in the concept definition
+						double[] range = cache.getNumericRange(conn, conceptId);
+						if (range == null)
+							throw new SpreadsheetImportTemplateValidationException("prespecified concept ID " + conceptId + " is not a numeric concept", obsColumn);
+						double lowAbsolute = range[0];
+						double hiAbsolute = range[1];
+						double value = 0.0;
+						try {
+							value = Double.parseDouble(obsColumn.getValue().toString());
+						} catch (NumberFormatException nfe) {
+							throw new SpreadsheetImportTemplateValidationException("concept value is not a number", obsColumn);
 						}
+						if (hiAbsolute < value || lowAbsolute > value)
+							throw new SpreadsheetImportTemplateValidationException("concept value " + value + " of column " + columnName + " is out of range " + lowAbsolute + " - " + hiAbsolute, obsColumn);
+					} else if ("value_datetime".equals(columnName) || "obs_datetime".equals(columnName)) {
+						// skip if empty
+						if (obsColumn.getValue().equals(""))
+							continue;
+						
+						// verify datetime is defined and it can not be in the future
+						String value = obsColumn.getValue().toString();
+						String date = value.substring(1, value.length()-1);
+						if (Timestamp.valueOf(date).after(new Timestamp(System.currentTimeMillis())))
+							throw new SpreadsheetImportTemplateValidationException("date is in the future", obsColumn);
+					}
+				}
+			} else if ("patient_identifier".equals(uniqueImport.getTableName())) {
+				Set<SpreadsheetImportTemplateColumn> piColumns = rowData.get(uniqueImport);
+				for (SpreadsheetImportTemplateColumn piColumn : piColumns) {
+					String columnName = piColumn.getColumnName();
+					if (!"identifier".equals(columnName))
+						continue;
+					
+					String pitId = getPrespecifiedPatientIdentifierTypeIdFromPatientIdentifierColumn(piColumn);
+					if (pitId == null)
+						 throw new SpreadsheetImportTemplateValidationException("no prespecified patient identifier type ID", piColumn);
+					
+					Pattern pattern = cache.getIdentifierFormat(conn, pitId);
+					if (pattern != null) {
+						String value = piColumn.getValue().toString();
+						value = value.substring(1, value.length()-1);
+						Matcher matcher = pattern.matcher(value);
+						if (!matcher.matches())
+							throw new SpreadsheetImportTemplateValidationException("Patient ID is not conforming to patient identifier type", piColumn);						
 					}
 				}
 			}
-		} catch (SQLException e) {
-			log.debug(e.toString());
-			exception = e;
-		} catch (IllegalAccessException e) {
-			log.debug(e.toString());
-		} catch (InstantiationException e) {
-			log.debug(e.toString());
-		} catch (ClassNotFoundException e) {
-			log.debug(e.toString());
-		} finally {
-			if (rs != null)
+		}
+	}
+	
+	/**
+	 * Check the columns which disallow duplicate values against the database, as importData does
+	 * just before each insert, and against the other rows of the sheet seen so far.
+	 * 
+	 * @throws SpreadsheetImportDuplicateValueException if a value is already present
+	 */
+	public static void checkDuplicateValues(Connection conn, Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
+	                                           ValidationCache cache, int rowNum) throws SQLException, SpreadsheetImportDuplicateValueException {
+		for (Set<SpreadsheetImportTemplateColumn> columnSet : rowData.values()) {
+			for (SpreadsheetImportTemplateColumn column : columnSet) {
+				if (!Boolean.TRUE.equals(column.getDisallowDuplicateValue()) || "".equals(column.getValue()))
+					continue;
+				
+				if (cache.putUniqueValue(column, column.getValue(), rowNum) != null)
+					throw new SpreadsheetImportDuplicateValueException(column);
+				
+				String sql = "select " + column.getColumnName() + " from " + column.getTableName() + " where " + column.getColumnName() + " = " + column.getValue();
+				Statement s = conn.createStatement();
 				try {
+					ResultSet rs = s.executeQuery(sql);
+					boolean foundDuplicate = rs.next();
 					rs.close();
+					if (foundDuplicate)
+						throw new SpreadsheetImportDuplicateValueException(column);
 				}
-				catch (SQLException e) {}
-			if (s != null) {
-				try {
+				finally {
 					s.close();
 				}
-				catch (SQLException e) {}
-			}
-			if (conn != null) {
-				try {
-					conn.close();
-				}
-				catch (SQLException e) {}
 			}
 		}
-		
-		if (exception != null) {
-			throw exception;
-		}
-		
 	}
 	
 	public static Locale getCurrentUserLocale() {				
@@ -913,6 +1046,45 @@ public class DatabaseBackend {
 		return locale;
 	}
 	
+	/**
+	 * Add rows inserted into a table to the counts of a row
+	 */
+	private static void countInserted(Map<String, Integer> insertedRows, String tableName, int rows) {
+		Integer count = insertedRows.get(tableName);
+		insertedRows.put(tableName, count == null ? rows : count + rows);
+	}
+	
+	/**
+	 * Value lists of one row sharing the same insert statement
+	 */
+	private static class InsertBatch {
+		
+		String insertInto;
+		
+		StringBuilder values = new StringBuilder();
+		
+		List<Set<SpreadsheetImportTemplateColumn>> columnSets = new ArrayList<Set<SpreadsheetImportTemplateColumn>>();
+		
+		InsertBatch(String insertInto) {
+			this.insertInto = insertInto;
+		}
+		
+		void add(String columnValues, Set<SpreadsheetImportTemplateColumn> columnSet) {
+			if (values.length() > 0)
+				values.append(", ");
+			values.append("(").append(columnValues).append(")");
+			columnSets.add(columnSet);
+		}
+		
+		String getSql() {
+			return insertInto + " values " + values;
+		}
+		
+		List<Set<SpreadsheetImportTemplateColumn>> getColumnSets() {
+			return columnSets;
+		}
+	}
+	
 	private static String getPrespecifiedConceptIdFromObsColumn(SpreadsheetImportTemplateColumn obsColumn) {
 		Set<SpreadsheetImportTemplateColumnPrespecifiedValue> prespecifiedColumns = obsColumn.getColumnPrespecifiedValues();
 		for (SpreadsheetImportTemplateColumnPrespecifiedValue prespecifiedColumn : prespecifiedColumns) {
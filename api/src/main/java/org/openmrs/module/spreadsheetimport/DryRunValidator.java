@@ -0,0 +1,371 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader;
+
+/**
+ * Checks a sheet without writing to the database, and works out what importing it would create
+ * and what it would reuse. Rows are validated as by {@link SheetValidator}; patient identifiers,
+ * encounter ids and the values of no-duplicate columns are looked up a chunk of rows at a time,
+ * so the validators themselves only query concept and identifier type definitions, once per
+ * import. A row is counted the way {@link DatabaseBackend#importData} would import it: a person
+ * whose identifier exists, or is created by an earlier row of the sheet, is reused along with its
+ * names and addresses; an encounter id in the sheet reuses the encounter, which must exist; and
+ * empty observations are left out. Matching people by name is not done.
+ */
+public class DryRunValidator extends SheetValidator {
+
+	/** Tables {@link DatabaseBackend#importData} leaves alone for a row whose patient exists */
+	private static final Set<String> PATIENT_TABLES = new HashSet<String>(Arrays.asList("person", "patient",
+	    "patient_identifier", "person_name", "person_address"));
+
+	/** Marks an identifier claimed by a row of the sheet rather than found in the database */
+	private static final String IN_SHEET = "";
+
+	/** Patient id by identifier */
+	ConcurrentMap<String, String> patients = new ConcurrentHashMap<String, String>();
+
+	ConcurrentMap<String, String> encounters = new ConcurrentHashMap<String, String>();
+
+	/** Values found in the database by no-duplicate column */
+	ConcurrentMap<String, ConcurrentMap<String, String>> existingValues = new ConcurrentHashMap<String, ConcurrentMap<String, String>>();
+
+	ConcurrentMap<String, AtomicInteger> created = new ConcurrentHashMap<String, AtomicInteger>();
+
+	ConcurrentMap<String, AtomicInteger> reused = new ConcurrentHashMap<String, AtomicInteger>();
+
+	AtomicInteger rowsValid = new AtomicInteger();
+
+	AtomicInteger rowsSkipped = new AtomicInteger();
+
+	public DryRunValidator(ImportPlan plan, SpreadsheetRowReader reader, ImportOptions options) {
+		super(plan, reader, options);
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.SheetValidator#isChunked()
+	 */
+	@Override
+	protected boolean isChunked() {
+		return true;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.SheetValidator#prefetch(java.sql.Connection,
+	 *      java.util.List)
+	 */
+	@Override
+	protected void prefetch(Connection conn, List<RowBuffer> chunk) throws SQLException {
+		StringBuilder identifiers = new StringBuilder();
+		StringBuilder encounterIds = new StringBuilder();
+		Map<SpreadsheetImportTemplateColumn, StringBuilder> uniqueValues = new LinkedHashMap<SpreadsheetImportTemplateColumn, StringBuilder>();
+		for (RowBuffer row : chunk) {
+			if (row.isSkipped()) {
+				rowsSkipped.incrementAndGet();
+				continue;
+			}
+			for (SpreadsheetImportTemplateColumn column : row.getColumns()) {
+				Object value = column.getValue();
+				if ("".equals(value))
+					continue;
+				if ("patient_identifier.identifier".equals(column.getTableDotColumn())) {
+					if (!patients.containsKey(toKey(value)))
+						append(identifiers, value);
+				} else if ("encounter".equals(column.getTableName())) {
+					if (!encounters.containsKey(toKey(value)))
+						append(encounterIds, value);
+				}
+				if (Boolean.TRUE.equals(column.getDisallowDuplicateValue())) {
+					SpreadsheetImportTemplateColumn first = findColumn(uniqueValues, column);
+					StringBuilder in = uniqueValues.get(first);
+					if (in == null) {
+						in = new StringBuilder();
+						uniqueValues.put(first, in);
+					}
+					append(in, value);
+				}
+			}
+		}
+
+		if (identifiers.length() != 0)
+			select(conn, "select identifier, patient_id from patient_identifier where identifier in (" + identifiers + ")",
+			    patients);
+		if (encounterIds.length() != 0)
+			select(conn, "select encounter_id, encounter_id from encounter where encounter_id in (" + encounterIds + ")",
+			    encounters);
+		for (Map.Entry<SpreadsheetImportTemplateColumn, StringBuilder> entry : uniqueValues.entrySet()) {
+			SpreadsheetImportTemplateColumn column = entry.getKey();
+			select(conn, "select " + column.getColumnName() + ", " + column.getColumnName() + " from "
+			        + column.getTableName() + " where " + column.getColumnName() + " in (" + entry.getValue() + ")",
+			    getExistingValues(column));
+		}
+	}
+
+	/**
+	 * The columns of every buffer are copies, so the no-duplicate columns of a chunk are told
+	 * apart by table and column
+	 */
+	private static SpreadsheetImportTemplateColumn findColumn(Map<SpreadsheetImportTemplateColumn, StringBuilder> columns,
+	                                                          SpreadsheetImportTemplateColumn column) {
+		for (SpreadsheetImportTemplateColumn c : columns.keySet()) {
+			if (c.getTableDotColumn().equals(column.getTableDotColumn()))
+				return c;
+		}
+		return column;
+	}
+
+	private static void append(StringBuilder in, Object value) {
+		if (in.length() != 0)
+			in.append(", ");
+		in.append(value);
+	}
+
+	/**
+	 * Put the rows of a query selecting a key and a value into the map, keeping what it holds
+	 */
+	private static void select(Connection conn, String sql, ConcurrentMap<String, String> into) throws SQLException {
+		Statement s = conn.createStatement();
+		try {
+			ResultSet rs = s.executeQuery(sql);
+			while (rs.next()) {
+				into.putIfAbsent(rs.getString(1), rs.getString(2));
+			}
+			rs.close();
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	private ConcurrentMap<String, String> getExistingValues(SpreadsheetImportTemplateColumn column) {
+		ConcurrentMap<String, String> values = existingValues.get(column.getTableDotColumn());
+		if (values == null) {
+			existingValues.putIfAbsent(column.getTableDotColumn(), new ConcurrentHashMap<String, String>());
+			values = existingValues.get(column.getTableDotColumn());
+		}
+		return values;
+	}
+
+	/**
+	 * @return the text the database compares a cell value by
+	 */
+	private static String toKey(Object value) {
+		return CsvFileWriter.toText(value).trim();
+	}
+
+	/**
+	 * Validate a row from the prefetched lookups, and count what it would create and reuse if it
+	 * is valid
+	 *
+	 * @see org.openmrs.module.spreadsheetimport.SheetValidator#validateRow(java.sql.Connection,
+	 *      org.openmrs.module.spreadsheetimport.RowBuffer)
+	 */
+	@Override
+	protected boolean validateRow(Connection conn, RowBuffer row) throws Exception {
+		try {
+			DatabaseBackend.validateData(conn, row.getRowData(), cache);
+		}
+		catch (SpreadsheetImportTemplateValidationException e) {
+			violations.add(new RowViolation(row.getRowNum(), SpreadsheetImportUtil.describeError(e)));
+			return false;
+		}
+		String identifier = null;
+		for (SpreadsheetImportTemplateColumn column : row.getColumns()) {
+			Object value = column.getValue();
+			if ("".equals(value))
+				continue;
+			if (Boolean.TRUE.equals(column.getDisallowDuplicateValue())
+			        && (cache.putUniqueValue(column, value, row.getRowNum()) != null || getExistingValues(column)
+			                .containsKey(toKey(value)))) {
+				violations.add(new RowViolation(row.getRowNum(), SpreadsheetImportUtil
+				        .describeError(new SpreadsheetImportDuplicateValueException(column))));
+				return false;
+			}
+			if ("encounter".equals(column.getTableName()) && !encounters.containsKey(toKey(value))) {
+				violations.add(new RowViolation(row.getRowNum(), "encounter " + toKey(value) + " of column "
+				        + column.getName() + " does not exist"));
+				return false;
+			}
+			if ("patient_identifier.identifier".equals(column.getTableDotColumn()))
+				identifier = toKey(value);
+		}
+
+		// the first row with a new identifier creates the patient, later rows reuse it
+		Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = row.getRowData();
+		boolean patientExists = identifier != null && rowData.containsKey(new UniqueImport("person", null))
+		        && patients.putIfAbsent(identifier, IN_SHEET) != null;
+		boolean patientCreated = patientExists;
+		for (Map.Entry<UniqueImport, Set<SpreadsheetImportTemplateColumn>> entry : rowData.entrySet()) {
+			String tableName = entry.getKey().getTableName();
+			if ("encounter".equals(tableName)) {
+				count(isEmpty(entry.getValue()) ? created : reused, tableName);
+			} else if ("obs".equals(tableName)) {
+				if (!hasEmptyValue(entry.getValue()))
+					count(created, tableName);
+			} else if (patientExists && PATIENT_TABLES.contains(tableName)) {
+				if ("person".equals(tableName))
+					count(reused, "patient");
+			} else {
+				if ("patient".equals(tableName))
+					patientCreated = true;
+				// a new person becomes a patient when the first table referring to patient_id is inserted
+				for (SpreadsheetImportTemplateColumn column : entry.getValue()) {
+					for (SpreadsheetImportTemplateColumnColumn columnColumn : column.getColumnColumnsImportBefore()) {
+						if ("patient_id".equals(columnColumn.getColumnName()) && !patientCreated
+						        && rowData.containsKey(new UniqueImport("person", null))) {
+							count(created, "patient");
+							patientCreated = true;
+						}
+					}
+				}
+				count(created, tableName);
+			}
+		}
+		rowsValid.incrementAndGet();
+		return true;
+	}
+
+	private static boolean isEmpty(Set<SpreadsheetImportTemplateColumn> columns) {
+		for (SpreadsheetImportTemplateColumn column : columns) {
+			if (!"".equals(column.getValue()))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean hasEmptyValue(Set<SpreadsheetImportTemplateColumn> columns) {
+		for (SpreadsheetImportTemplateColumn column : columns) {
+			if ("".equals(column.getValue()))
+				return true;
+		}
+		return false;
+	}
+
+	private static void count(ConcurrentMap<String, AtomicInteger> counts, String tableName) {
+		AtomicInteger count = counts.get(tableName);
+		if (count == null) {
+			counts.putIfAbsent(tableName, new AtomicInteger());
+			count = counts.get(tableName);
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * @return the rows which would be imported
+	 */
+	public int getRowsValid() {
+		return rowsValid.get();
+	}
+
+	/**
+	 * @return the rows which would be skipped as imported before
+	 */
+	public int getRowsSkipped() {
+		return rowsSkipped.get();
+	}
+
+	/**
+	 * @return the number of rows which would be inserted, by table
+	 */
+	public Map<String, Integer> getCreated() {
+		return snapshot(created);
+	}
+
+	/**
+	 * @return the number of existing patients and encounters which would be reused, by table
+	 */
+	public Map<String, Integer> getReused() {
+		return snapshot(reused);
+	}
+
+	private static Map<String, Integer> snapshot(Map<String, AtomicInteger> counts) {
+		Map<String, Integer> snapshot = new TreeMap<String, Integer>();
+		for (Map.Entry<String, AtomicInteger> entry : counts.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return what the import would do, for the messages of the dry run
+	 */
+	public List<String> describe() {
+		List<String> messages = new ArrayList<String>();
+		messages.add("Dry run, nothing was written: " + getRowsValid() + " rows would be imported"
+		        + (getRowsSkipped() > 0 ? ", " + getRowsSkipped() + " rows would be skipped as imported before" : ""));
+		messages.add("Would create " + describe(getCreated()));
+		Map<String, Integer> reused = getReused();
+		if (!reused.isEmpty())
+			messages.add("Would reuse existing " + describe(reused));
+		return messages;
+	}
+
+	private static String describe(Map<String, Integer> counts) {
+		if (counts.isEmpty())
+			return "nothing";
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			if (sb.length() != 0)
+				sb.append(", ");
+			sb.append(entry.getValue()).append(' ').append(entry.getKey());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write what the import would do to a CSV file, one record per table
+	 */
+	public void writeReport(File file) throws IOException {
+		CsvFileWriter writer = new CsvFileWriter(file, false);
+		try {
+			writer.writeField("table");
+			writer.writeField("created");
+			writer.writeField("reused");
+			writer.endRecord(false);
+			Map<String, Integer> created = getCreated();
+			Map<String, Integer> reused = getReused();
+			Set<String> tables = new TreeSet<String>(created.keySet());
+			tables.addAll(reused.keySet());
+			for (String table : tables) {
+				writer.writeField(table);
+				writer.writeField(String.valueOf(created.containsKey(table) ? created.get(table) : 0));
+				writer.writeField(String.valueOf(reused.containsKey(table) ? reused.get(table) : 0));
+				writer.endRecord(true);
+			}
+		}
+		finally {
+			writer.close();
+		}
+	}
+}
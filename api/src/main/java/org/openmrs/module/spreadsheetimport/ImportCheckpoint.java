@@ -0,0 +1,166 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How far an import job got, so that it can be resumed after a restart or a lost connection
+ * without importing any row twice. Every writer imports its rows in sheet order (see
+ * {@link ImportPipeline}), so the last row committed by each writer tells exactly which rows are
+ * done. The checkpoint is written in the transaction of each row, together with the encounter ID
+ * generated for the write-back, and so can never disagree with the imported data.
+ * <p>
+ * Stored in the tables spreadsheetimport_job_checkpoint and spreadsheetimport_job_key. A resumed
+ * job must use the same number of writers, which holds as the options are stored with the job.
+ */
+public class ImportCheckpoint {
+
+	String jobId;
+
+	/** Last row committed by each writer, -1 if none */
+	int[] lastRows;
+
+	/** Encounter IDs generated by earlier runs, by row */
+	Map<Integer, String> encounterIds = new TreeMap<Integer, String>();
+
+	public ImportCheckpoint(String jobId, int writers) {
+		this.jobId = jobId;
+		this.lastRows = new int[Math.max(1, writers)];
+		for (int i = 0; i < lastRows.length; i++) {
+			lastRows[i] = -1;
+		}
+	}
+
+	/**
+	 * Read the checkpoint of a job; empty if the job has not committed any rows yet
+	 */
+	public static ImportCheckpoint load(Connection conn, String jobId, int writers) throws SQLException {
+		ImportCheckpoint checkpoint = new ImportCheckpoint(jobId, writers);
+		Statement s = conn.createStatement();
+		try {
+			ResultSet rs = s.executeQuery("select writer, last_row from spreadsheetimport_job_checkpoint where job_id = '"
+			        + jobId + "'");
+			while (rs.next()) {
+				int writer = rs.getInt(1);
+				if (writer < checkpoint.lastRows.length)
+					checkpoint.lastRows[writer] = rs.getInt(2);
+			}
+			rs.close();
+			rs = s.executeQuery("select row_num, encounter_id from spreadsheetimport_job_key where job_id = '" + jobId
+			        + "'");
+			while (rs.next()) {
+				checkpoint.encounterIds.put(rs.getInt(1), rs.getString(2));
+			}
+			rs.close();
+		}
+		finally {
+			s.close();
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * Forget the checkpoint of a job which is done
+	 */
+	public static void delete(Connection conn, String jobId) throws SQLException {
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate("delete from spreadsheetimport_job_checkpoint where job_id = '" + jobId + "'");
+			s.executeUpdate("delete from spreadsheetimport_job_key where job_id = '" + jobId + "'");
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Record that a writer has imported a row; called in the transaction of the row
+	 */
+	public void record(Connection conn, int writer, int rowNum, String encounterId) throws SQLException {
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate("insert into spreadsheetimport_job_checkpoint (job_id, writer, last_row) values ('" + jobId
+			        + "', " + writer + ", " + rowNum + ") on duplicate key update last_row = " + rowNum);
+			if (encounterId != null)
+				s.executeUpdate("insert into spreadsheetimport_job_key (job_id, row_num, encounter_id) values ('" + jobId
+				        + "', " + rowNum + ", " + encounterId + ")");
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * Record that a row of a writer was rejected, so a resumed job neither imports nor rejects it
+	 * again; called by the writer before its next row. The transaction of the row was rolled back,
+	 * so this commits on its own.
+	 */
+	public void recordRejected(Connection conn, int writer, int rowNum) throws SQLException {
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate("insert into spreadsheetimport_job_checkpoint (job_id, writer, last_row) values ('" + jobId
+			        + "', " + writer + ", " + rowNum + ") on duplicate key update last_row = " + rowNum);
+		}
+		finally {
+			s.close();
+		}
+		if (!conn.getAutoCommit())
+			conn.commit();
+	}
+
+	/**
+	 * @param writer the writer the row is assigned to, see {@link ImportPlan#getShard(RowBuffer, int)}
+	 */
+	public boolean isImported(int rowNum, int writer) {
+		return rowNum <= lastRows[writer];
+	}
+
+	/**
+	 * @return the first row which some writer has not imported yet; rows before it need not even
+	 *         be read
+	 */
+	public int getResumeRow() {
+		int min = Integer.MAX_VALUE;
+		for (int lastRow : lastRows) {
+			min = Math.min(min, lastRow);
+		}
+		return min + 1;
+	}
+
+	public boolean isEmpty() {
+		for (int lastRow : lastRows) {
+			if (lastRow >= 0)
+				return false;
+		}
+		return true;
+	}
+
+	public Map<Integer, String> getEncounterIds() {
+		return encounterIds;
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public int getWriters() {
+		return lastRows.length;
+	}
+}
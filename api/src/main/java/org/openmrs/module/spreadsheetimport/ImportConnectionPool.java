@@ -0,0 +1,82 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The database connections of one import. Threads borrow a connection for each row and give it
+ * back afterwards; a semaphore bounds the number of connections in use, so an import can run many
+ * more threads than the database has connections for.
+ */
+public class ImportConnectionPool {
+
+	Semaphore permits;
+
+	ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+	int size;
+
+	public ImportConnectionPool(int size) {
+		this.size = Math.max(1, size);
+		this.permits = new Semaphore(this.size, true);
+	}
+
+	/**
+	 * Wait for a free connection, opening a new one if none is idle
+	 */
+	public Connection borrow() throws Exception {
+		permits.acquire();
+		Connection conn = idle.poll();
+		if (conn == null) {
+			try {
+				conn = openConnection();
+			}
+			catch (Exception e) {
+				permits.release();
+				throw e;
+			}
+		}
+		return conn;
+	}
+
+	public void giveBack(Connection conn) {
+		if (conn != null)
+			idle.offer(conn);
+		permits.release();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	protected Connection openConnection() throws Exception {
+		return DatabaseBackend.openConnection();
+	}
+
+	/**
+	 * Close all idle connections; call when every borrowed connection has been given back
+	 */
+	public void close() {
+		Connection conn;
+		while ((conn = idle.poll()) != null) {
+			try {
+				conn.close();
+			}
+			catch (Exception e) {}
+		}
+	}
+}
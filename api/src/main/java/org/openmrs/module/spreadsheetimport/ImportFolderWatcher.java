@@ -0,0 +1,223 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+/**
+ * Scans the watch folders as soon as a file is created or changed in them, instead of waiting for
+ * the next run of {@link ImportJobTask}. Uses java.nio.file.WatchService, which the module reaches
+ * through reflection as it is built for older JDKs; without it, or for a folder which cannot be
+ * watched, the task polls the folders on its own once a minute. While a file has not settled (see
+ * {@link ImportWatchFolders#SETTLE_MILLIS}) the folders are scanned every half settle time, so a
+ * file is picked up about ten seconds after it was last written.
+ */
+class ImportFolderWatcher implements Runnable {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportFolderWatcher.class);
+
+	/** Time to let the events of a file being copied pile up before the first scan */
+	private static final long EVENT_DELAY_MILLIS = 1000;
+
+	private static ImportFolderWatcher current;
+
+	Set<File> dirs;
+
+	volatile UserContext userContext;
+
+	/** The WatchService and the reflective methods to use it */
+	Object watchService;
+
+	Method poll;
+
+	Method take;
+
+	Method close;
+
+	Method pollEvents;
+
+	Method reset;
+
+	volatile boolean closed = false;
+
+	private ImportFolderWatcher(Set<File> dirs, UserContext userContext) {
+		this.dirs = dirs;
+		this.userContext = userContext;
+	}
+
+	/**
+	 * Watch the given folders instead of the ones watched so far. The scans run with the given
+	 * user context; it is replaced with the one of every later call.
+	 */
+	static synchronized void watch(Collection<File> folders, UserContext userContext) {
+		Set<File> dirs = new HashSet<File>(folders);
+		if (current != null && !current.closed && current.dirs.equals(dirs)) {
+			current.userContext = userContext;
+			return;
+		}
+		stop();
+		if (dirs.isEmpty())
+			return;
+		ImportFolderWatcher watcher = new ImportFolderWatcher(dirs, userContext);
+		if (watcher.open()) {
+			current = watcher;
+			new ImportThreadFactory("watch").newThread(watcher).start();
+		}
+	}
+
+	/**
+	 * Stop watching, e.g. when the module shuts down
+	 */
+	static synchronized void stop() {
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+	}
+
+	/**
+	 * Create the watch service and register the folders, FileSystems.getDefault().newWatchService()
+	 * and dir.toPath().register(watchService, ENTRY_CREATE, ENTRY_MODIFY)
+	 * 
+	 * @return false if the JDK cannot watch folders
+	 */
+	private boolean open() {
+		Method register;
+		Object kinds;
+		try {
+			Class<?> fileSystemClass = Class.forName("java.nio.file.FileSystem");
+			Class<?> watchServiceClass = Class.forName("java.nio.file.WatchService");
+			Class<?> watchKeyClass = Class.forName("java.nio.file.WatchKey");
+			Class<?> kindClass = Class.forName("java.nio.file.WatchEvent$Kind");
+			Class<?> standardKinds = Class.forName("java.nio.file.StandardWatchEventKinds");
+			Object fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault").invoke(null);
+			kinds = Array.newInstance(kindClass, 2);
+			Array.set(kinds, 0, standardKinds.getField("ENTRY_CREATE").get(null));
+			Array.set(kinds, 1, standardKinds.getField("ENTRY_MODIFY").get(null));
+			register = Class.forName("java.nio.file.Path").getMethod("register", watchServiceClass, kinds.getClass());
+			poll = watchServiceClass.getMethod("poll", long.class, TimeUnit.class);
+			take = watchServiceClass.getMethod("take");
+			close = watchServiceClass.getMethod("close");
+			pollEvents = watchKeyClass.getMethod("pollEvents");
+			reset = watchKeyClass.getMethod("reset");
+			watchService = fileSystemClass.getMethod("newWatchService").invoke(fileSystem);
+		}
+		catch (Exception e) {
+			if (log.isDebugEnabled())
+				log.debug("Watch folders are polled, the JDK cannot watch them: " + e);
+			return false;
+		}
+
+		Method toPath;
+		try {
+			toPath = File.class.getMethod("toPath");
+		}
+		catch (NoSuchMethodException e) {
+			close();
+			return false;
+		}
+		boolean registered = false;
+		for (File dir : dirs) {
+			try {
+				register.invoke(toPath.invoke(dir), watchService, kinds);
+				registered = true;
+			}
+			catch (Exception e) {
+				log.warn("Cannot watch folder " + dir + ", it is polled instead: " + e);
+			}
+		}
+		if (!registered)
+			close();
+		return registered;
+	}
+
+	private void close() {
+		closed = true;
+		try {
+			close.invoke(watchService);
+		}
+		catch (Exception e) {
+			log.debug("Cannot close watch service", e);
+		}
+	}
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		long nextScan = Long.MAX_VALUE;
+		try {
+			while (!closed) {
+				Object key;
+				if (nextScan == Long.MAX_VALUE) {
+					key = take.invoke(watchService);
+				} else {
+					long wait = Math.max(0, nextScan - System.currentTimeMillis());
+					key = poll.invoke(watchService, Long.valueOf(wait), TimeUnit.MILLISECONDS);
+				}
+				if (key != null) {
+					pollEvents.invoke(key);
+					reset.invoke(key);
+					if (nextScan == Long.MAX_VALUE)
+						nextScan = System.currentTimeMillis() + EVENT_DELAY_MILLIS;
+					continue;
+				}
+				nextScan = scan() ? System.currentTimeMillis() + ImportWatchFolders.SETTLE_MILLIS / 2 : Long.MAX_VALUE;
+			}
+		}
+		catch (InvocationTargetException e) {
+			// ClosedWatchServiceException or InterruptedException once the watcher is stopped
+			if (!closed)
+				log.error("Stopped watching the watch folders, they are polled instead", e.getCause());
+		}
+		catch (Exception e) {
+			log.error("Stopped watching the watch folders, they are polled instead", e);
+		}
+		finally {
+			closed = true;
+		}
+	}
+
+	/**
+	 * @return whether files are waiting to settle
+	 */
+	private boolean scan() {
+		Context.openSession();
+		try {
+			Context.setUserContext(userContext);
+			return ImportWatchFolders.scan(ImportWatchFolders.getFolders());
+		}
+		catch (Exception e) {
+			log.error("Cannot scan the watch folders", e);
+			return false;
+		}
+		finally {
+			Context.clearUserContext();
+			Context.closeSession();
+		}
+	}
+}
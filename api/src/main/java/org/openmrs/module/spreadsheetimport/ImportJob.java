@@ -0,0 +1,408 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+
+/**
+ * An import running in the background, see {@link ImportJobManager}. Jobs are stored in the
+ * spreadsheetimport_job table, so queued jobs survive a restart; the progress counters only exist
+ * while the job runs. A job owns the spooled upload until the import is done. Jobs import from an
+ * {@link ImportCheckpoint}, so a job which was interrupted continues where it stopped.
+ */
+public class ImportJob implements Runnable {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportJob.class);
+
+	public static final String STATE_QUEUED = "queued";
+
+	public static final String STATE_RUNNING = "running";
+
+	public static final String STATE_SUCCEEDED = "succeeded";
+
+	public static final String STATE_FAILED = "failed";
+
+	public static final String STATE_CANCELLED = "cancelled";
+
+	String id;
+
+	Integer templateId;
+
+	String templateName;
+
+	String sheetName;
+
+	ImportOptions options;
+
+	File spoolFile;
+
+	/** Lane the job runs in, see {@link ImportJobManager} */
+	String lane;
+
+	/** Whether the job may only start during the off-peak hours */
+	boolean offPeak;
+
+	Integer submitterId;
+
+	/** The file in a watch folder the job imports, see {@link ImportWatchFolders} */
+	File watchFile;
+
+	volatile String state = STATE_QUEUED;
+
+	List<String> messages = new CopyOnWriteArrayList<String>();
+
+	volatile File resultFile;
+
+	Date submitted;
+
+	volatile Date started;
+
+	volatile Date finished;
+
+	/** User context the job runs with, set when the job is started */
+	UserContext userContext;
+
+	ImportProgress progress = new ImportProgress();
+
+	/** For Hibernate */
+	public ImportJob() {
+	}
+
+	public ImportJob(SpreadsheetImportTemplate template, File spoolFile, String sheetName, ImportOptions options,
+	    String lane, boolean offPeak) {
+		this.id = UUID.randomUUID().toString();
+		this.templateId = template.getId();
+		this.templateName = template.getName();
+		this.spoolFile = spoolFile;
+		this.sheetName = sheetName;
+		this.options = options;
+		this.lane = lane;
+		this.offPeak = offPeak;
+		this.submitterId = options.getCreatorId();
+		this.submitted = new Date();
+	}
+
+	public void run() {
+		String outcome = STATE_FAILED;
+		Context.openSession();
+		try {
+			Context.setUserContext(userContext);
+			SpreadsheetImportService service = Context.getService(SpreadsheetImportService.class);
+			started = new Date();
+			service.saveImportJob(this);
+
+			SpreadsheetImportTemplate template = service.getTemplateById(templateId);
+			if (template == null) {
+				messages.add("template " + templateId + " does not exist any more");
+				spoolFile.delete();
+			} else {
+				templateName = template.getName();
+				ImportCheckpoint checkpoint = loadCheckpoint();
+				resultFile = SpreadsheetImportUtil.importTemplate(template, spoolFile, sheetName, messages, options,
+				    progress, checkpoint);
+				if (resultFile != null) {
+					outcome = STATE_SUCCEEDED;
+					deleteCheckpoint();
+				}
+			}
+		}
+		catch (Throwable t) {
+			log.error("Import job " + id + " failed", t);
+			messages.add("Import failed: " + t);
+		}
+		finally {
+			if (!STATE_SUCCEEDED.equals(outcome) && ImportJobManager.isStopping()) {
+				// continue from the checkpoint when the module is started again
+				messages.add("Import was stopped and continues when the module is started again");
+				outcome = STATE_QUEUED;
+			} else {
+				if (!STATE_SUCCEEDED.equals(outcome) && progress.isCancelled())
+					outcome = STATE_CANCELLED;
+				finished = new Date();
+			}
+			state = outcome;
+			if (watchFile != null && isFinished())
+				ImportWatchFolders.finished(this);
+			try {
+				Context.getService(SpreadsheetImportService.class).saveImportJob(this);
+			}
+			catch (Exception e) {
+				log.error("Cannot save state of import job " + id, e);
+			}
+			finally {
+				Context.clearUserContext();
+				Context.closeSession();
+			}
+		}
+	}
+
+	private ImportCheckpoint loadCheckpoint() throws Exception {
+		Connection conn = DatabaseBackend.openConnection();
+		try {
+			return ImportCheckpoint.load(conn, id, options.getWorkers());
+		}
+		finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * Forget the checkpoint of a job which is done
+	 */
+	void deleteCheckpoint() {
+		try {
+			Connection conn = DatabaseBackend.openConnection();
+			try {
+				ImportCheckpoint.delete(conn, id);
+			}
+			finally {
+				conn.close();
+			}
+		}
+		catch (Exception e) {
+			log.warn("Cannot delete checkpoint of import job " + id, e);
+		}
+	}
+
+	/**
+	 * Delete the files of a job which did not run or whose result is no longer needed
+	 */
+	void deleteFiles() {
+		if (resultFile != null)
+			resultFile.delete();
+		if (spoolFile != null) {
+			spoolFile.delete();
+			// the files of a job which failed, kept to resume it
+			SpreadsheetImportUtil.getResultFile(spoolFile).delete();
+			getRejectFile().delete();
+			getKeyManifestFile().delete();
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public Integer getTemplateId() {
+		return templateId;
+	}
+
+	public void setTemplateId(Integer templateId) {
+		this.templateId = templateId;
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+	public void setTemplateName(String templateName) {
+		this.templateName = templateName;
+	}
+
+	public String getSheetName() {
+		return sheetName;
+	}
+
+	public void setSheetName(String sheetName) {
+		this.sheetName = sheetName;
+	}
+
+	public ImportOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * @return the options as stored in the database
+	 */
+	public String getOptionsText() {
+		return options == null ? null : options.format();
+	}
+
+	public void setOptionsText(String optionsText) {
+		this.options = ImportOptions.parse(optionsText);
+	}
+
+	public String getSpoolPath() {
+		return spoolFile == null ? null : spoolFile.getPath();
+	}
+
+	public void setSpoolPath(String spoolPath) {
+		this.spoolFile = (spoolPath == null ? null : new File(spoolPath));
+	}
+
+	public File getWatchFile() {
+		return watchFile;
+	}
+
+	public void setWatchFile(File watchFile) {
+		this.watchFile = watchFile;
+	}
+
+	public String getWatchPath() {
+		return watchFile == null ? null : watchFile.getPath();
+	}
+
+	public void setWatchPath(String watchPath) {
+		this.watchFile = (watchPath == null ? null : new File(watchPath));
+	}
+
+	public String getLane() {
+		return lane;
+	}
+
+	public void setLane(String lane) {
+		this.lane = lane;
+	}
+
+	public boolean isOffPeak() {
+		return offPeak;
+	}
+
+	public void setOffPeak(boolean offPeak) {
+		this.offPeak = offPeak;
+	}
+
+	/**
+	 * @return id of the user who submitted the job, only that user may see it
+	 */
+	public Integer getSubmitterId() {
+		return submitterId;
+	}
+
+	public void setSubmitterId(Integer submitterId) {
+		this.submitterId = submitterId;
+	}
+
+	public String getState() {
+		return state;
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public boolean isFinished() {
+		return STATE_SUCCEEDED.equals(state) || STATE_FAILED.equals(state) || STATE_CANCELLED.equals(state);
+	}
+
+	/**
+	 * @return a copy of the messages so far
+	 */
+	public List<String> getMessages() {
+		return new ArrayList<String>(messages);
+	}
+
+	public void addMessage(String message) {
+		messages.add(message);
+	}
+
+	/**
+	 * @return the messages as stored in the database, one per line
+	 */
+	public String getMessageText() {
+		StringBuilder sb = new StringBuilder();
+		for (String message : messages) {
+			if (sb.length() != 0)
+				sb.append('\n');
+			sb.append(message);
+		}
+		return sb.toString();
+	}
+
+	public void setMessageText(String messageText) {
+		messages.clear();
+		if (messageText != null && messageText.length() != 0) {
+			for (String message : messageText.split("\n")) {
+				messages.add(message);
+			}
+		}
+	}
+
+	/**
+	 * @return the CSV file of the imported rows with their generated keys, or null while running or
+	 *         if the import failed
+	 */
+	public File getResultFile() {
+		return resultFile;
+	}
+
+	/**
+	 * @return the CSV file of the rows rejected by a job which continued on errors; it exists only
+	 *         if rows were rejected
+	 */
+	public File getRejectFile() {
+		return spoolFile == null ? null : SpreadsheetImportUtil.getRejectFile(spoolFile);
+	}
+
+	/**
+	 * @return the manifest of the keys generated for every row, see {@link KeyManifestWriter}; it
+	 *         exists only if the options asked for one
+	 */
+	public File getKeyManifestFile() {
+		return spoolFile == null ? null : SpreadsheetImportUtil.getKeyManifestFile(spoolFile);
+	}
+
+	public String getResultPath() {
+		return resultFile == null ? null : resultFile.getPath();
+	}
+
+	public void setResultPath(String resultPath) {
+		this.resultFile = (resultPath == null ? null : new File(resultPath));
+	}
+
+	public ImportProgress getProgress() {
+		return progress;
+	}
+
+	public Date getSubmitted() {
+		return submitted;
+	}
+
+	public void setSubmitted(Date submitted) {
+		this.submitted = submitted;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public void setStarted(Date started) {
+		this.started = started;
+	}
+
+	public Date getFinished() {
+		return finished;
+	}
+
+	public void setFinished(Date finished) {
+		this.finished = finished;
+	}
+}
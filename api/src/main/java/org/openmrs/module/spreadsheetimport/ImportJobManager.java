@@ -0,0 +1,455 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Runs imports as background jobs, so that uploading a large sheet does not hold the HTTP request
+ * until the last row is imported. Submitted jobs are queued in the spreadsheetimport_job table and
+ * started by {@link #dispatch()}, which runs when a job is submitted or finishes and periodically
+ * from {@link ImportJobTask}.
+ * <p>
+ * Jobs run in lanes, each with its own limit of jobs running at the same time (global property
+ * spreadsheetimport.lanes, e.g. "interactive:2,bulk:1"), so small uploads do not wait behind
+ * a migration of several hours and the load on the database stays bounded. Jobs marked off-peak
+ * only start within the hours of spreadsheetimport.offPeakHours, e.g. "22-6".
+ * <p>
+ * Jobs which were running when the module stopped are queued again and continue from their
+ * checkpoint (see {@link ImportCheckpoint}); failed jobs can be resumed with {@link #resume(String)}
+ * once the cause, e.g. a lost database connection, is fixed.
+ * <p>
+ * Running and recently finished jobs are kept in memory for their progress counters; older jobs
+ * are read from the table. Finished jobs and their files are deleted after
+ * spreadsheetimport.jobRetentionDays.
+ */
+public class ImportJobManager {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportJobManager.class);
+
+	public static final String DEFAULT_LANES = "interactive:2,bulk:1";
+
+	public static final String DEFAULT_OFF_PEAK_HOURS = "22-6";
+
+	public static final int DEFAULT_RETENTION_DAYS = 7;
+
+	public static final int MAX_QUEUED_JOBS = 20;
+
+	public static final int MAX_FINISHED_JOBS = 50;
+
+	private static final Map<String, ImportJob> jobs = new ConcurrentHashMap<String, ImportJob>();
+
+	private static Map<String, Lane> lanes;
+
+	private static boolean recovered = false;
+
+	private static volatile boolean stopping = false;
+
+	/**
+	 * Jobs of one lane run on their own threads, at most limit of them at the same time
+	 */
+	static class Lane {
+
+		String name;
+
+		int limit;
+
+		int running = 0;
+
+		ThreadPoolExecutor executor;
+
+		Lane(String name, int limit) {
+			this.name = name;
+			this.limit = limit;
+			this.executor = new ThreadPoolExecutor(limit, limit, 0, TimeUnit.MILLISECONDS,
+			        new LinkedBlockingQueue<Runnable>(), new ImportThreadFactory("job-" + name));
+		}
+	}
+
+	private static synchronized Map<String, Lane> getLanes() {
+		if (lanes == null) {
+			lanes = new LinkedHashMap<String, Lane>();
+			String definition = Context.getAdministrationService().getGlobalProperty("spreadsheetimport.lanes",
+			    DEFAULT_LANES);
+			for (String lane : definition.split(",")) {
+				String[] nameAndLimit = lane.split(":");
+				try {
+					String name = nameAndLimit[0].trim();
+					int limit = (nameAndLimit.length > 1 ? Integer.parseInt(nameAndLimit[1].trim()) : 1);
+					if (name.length() != 0 && !lanes.containsKey(name))
+						lanes.put(name, new Lane(name, Math.max(1, limit)));
+				}
+				catch (NumberFormatException e) {
+					log.warn("Invalid lane " + lane + " in global property spreadsheetimport.lanes");
+				}
+			}
+			if (lanes.isEmpty())
+				lanes.put("default", new Lane("default", 1));
+		}
+		return lanes;
+	}
+
+	/**
+	 * @return the names of the lanes, the first one is the default
+	 */
+	public static synchronized List<String> getLaneNames() {
+		return new ArrayList<String>(getLanes().keySet());
+	}
+
+	private static Lane getLane(String name) {
+		Map<String, Lane> lanes = getLanes();
+		Lane lane = lanes.get(name);
+		return lane != null ? lane : lanes.values().iterator().next();
+	}
+
+	/**
+	 * Directory of spooled uploads and results, which must outlive a restart while jobs are queued
+	 */
+	public static File getSpoolDirectory() {
+		return OpenmrsUtil.getDirectoryInApplicationDataDirectory("spreadsheetimport");
+	}
+
+	/**
+	 * Queue an import of a spooled upload; the job takes over the spool file
+	 * 
+	 * @param lane name of the lane, the default lane if unknown
+	 * @param offPeak whether the job may only start during the off-peak hours
+	 * @return the job, or null if too many jobs are waiting already, in which case the spool file
+	 *         is deleted
+	 */
+	public static ImportJob submit(SpreadsheetImportTemplate template, File spoolFile, String sheetName,
+	                               ImportOptions options, String lane, boolean offPeak) {
+		return submit(template, spoolFile, sheetName, options, lane, offPeak, null);
+	}
+
+	/**
+	 * @param watchFile the file in a watch folder the upload was copied from, see
+	 *            {@link ImportWatchFolders}
+	 */
+	public static ImportJob submit(SpreadsheetImportTemplate template, File spoolFile, String sheetName,
+	                               ImportOptions options, String lane, boolean offPeak, File watchFile) {
+		SpreadsheetImportService service = Context.getService(SpreadsheetImportService.class);
+		if (service.getImportJobs(ImportJob.STATE_QUEUED).size() >= MAX_QUEUED_JOBS) {
+			spoolFile.delete();
+			return null;
+		}
+		ImportJob job = new ImportJob(template, spoolFile, sheetName, options, getLane(lane).name, offPeak);
+		job.setWatchFile(watchFile);
+		service.saveImportJob(job);
+		if (log.isInfoEnabled())
+			log.info("Queued import job " + job.getId() + " of template " + job.getTemplateName() + " in lane "
+			        + job.getLane());
+		dispatch();
+		ImportJob started = jobs.get(job.getId());
+		return started != null ? started : job;
+	}
+
+	/**
+	 * Start the queued jobs which are due, as far as their lanes have room. Must be called with an
+	 * open session; the jobs run with the user context of the calling thread.
+	 */
+	public static synchronized void dispatch() {
+		SpreadsheetImportService service = Context.getService(SpreadsheetImportService.class);
+		if (!recovered) {
+			// jobs running when the server stopped were interrupted, continue them
+			for (ImportJob job : service.getImportJobs(ImportJob.STATE_RUNNING)) {
+				if (!jobs.containsKey(job.getId())) {
+					job.addMessage("Import was interrupted by a restart of the server and continues");
+					job.setState(ImportJob.STATE_QUEUED);
+					service.saveImportJob(job);
+				}
+			}
+			recovered = true;
+		}
+
+		boolean offPeakNow = isOffPeak(Calendar.getInstance(), Context.getAdministrationService().getGlobalProperty(
+		    "spreadsheetimport.offPeakHours", DEFAULT_OFF_PEAK_HOURS));
+		for (ImportJob job : service.getImportJobs(ImportJob.STATE_QUEUED)) {
+			if (job.isOffPeak() && !offPeakNow)
+				continue;
+			Lane lane = getLane(job.getLane());
+			if (lane.running >= lane.limit)
+				continue;
+			start(job, lane, service);
+		}
+	}
+
+	private static void start(final ImportJob job, final Lane lane, SpreadsheetImportService service) {
+		job.setState(ImportJob.STATE_RUNNING);
+		service.saveImportJob(job);
+		job.userContext = Context.getUserContext();
+		jobs.put(job.getId(), job);
+		lane.running++;
+		if (log.isInfoEnabled())
+			log.info("Starting import job " + job.getId() + " in lane " + lane.name);
+		lane.executor.execute(new Runnable() {
+
+			public void run() {
+				try {
+					job.run();
+				}
+				finally {
+					finished(job, lane);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Free the slot of a finished job and start the next one of its lane
+	 */
+	private static void finished(ImportJob job, Lane lane) {
+		synchronized (ImportJobManager.class) {
+			lane.running--;
+			evictFinishedJobs();
+		}
+		UserContext userContext = job.userContext;
+		job.userContext = null;
+		if (lane.executor.isShutdown())
+			return;
+		Context.openSession();
+		try {
+			Context.setUserContext(userContext);
+			dispatch();
+		}
+		catch (Exception e) {
+			log.error("Cannot start next import job", e);
+		}
+		finally {
+			Context.clearUserContext();
+			Context.closeSession();
+		}
+	}
+
+	/**
+	 * Cancel a job. A queued job is cancelled right away, a running job stops at its next row
+	 * boundary; it keeps the rows imported so far and can be resumed.
+	 * 
+	 * @return false if the job is already finished
+	 */
+	public static synchronized boolean cancel(String id) {
+		ImportJob job = getJob(id);
+		if (job == null)
+			return false;
+		if (ImportJob.STATE_RUNNING.equals(job.getState())) {
+			job.getProgress().cancel();
+			return true;
+		}
+		if (!ImportJob.STATE_QUEUED.equals(job.getState()))
+			return false;
+		job.addMessage("Cancelled before it started");
+		job.setState(ImportJob.STATE_CANCELLED);
+		job.setFinished(new Date());
+		ImportWatchFolders.finished(job);
+		Context.getService(SpreadsheetImportService.class).saveImportJob(job);
+		return true;
+	}
+
+	/**
+	 * Change the throttle limits of a job; a running job applies them right away, and they are
+	 * stored with the job's options for when it is resumed
+	 * 
+	 * @return false if the job is already finished
+	 */
+	public static synchronized boolean setLimits(String id, int rowsPerSecond, int dbTimeShare,
+	                                             int latencyThresholdMillis) {
+		ImportJob job = getJob(id);
+		if (job == null || job.isFinished())
+			return false;
+		ImportOptions options = job.getOptions();
+		options.setRowsPerSecond(rowsPerSecond);
+		options.setDbTimeShare(dbTimeShare);
+		options.setLatencyThresholdMillis(latencyThresholdMillis);
+		job.getProgress().getThrottle().setLimits(options);
+		Context.getService(SpreadsheetImportService.class).saveImportJob(job);
+		return true;
+	}
+
+	/**
+	 * Queue a failed or cancelled job again; it continues after the last row it imported
+	 * 
+	 * @return false if the job cannot be resumed because it did not fail or its upload is gone
+	 */
+	public static synchronized boolean resume(String id) {
+		ImportJob job = getJob(id);
+		if (job == null
+		        || !(ImportJob.STATE_FAILED.equals(job.getState()) || ImportJob.STATE_CANCELLED.equals(job.getState()))
+		        || job.getSpoolPath() == null || !new File(job.getSpoolPath()).exists())
+			return false;
+		jobs.remove(id);
+		job.progress = new ImportProgress();
+		job.addMessage("Resumed");
+		job.setState(ImportJob.STATE_QUEUED);
+		job.setFinished(null);
+		Context.getService(SpreadsheetImportService.class).saveImportJob(job);
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * @return the job, or null if there is no such job (any more)
+	 */
+	public static ImportJob getJob(String id) {
+		if (id == null)
+			return null;
+		ImportJob job = jobs.get(id);
+		if (job == null)
+			job = Context.getService(SpreadsheetImportService.class).getImportJobById(id);
+		return job;
+	}
+
+	/**
+	 * Keep only the most recently finished jobs in memory
+	 */
+	private static synchronized void evictFinishedJobs() {
+		List<ImportJob> finished = new ArrayList<ImportJob>();
+		for (ImportJob job : jobs.values()) {
+			if (job.isFinished())
+				finished.add(job);
+		}
+		if (finished.size() <= MAX_FINISHED_JOBS)
+			return;
+		Collections.sort(finished, new Comparator<ImportJob>() {
+
+			public int compare(ImportJob a, ImportJob b) {
+				return a.getFinished().compareTo(b.getFinished());
+			}
+		});
+		for (ImportJob job : finished.subList(0, finished.size() - MAX_FINISHED_JOBS)) {
+			jobs.remove(job.getId());
+		}
+	}
+
+	/**
+	 * Delete finished jobs older than the retention period, with their files
+	 */
+	public static void purgeFinishedJobs() {
+		Date cutoff = getRetentionCutoff();
+		SpreadsheetImportService service = Context.getService(SpreadsheetImportService.class);
+		List<ImportJob> finished = new ArrayList<ImportJob>(service.getImportJobs(ImportJob.STATE_SUCCEEDED));
+		finished.addAll(service.getImportJobs(ImportJob.STATE_FAILED));
+		finished.addAll(service.getImportJobs(ImportJob.STATE_CANCELLED));
+		for (ImportJob job : finished) {
+			if (job.getFinished() != null && job.getFinished().before(cutoff)) {
+				jobs.remove(job.getId());
+				job.deleteFiles();
+				job.deleteCheckpoint();
+				service.deleteImportJob(job);
+			}
+		}
+	}
+
+	/**
+	 * @return the time before which finished jobs and abandoned uploads are deleted, from the
+	 *         global property spreadsheetimport.jobRetentionDays
+	 */
+	public static Date getRetentionCutoff() {
+		AdministrationService as = Context.getAdministrationService();
+		int days = DEFAULT_RETENTION_DAYS;
+		try {
+			days = Integer.parseInt(as.getGlobalProperty("spreadsheetimport.jobRetentionDays", String
+			        .valueOf(DEFAULT_RETENTION_DAYS)));
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value of global property spreadsheetimport.jobRetentionDays");
+		}
+		Calendar cutoff = Calendar.getInstance();
+		cutoff.add(Calendar.DAY_OF_MONTH, -days);
+		return cutoff.getTime();
+	}
+
+	/**
+	 * @param hours off-peak hours as "from-to" in hours of the day, e.g. "22-6" for the night
+	 * @return whether now is within the off-peak hours
+	 */
+	public static boolean isOffPeak(Calendar now, String hours) {
+		try {
+			String[] fromTo = hours.split("-");
+			int from = Integer.parseInt(fromTo[0].trim());
+			int to = Integer.parseInt(fromTo[1].trim());
+			int hour = now.get(Calendar.HOUR_OF_DAY);
+			return from <= to ? (hour >= from && hour < to) : (hour >= from || hour < to);
+		}
+		catch (RuntimeException e) {
+			log.warn("Invalid value of global property spreadsheetimport.offPeakHours: " + hours);
+			return true;
+		}
+	}
+
+	/**
+	 * @return whether the module is stopping, so that interrupted jobs are queued again
+	 */
+	public static boolean isStopping() {
+		return stopping;
+	}
+
+	/**
+	 * Stop running jobs and wait until they have stopped; called when the module is stopped. Queued
+	 * and interrupted jobs stay in the table and continue when the module is started again.
+	 */
+	public static void shutdown() {
+		Map<String, Lane> stopped;
+		synchronized (ImportJobManager.class) {
+			stopping = true;
+			stopped = lanes;
+			lanes = null;
+			recovered = false;
+		}
+		if (stopped != null) {
+			// running jobs stop at their next row and are queued again
+			for (ImportJob job : jobs.values()) {
+				job.getProgress().cancel();
+			}
+			// finishing jobs need the lock, so wait without holding it
+			for (Lane lane : stopped.values()) {
+				lane.executor.shutdownNow();
+			}
+			// a job still finishing must see that the module is stopping, so it is queued again
+			try {
+				for (Lane lane : stopped.values()) {
+					while (!lane.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+						log.info("Waiting for the jobs of lane " + lane.name + " to stop");
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		jobs.clear();
+		stopping = false;
+	}
+}
@@ -0,0 +1,54 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+
+/**
+ * Scheduled task which starts queued import jobs once they are due, e.g. off-peak jobs when the
+ * night begins, picks up the files dropped into watch folders and deletes old finished jobs and
+ * abandoned uploads.
+ * Registered by the module activator.
+ */
+public class ImportJobTask extends AbstractTask {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportJobTask.class);
+
+	public static final String TASK_NAME = "Spreadsheet Import Jobs";
+
+	/**
+	 * @see org.openmrs.scheduler.tasks.AbstractTask#execute()
+	 */
+	public void execute() {
+		Context.openSession();
+		try {
+			if (!Context.isAuthenticated())
+				authenticate();
+			ImportWatchFolders.scan();
+			ImportJobManager.dispatch();
+			ImportJobManager.purgeFinishedJobs();
+			ImportUpload.purge(ImportJobManager.getRetentionCutoff());
+		}
+		catch (Exception e) {
+			log.error("Cannot dispatch import jobs", e);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+/**
+ * Options of a single import run. The defaults import every row of the sheet.
+ */
+public class ImportOptions {
+
+	boolean rollbackTransaction;
+
+	/** First spreadsheet row to import, numbered as in Excel (header is row 1) */
+	Integer firstRow;
+
+	/** Last spreadsheet row to import, numbered as in Excel */
+	Integer lastRow;
+
+	int shardCount = 1;
+
+	int shardIndex = 0;
+
+	int workers = 1;
+
+	boolean validateFirst;
+
+	boolean virtualThreads;
+
+	int maxConnections;
+
+	boolean skipImportedRows;
+
+	boolean deltaImport;
+
+	boolean continueOnError;
+
+	boolean keyManifest;
+
+	boolean dryRun;
+
+	/** Initial limits of the {@link ImportThrottle} */
+	int rowsPerSecond;
+
+	int dbTimeShare = 100;
+
+	int latencyThresholdMillis;
+
+	/** User recorded as creator of the imported rows, null for the authenticated user */
+	Integer creatorId;
+
+	public ImportOptions() {
+	}
+
+	public ImportOptions(boolean rollbackTransaction) {
+		this.rollbackTransaction = rollbackTransaction;
+	}
+
+	public boolean isRollbackTransaction() {
+		return rollbackTransaction;
+	}
+
+	public void setRollbackTransaction(boolean rollbackTransaction) {
+		this.rollbackTransaction = rollbackTransaction;
+	}
+
+	public Integer getFirstRow() {
+		return firstRow;
+	}
+
+	public void setFirstRow(Integer firstRow) {
+		this.firstRow = firstRow;
+	}
+
+	public Integer getLastRow() {
+		return lastRow;
+	}
+
+	public void setLastRow(Integer lastRow) {
+		this.lastRow = lastRow;
+	}
+
+	/**
+	 * @return number of shards the sheet is split into; rows are assigned to shards by patient
+	 *         identifier, so all rows of one patient land in the same shard
+	 */
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public void setShardCount(int shardCount) {
+		this.shardCount = shardCount;
+	}
+
+	/**
+	 * @return zero-based index of the shard imported by this run
+	 */
+	public int getShardIndex() {
+		return shardIndex;
+	}
+
+	public void setShardIndex(int shardIndex) {
+		this.shardIndex = shardIndex;
+	}
+
+	/**
+	 * @return number of threads importing rows in parallel, each with its own database connection
+	 */
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @return whether every selected row is validated before the first row is imported
+	 */
+	public boolean isValidateFirst() {
+		return validateFirst;
+	}
+
+	public void setValidateFirst(boolean validateFirst) {
+		this.validateFirst = validateFirst;
+	}
+
+	/**
+	 * @return whether to run the import threads as virtual threads; ignored on JDKs without them
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * @return upper bound of database connections used by one import at the same time, 0 for one
+	 *         per thread
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return whether rows imported before with the same template are skipped, see
+	 *         {@link RowLedger}
+	 */
+	public boolean isSkipImportedRows() {
+		return skipImportedRows;
+	}
+
+	public void setSkipImportedRows(boolean skipImportedRows) {
+		this.skipImportedRows = skipImportedRows;
+	}
+
+	/**
+	 * @return whether only rows whose row key is new or whose content changed since the previous
+	 *         import are imported, see {@link RowKeySnapshot}
+	 */
+	public boolean isDeltaImport() {
+		return deltaImport;
+	}
+
+	public void setDeltaImport(boolean deltaImport) {
+		this.deltaImport = deltaImport;
+	}
+
+	/**
+	 * @return whether a row which fails validation or import is rolled back and rejected, while
+	 *         the import goes on with the next row
+	 */
+	public boolean isContinueOnError() {
+		return continueOnError;
+	}
+
+	public void setContinueOnError(boolean continueOnError) {
+		this.continueOnError = continueOnError;
+	}
+
+	/**
+	 * @return whether the keys generated for every row are written to a manifest, see
+	 *         {@link KeyManifestWriter}
+	 */
+	public boolean isKeyManifest() {
+		return keyManifest;
+	}
+
+	public void setKeyManifest(boolean keyManifest) {
+		this.keyManifest = keyManifest;
+	}
+
+	/**
+	 * @return whether rows are only checked and counted, see {@link DryRunValidator}, and nothing
+	 *         is written
+	 */
+	public boolean isDryRun() {
+		return dryRun;
+	}
+
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * @return whether all rows are validated before the first is imported; not when continuing on
+	 *         errors, which rejects the invalid rows instead, nor in a dry run, which validates
+	 *         them on its own
+	 */
+	public boolean isValidatedBeforeImport() {
+		return validateFirst && !continueOnError && !dryRun;
+	}
+
+	/**
+	 * @return rows imported per second at most, 0 for no limit
+	 */
+	public int getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	public void setRowsPerSecond(int rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+	}
+
+	/**
+	 * @return percent of the time each writer may spend in the database, 100 for no limit
+	 */
+	public int getDbTimeShare() {
+		return dbTimeShare;
+	}
+
+	public void setDbTimeShare(int dbTimeShare) {
+		this.dbTimeShare = dbTimeShare;
+	}
+
+	/**
+	 * @return average row latency in milliseconds above which writers back off, 0 for no backoff
+	 */
+	public int getLatencyThresholdMillis() {
+		return latencyThresholdMillis;
+	}
+
+	public void setLatencyThresholdMillis(int latencyThresholdMillis) {
+		this.latencyThresholdMillis = latencyThresholdMillis;
+	}
+
+	public Integer getCreatorId() {
+		return creatorId;
+	}
+
+	public void setCreatorId(Integer creatorId) {
+		this.creatorId = creatorId;
+	}
+
+	/**
+	 * @return the options as a string for storing them with a queued job, see
+	 *         {@link #parse(String)}
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("rollbackTransaction=").append(rollbackTransaction);
+		if (firstRow != null)
+			sb.append(";firstRow=").append(firstRow);
+		if (lastRow != null)
+			sb.append(";lastRow=").append(lastRow);
+		sb.append(";shardCount=").append(shardCount);
+		sb.append(";shardIndex=").append(shardIndex);
+		sb.append(";workers=").append(workers);
+		sb.append(";validateFirst=").append(validateFirst);
+		sb.append(";virtualThreads=").append(virtualThreads);
+		sb.append(";maxConnections=").append(maxConnections);
+		sb.append(";skipImportedRows=").append(skipImportedRows);
+		sb.append(";deltaImport=").append(deltaImport);
+		sb.append(";continueOnError=").append(continueOnError);
+		sb.append(";keyManifest=").append(keyManifest);
+		sb.append(";dryRun=").append(dryRun);
+		sb.append(";rowsPerSecond=").append(rowsPerSecond);
+		sb.append(";dbTimeShare=").append(dbTimeShare);
+		sb.append(";latencyThresholdMillis=").append(latencyThresholdMillis);
+		if (creatorId != null)
+			sb.append(";creatorId=").append(creatorId);
+		return sb.toString();
+	}
+
+	/**
+	 * @param s options as returned by {@link #format()}; unknown names are ignored
+	 */
+	public static ImportOptions parse(String s) {
+		ImportOptions options = new ImportOptions();
+		if (s == null)
+			return options;
+		for (String pair : s.split(";")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0)
+				continue;
+			String name = pair.substring(0, eq).trim();
+			String value = pair.substring(eq + 1).trim();
+			if ("rollbackTransaction".equals(name))
+				options.rollbackTransaction = Boolean.valueOf(value);
+			else if ("firstRow".equals(name))
+				options.firstRow = Integer.valueOf(value);
+			else if ("lastRow".equals(name))
+				options.lastRow = Integer.valueOf(value);
+			else if ("shardCount".equals(name))
+				options.shardCount = Integer.parseInt(value);
+			else if ("shardIndex".equals(name))
+				options.shardIndex = Integer.parseInt(value);
+			else if ("workers".equals(name))
+				options.workers = Integer.parseInt(value);
+			else if ("validateFirst".equals(name))
+				options.validateFirst = Boolean.valueOf(value);
+			else if ("virtualThreads".equals(name))
+				options.virtualThreads = Boolean.valueOf(value);
+			else if ("maxConnections".equals(name))
+				options.maxConnections = Integer.parseInt(value);
+			else if ("skipImportedRows".equals(name))
+				options.skipImportedRows = Boolean.valueOf(value);
+			else if ("deltaImport".equals(name))
+				options.deltaImport = Boolean.valueOf(value);
+			else if ("continueOnError".equals(name))
+				options.continueOnError = Boolean.valueOf(value);
+			else if ("keyManifest".equals(name))
+				options.keyManifest = Boolean.valueOf(value);
+			else if ("dryRun".equals(name))
+				options.dryRun = Boolean.valueOf(value);
+			else if ("rowsPerSecond".equals(name))
+				options.rowsPerSecond = Integer.parseInt(value);
+			else if ("dbTimeShare".equals(name))
+				options.dbTimeShare = Integer.parseInt(value);
+			else if ("latencyThresholdMillis".equals(name))
+				options.latencyThresholdMillis = Integer.parseInt(value);
+			else if ("creatorId".equals(name))
+				options.creatorId = Integer.valueOf(value);
+		}
+		return options;
+	}
+
+	/**
+	 * @return a message describing what is wrong with the options, or null if they are valid
+	 */
+	public String validate() {
+		if (firstRow != null && firstRow < 2)
+			return "first row must be 2 or greater, row 1 is the header row";
+		if (firstRow != null && lastRow != null && lastRow < firstRow)
+			return "last row must not be before first row";
+		if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+			return "shard " + (shardIndex + 1) + " of " + shardCount + " does not exist";
+		if (workers < 1)
+			return "number of workers must be at least 1";
+		return ImportThrottle.checkLimits(rowsPerSecond, dbTimeShare, latencyThresholdMillis);
+	}
+
+	/**
+	 * @param rowNum zero-based sheet row number
+	 */
+	public boolean isBeforeRange(int rowNum) {
+		return firstRow != null && rowNum + 1 < firstRow;
+	}
+
+	/**
+	 * @param rowNum zero-based sheet row number
+	 */
+	public boolean isAfterRange(int rowNum) {
+		return lastRow != null && rowNum + 1 > lastRow;
+	}
+
+	/**
+	 * @param lastRowNum zero-based number of the last row of the sheet, or -1 if not known
+	 * @return the number of rows this run is expected to import, or -1 if not known
+	 */
+	public int estimateRows(int lastRowNum) {
+		if (lastRowNum < 0)
+			return -1;
+		int first = (firstRow == null ? 1 : firstRow - 1);
+		int last = (lastRow == null ? lastRowNum : Math.min(lastRow - 1, lastRowNum));
+		return Math.max(0, last - first + 1) / shardCount;
+	}
+
+	public boolean isSharded() {
+		return shardCount > 1;
+	}
+}
@@ -0,0 +1,705 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader;
+
+/**
+ * Runs an import as stages connected by a ring of preallocated row buffers: a reader thread
+ * decodes rows into free slots, validator threads check them against the database, and writer
+ * threads import them. The calling thread merges the results back in sheet order, notifies the
+ * listener and frees the slots. The reader blocks when all slots are in use, so the ring size
+ * bounds how far decoding can run ahead of the database.
+ * <p>
+ * The reader drops rows outside the requested row range or shard before they take up a slot, and
+ * stops reading at the end of the range. With a {@link RowLedger}, the reader decodes a chunk of
+ * rows, looks them up in the ledger with one query and marks the rows imported before as skipped;
+ * a row the ledger cannot import fails without being validated. Of several equal rows in the
+ * sheet, the writers import one and skip the others; if that one fails, the next is imported
+ * instead. Rows are not validated again if the whole sheet has been validated before the import
+ * started (see {@link SheetValidator}).
+ * <p>
+ * Rows are partitioned onto the writers by patient identifier (see
+ * {@link ImportPlan#getShard(RowBuffer, int)}). Every writer imports its rows in sheet order, so
+ * two rows of the same patient are never imported at the same time and the second one finds the
+ * person created by the first.
+ * <p>
+ * Validators and writers borrow a connection from an {@link ImportConnectionPool} for each row.
+ * With virtual threads (see {@link ImportOptions#isVirtualThreads()}) an import can run hundreds
+ * of writers whose database round trips overlap, while the pool keeps the number of connections
+ * in use within {@link ImportOptions#getMaxConnections()}.
+ * <p>
+ * On the first failure the import stops. With a single writer, rows before the failing one are
+ * imported and rows after it are not, exactly as when rows were processed one at a time. With
+ * several writers, rows of other patients after the failing row may already have been imported
+ * when the failure is noticed. If the options continue on errors, a failing row is rolled back and
+ * rejected instead: the writer writes it to the {@link RejectFileWriter} and records it in the
+ * checkpoint before its next row, so a resumed job does not reject it again; the listener is told,
+ * and the import goes on.
+ */
+public class ImportPipeline {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportPipeline.class);
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	public static final int DEFAULT_VALIDATORS = 2;
+
+	private static final int EMPTY = 0;
+
+	private static final int DECODED = 1;
+
+	private static final int VALIDATED = 2;
+
+	private static final int WRITTEN = 3;
+
+	ImportPlan plan;
+
+	SpreadsheetRowReader reader;
+
+	ImportOptions options;
+
+	RowImportListener listener;
+
+	int validators;
+
+	int writers;
+
+	Integer creatorId;
+
+	ValidationCache cache = new ValidationCache();
+
+	ImportConnectionPool connections;
+
+	ImportProgress progress = new ImportProgress();
+
+	ImportCheckpoint checkpoint;
+
+	RowLedger ledger;
+
+	RejectFileWriter rejectWriter;
+
+	RowBuffer[] slots;
+
+	int[] states;
+
+	/** Writer each slot is assigned to */
+	int[] owners;
+
+	/** Next sequence the reader fills */
+	long readSeq = 0;
+
+	/** Next sequence a validator claims */
+	long validateSeq = 0;
+
+	/** Next sequence merged back and freed */
+	long writeSeq = 0;
+
+	/** Lowest sequence which failed; writers do not import rows after it */
+	long failedSeq = Long.MAX_VALUE;
+
+	boolean readerDone = false;
+
+	boolean aborted = false;
+
+	Exception readerException = null;
+
+	Exception writerException = null;
+
+	final ReentrantLock lock = new ReentrantLock();
+
+	final Condition changed = lock.newCondition();
+
+	PipelineStage readStage;
+
+	PipelineStage validateStage;
+
+	PipelineStage writeStage;
+
+	public ImportPipeline(ImportPlan plan, SpreadsheetRowReader reader, ImportOptions options) {
+		this(plan, reader, options, DEFAULT_CAPACITY, DEFAULT_VALIDATORS);
+	}
+
+	public ImportPipeline(ImportPlan plan, SpreadsheetRowReader reader, ImportOptions options, int capacity,
+	    int validators) {
+		this.plan = plan;
+		this.reader = reader;
+		this.options = options;
+		this.validators = Math.max(1, validators);
+		this.writers = Math.max(1, options.getWorkers());
+
+		// every writer needs room for rows of its own while the others are busy
+		slots = new RowBuffer[Math.max(writers, capacity)];
+		states = new int[slots.length];
+		owners = new int[slots.length];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = plan.createRowBuffer();
+		}
+
+		// by default every validator and writer can hold a connection
+		int poolSize = options.getMaxConnections() > 0 ? options.getMaxConnections() : this.validators + writers;
+		connections = new ImportConnectionPool(poolSize) {
+
+			protected Connection openConnection() throws Exception {
+				return ImportPipeline.this.openConnection();
+			}
+		};
+
+		readStage = new PipelineStage("read", 1);
+		validateStage = new PipelineStage("validate", this.validators);
+		writeStage = new PipelineStage("write", writers);
+	}
+
+	public void setListener(RowImportListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param progress counts the rows read, validated and imported
+	 */
+	public void setProgress(ImportProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @param checkpoint rows it records as imported are skipped, and every imported row is recorded
+	 *            in it
+	 */
+	public void setCheckpoint(ImportCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * @param ledger rows it knows as imported before are skipped, and every imported row is added
+	 *            to it
+	 */
+	public void setLedger(RowLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * @param rejectWriter where rows rejected when continuing on errors are written, may be null
+	 */
+	public void setRejectWriter(RejectFileWriter rejectWriter) {
+		this.rejectWriter = rejectWriter;
+	}
+
+	/**
+	 * Import all rows. Returns when every row has been imported, or throws the exception of the
+	 * first row which failed validation or import. Writers are slowed down by the throttle of the
+	 * progress; when the progress is cancelled, the writers stop before their next row and a
+	 * {@link SpreadsheetImportCancelledException} is thrown.
+	 */
+	public void run() throws Exception {
+		// writers run without the user context of this thread
+		creatorId = options.getCreatorId();
+		if (creatorId == null) {
+			User user = Context.getAuthenticatedUser();
+			creatorId = (user == null ? null : user.getId());
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(1 + validators + writers, ImportThreadFactory.create("stage",
+		    options.isVirtualThreads()));
+		readStage.start();
+		validateStage.start();
+		writeStage.start();
+		try {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					read();
+				}
+			});
+			for (int i = 0; i < validators; i++) {
+				executor.execute(new Runnable() {
+
+					public void run() {
+						validate();
+					}
+				});
+			}
+			for (int i = 0; i < writers; i++) {
+				final int writer = i;
+				executor.execute(new Runnable() {
+
+					public void run() {
+						write(writer);
+					}
+				});
+			}
+			merge();
+		}
+		finally {
+			abort();
+			executor.shutdown();
+			// the reader finishes the row it is decoding before it notices the abort
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				log.debug("Waiting for import pipeline stages to stop");
+			}
+			connections.close();
+			writeStage.stop();
+			if (log.isInfoEnabled()) {
+				for (PipelineStage stage : getStages()) {
+					log.info("Import pipeline " + stage);
+				}
+			}
+		}
+	}
+
+	public List<PipelineStage> getStages() {
+		List<PipelineStage> stages = new ArrayList<PipelineStage>();
+		stages.add(readStage);
+		stages.add(validateStage);
+		stages.add(writeStage);
+		return stages;
+	}
+
+	private void abort() {
+		lock.lock();
+		try {
+			aborted = true;
+			changed.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void read() {
+		// with a ledger, rows are looked up and published a chunk at a time
+		int chunkSize = (ledger == null ? 1 : Math.min(RowLedger.CHUNK_SIZE, slots.length));
+		List<RowBuffer> chunk = new ArrayList<RowBuffer>(chunkSize);
+		int[] chunkOwners = new int[chunkSize];
+		try {
+			boolean end = false;
+			while (!end) {
+				int count = 0;
+				while (count < chunkSize) {
+					RowBuffer slot;
+					long waitStart = System.nanoTime();
+					lock.lock();
+					try {
+						while (readSeq + count - writeSeq >= slots.length && count == 0 && !aborted) {
+							changed.await();
+						}
+						if (aborted)
+							return;
+						// publish the rows so far rather than wait for slots they hold
+						if (readSeq + count - writeSeq >= slots.length)
+							break;
+						slot = slots[(int) ((readSeq + count) % slots.length)];
+					}
+					finally {
+						lock.unlock();
+					}
+					long busyStart = System.nanoTime();
+					readStage.addWait(busyStart - waitStart);
+
+					if (progress.isCancelled())
+						throw new SpreadsheetImportCancelledException();
+					if (!reader.nextRow(slot) || options.isAfterRange(slot.getRowNum())) {
+						end = true;
+						break;
+					}
+					if (!plan.isSelected(slot, options))
+						continue;
+					plan.bind(slot);
+					int owner = plan.getShard(slot, writers);
+					if (checkpoint != null && checkpoint.isImported(slot.getRowNum(), owner))
+						continue;
+					progress.rowRead();
+					chunkOwners[count++] = owner;
+
+					long busyNanos = System.nanoTime() - busyStart;
+					readStage.addBusy(busyNanos);
+					readStage.addRow();
+					progress.getStatistics().addRead(busyNanos);
+				}
+				if (count == 0)
+					continue;
+
+				// only the reader changes readSeq
+				if (ledger != null) {
+					long busyStart = System.nanoTime();
+					chunk.clear();
+					for (int i = 0; i < count; i++) {
+						chunk.add(slots[(int) ((readSeq + i) % slots.length)]);
+					}
+					Connection conn = connections.borrow();
+					try {
+						ledger.filter(conn, chunk);
+					}
+					finally {
+						connections.giveBack(conn);
+					}
+					long busyNanos = System.nanoTime() - busyStart;
+					readStage.addBusy(busyNanos);
+					progress.getStatistics().addMatch(busyNanos);
+				}
+
+				lock.lock();
+				try {
+					for (int i = 0; i < count; i++) {
+						int idx = (int) ((readSeq + i) % slots.length);
+						owners[idx] = chunkOwners[i];
+						states[idx] = DECODED;
+					}
+					readSeq += count;
+					changed.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+		catch (Exception e) {
+			readerException = e;
+		}
+		finally {
+			readStage.stop();
+			lock.lock();
+			try {
+				readerDone = true;
+				changed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void validate() {
+		try {
+			while (true) {
+				long seq;
+				long waitStart = System.nanoTime();
+				lock.lock();
+				try {
+					while (validateSeq >= readSeq && !readerDone && !aborted) {
+						changed.await();
+					}
+					if (aborted || validateSeq >= readSeq)
+						return;
+					seq = validateSeq++;
+				}
+				finally {
+					lock.unlock();
+				}
+				long busyStart = System.nanoTime();
+				validateStage.addWait(busyStart - waitStart);
+
+				int idx = (int) (seq % slots.length);
+				RowBuffer slot = slots[idx];
+				if (slot.getHasData() && slot.getException() == null && !options.isValidatedBeforeImport()) {
+					try {
+						Connection conn = connections.borrow();
+						try {
+							validateRow(conn, slot);
+						}
+						finally {
+							connections.giveBack(conn);
+						}
+						progress.rowValidated();
+					}
+					catch (Exception e) {
+						slot.setException(e);
+					}
+				}
+
+				long busyNanos = System.nanoTime() - busyStart;
+				validateStage.addBusy(busyNanos);
+				validateStage.addRow();
+				progress.getStatistics().addValidate(busyNanos);
+				lock.lock();
+				try {
+					states[idx] = VALIDATED;
+					changed.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			validateStage.stop();
+		}
+	}
+
+	/**
+	 * Import the rows assigned to one writer, in sheet order
+	 */
+	private void write(int writer) {
+		try {
+			long seq = 0;
+			while (true) {
+				int idx;
+				long failedAt;
+				long waitStart = System.nanoTime();
+				lock.lock();
+				try {
+					while (true) {
+						if (aborted)
+							return;
+						// rows already merged cannot belong to this writer any more
+						if (seq < writeSeq)
+							seq = writeSeq;
+						if (seq >= readSeq) {
+							if (readerDone)
+								return;
+						} else {
+							idx = (int) (seq % slots.length);
+							if (owners[idx] != writer) {
+								seq++;
+								continue;
+							}
+							if (states[idx] == VALIDATED)
+								break;
+						}
+						changed.await();
+					}
+					failedAt = failedSeq;
+				}
+				finally {
+					lock.unlock();
+				}
+				long busyStart = System.nanoTime();
+				writeStage.addWait(busyStart - waitStart);
+
+				RowBuffer slot = slots[idx];
+				long pausedNanos = 0;
+				Exception rejectionFailure = null;
+				if (slot.getException() == null && slot.getHasData() && seq < failedAt) {
+					// a cancelled import stops here, before the row's transaction begins
+					if (progress.isCancelled()) {
+						slot.setException(new SpreadsheetImportCancelledException());
+					} else {
+						try {
+							// an equal row imported by now makes this one skipped
+							if (ledger == null || ledger.claim(slot)) {
+								boolean imported = false;
+								try {
+									ImportThrottle throttle = progress.getThrottle();
+									throttle.beforeRow();
+									long importStart = System.nanoTime();
+									Connection conn = connections.borrow();
+									try {
+										slot.setEncounterId(importRow(conn, slot));
+									}
+									catch (Exception e) {
+										// the row was rolled back, its rejection is recorded before the next row
+										if (isRejected(e)) {
+											try {
+												recordRejection(conn, writer, slot, e);
+											}
+											catch (Exception failure) {
+												rejectionFailure = failure;
+											}
+										}
+										throw e;
+									}
+									finally {
+										connections.giveBack(conn);
+									}
+									imported = !options.isRollbackTransaction();
+									long importEnd = System.nanoTime();
+									throttle.afterRow(importEnd - importStart);
+									pausedNanos = (importStart - busyStart) + (System.nanoTime() - importEnd);
+								}
+								finally {
+									if (ledger != null)
+										ledger.release(slot, imported, slot.getEncounterId());
+								}
+							}
+						}
+						catch (Exception e) {
+							slot.setException(e);
+						}
+					}
+				} else if (slot.getException() != null && isRejected(slot.getException()) && seq < failedAt) {
+					// rejected by a validator
+					Connection conn = connections.borrow();
+					try {
+						recordRejection(conn, writer, slot, slot.getException());
+					}
+					catch (Exception failure) {
+						rejectionFailure = failure;
+					}
+					finally {
+						connections.giveBack(conn);
+					}
+				}
+				// a writer which cannot record a rejection stops, so no later row of it is committed
+				if (rejectionFailure != null)
+					throw rejectionFailure;
+
+				writeStage.addWait(pausedNanos);
+				writeStage.addBusy(System.nanoTime() - busyStart - pausedNanos);
+				writeStage.addRow();
+				lock.lock();
+				try {
+					if (slot.getException() != null && seq < failedSeq && !isRejected(slot.getException()))
+						failedSeq = seq;
+					states[idx] = WRITTEN;
+					changed.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+				seq++;
+			}
+		}
+		catch (Exception e) {
+			lock.lock();
+			try {
+				writerException = e;
+				changed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Write a rejected row to the reject file, then record it in the checkpoint. A job stopped in
+	 * between rejects the row again when resumed, which the reject file does not write twice; the
+	 * other order could lose the row.
+	 */
+	private void recordRejection(Connection conn, int writer, RowBuffer row, Exception e) throws Exception {
+		if (rejectWriter != null)
+			rejectWriter.reject(row, SpreadsheetImportUtil.getFailedColumn(e), describeFailure(e));
+		if (checkpoint != null && !options.isRollbackTransaction())
+			checkpoint.recordRejected(conn, writer, row.getRowNum());
+	}
+
+	protected void validateRow(Connection conn, RowBuffer row) throws Exception {
+		DatabaseBackend.validateData(conn, row.getRowData(), cache);
+	}
+
+	protected Connection openConnection() throws Exception {
+		return DatabaseBackend.openConnection();
+	}
+
+	protected String importRow(Connection conn, final RowBuffer row) throws Exception {
+		DatabaseBackend.RowTransactionHook hook = null;
+		if ((checkpoint != null || ledger != null) && !options.isRollbackTransaction()) {
+			final int writer = plan.getShard(row, writers);
+			hook = new DatabaseBackend.RowTransactionHook() {
+
+				public void beforeCommit(Connection conn, String encounterId) throws SQLException {
+					if (checkpoint != null)
+						checkpoint.record(conn, writer, row.getRowNum(), encounterId);
+					if (ledger != null)
+						ledger.record(conn, row, encounterId);
+				}
+			};
+		}
+		// a changed row of a delta import replaces the observations of its encounter
+		if (row.isChanged() && row.getEncounterId() != null)
+			DatabaseBackend.voidObservations(conn, row.getEncounterId(), creatorId);
+		return DatabaseBackend.importData(conn, creatorId, row.getRowData(), plan.getBatchedImports(),
+		    options.isRollbackTransaction(), hook, progress.getStatistics());
+	}
+
+	/**
+	 * Collect the imported rows in sheet order and free their slots
+	 */
+	private void merge() throws Exception {
+		while (true) {
+			int idx;
+			lock.lock();
+			try {
+				while (writerException == null
+				        && !(writeSeq < readSeq && states[(int) (writeSeq % slots.length)] == WRITTEN)
+				        && !(readerDone && writeSeq >= readSeq)) {
+					changed.await();
+				}
+				if (writerException != null)
+					throw writerException;
+				if (writeSeq >= readSeq)
+					break;
+				idx = (int) (writeSeq % slots.length);
+			}
+			finally {
+				lock.unlock();
+			}
+
+			RowBuffer slot = slots[idx];
+			Exception exception = slot.getException();
+			if (exception != null && isRejected(exception)) {
+				progress.rowRejected();
+				if (listener != null)
+					listener.rowFailed(slot.getRowNum(), describeFailure(exception));
+			} else if (exception != null) {
+				if (!(exception instanceof SpreadsheetImportCancelledException)) {
+					progress.rowFailed();
+					if (listener != null)
+						listener.rowFailed(slot.getRowNum(), describeFailure(exception));
+				}
+				throw exception;
+			} else if (slot.getHasData()) {
+				progress.rowImported();
+				if (listener != null)
+					listener.rowImported(slot);
+			} else if (slot.isSkipped()) {
+				progress.rowSkipped();
+				if (listener != null)
+					listener.rowImported(slot);
+			}
+
+			lock.lock();
+			try {
+				states[idx] = EMPTY;
+				writeSeq++;
+				changed.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+
+		if (readerException != null)
+			throw readerException;
+	}
+
+	/**
+	 * @return whether the row which failed with e is rejected while the import goes on
+	 */
+	private boolean isRejected(Exception e) {
+		return options.isContinueOnError() && !(e instanceof SpreadsheetImportCancelledException);
+	}
+
+	private static String describeFailure(Exception e) {
+		String message = SpreadsheetImportUtil.describeError(e);
+		return message == null ? e.toString() : message;
+	}
+}
@@ -0,0 +1,326 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import org.openmrs.module.spreadsheetimport.reader.CellValues;
+
+/**
+ * Everything about an import which depends only on the template and the header row, resolved once
+ * before the first data row is read: the columns in import order, the sheet ordinal of each of
+ * them, the set of ordinals the readers actually have to decode, and the dependencies between
+ * the unique imports of a row.
+ */
+public class ImportPlan {
+
+	SpreadsheetImportTemplate template;
+
+	List<String> columnNames;
+
+	Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData;
+
+	SpreadsheetImportTemplateColumn[] columns;
+
+	int[] ordinals;
+
+	BitSet neededColumns = new BitSet();
+
+	int[] encounterOrdinals;
+
+	int[] rowKeyOrdinals;
+
+	int patientIdentifierOrdinal = -1;
+
+	Map<UniqueImport, Set<UniqueImport>> dependencies = new LinkedHashMap<UniqueImport, Set<UniqueImport>>();
+
+	Set<UniqueImport> batchedImports = new HashSet<UniqueImport>();
+
+	List<String> columnNamesOnlyInTemplate = new Vector<String>();
+
+	List<String> columnNamesOnlyInSheet = new Vector<String>();
+
+	public ImportPlan(SpreadsheetImportTemplate template, List<String> columnNames) {
+		this.template = template;
+		this.columnNames = columnNames;
+
+		// Required column names
+		columnNamesOnlyInTemplate.addAll(template.getColumnNamesAsList());
+		columnNamesOnlyInTemplate.removeAll(columnNames);
+
+		// Extra column names
+		columnNamesOnlyInSheet.addAll(columnNames);
+		columnNamesOnlyInSheet.removeAll(template.getColumnNamesAsList());
+
+		rowData = template.getMapOfUniqueImportToColumnSetSortedByImportIdx();
+
+		List<SpreadsheetImportTemplateColumn> columnList = new ArrayList<SpreadsheetImportTemplateColumn>();
+		for (Set<SpreadsheetImportTemplateColumn> columnSet : rowData.values()) {
+			columnList.addAll(columnSet);
+		}
+		columns = columnList.toArray(new SpreadsheetImportTemplateColumn[columnList.size()]);
+
+		ordinals = new int[columns.length];
+		List<Integer> encounterOrdinalList = new ArrayList<Integer>();
+		BitSet rowKeyColumns = new BitSet();
+		for (int i = 0; i < columns.length; i++) {
+			int idx = columnNames.indexOf(columns[i].getName());
+			ordinals[i] = idx;
+			if (idx >= 0) {
+				neededColumns.set(idx);
+				if ("encounter".equals(columns[i].getTableName()))
+					encounterOrdinalList.add(idx);
+				if (Boolean.TRUE.equals(columns[i].getRowKey()))
+					rowKeyColumns.set(idx);
+				if (patientIdentifierOrdinal < 0 && "patient_identifier.identifier".equals(columns[i].getTableDotColumn()))
+					patientIdentifierOrdinal = idx;
+			}
+		}
+		encounterOrdinals = new int[encounterOrdinalList.size()];
+		for (int i = 0; i < encounterOrdinals.length; i++) {
+			encounterOrdinals[i] = encounterOrdinalList.get(i);
+		}
+		rowKeyOrdinals = new int[rowKeyColumns.cardinality()];
+		int k = 0;
+		for (int idx = rowKeyColumns.nextSetBit(0); idx >= 0; idx = rowKeyColumns.nextSetBit(idx + 1)) {
+			rowKeyOrdinals[k++] = idx;
+		}
+
+		// Dependency graph between unique imports, from the column dependencies
+		Set<UniqueImport> dependedOn = new HashSet<UniqueImport>();
+		for (Map.Entry<UniqueImport, Set<SpreadsheetImportTemplateColumn>> entry : rowData.entrySet()) {
+			Set<UniqueImport> importFirst = new TreeSet<UniqueImport>();
+			for (SpreadsheetImportTemplateColumn column : entry.getValue()) {
+				for (SpreadsheetImportTemplateColumnColumn cc : column.getColumnColumnsImportBefore()) {
+					importFirst.add(new UniqueImport(cc.getColumnImportFirst()));
+				}
+			}
+			importFirst.remove(entry.getKey());
+			dependencies.put(entry.getKey(), importFirst);
+			dependedOn.addAll(importFirst);
+		}
+
+		// Nothing waits for the generated keys of the sinks, so they can be inserted together.
+		// Encounters are returned to the caller and duplicate checks must see the previous
+		// insert, those are left alone.
+		for (Map.Entry<UniqueImport, Set<SpreadsheetImportTemplateColumn>> entry : rowData.entrySet()) {
+			boolean batchable = !dependedOn.contains(entry.getKey()) && !"encounter".equals(entry.getKey().getTableName());
+			for (SpreadsheetImportTemplateColumn column : entry.getValue()) {
+				if (Boolean.TRUE.equals(column.getDisallowDuplicateValue()))
+					batchable = false;
+			}
+			if (batchable)
+				batchedImports.add(entry.getKey());
+		}
+	}
+
+	/**
+	 * Copy the decoded values of a row into the buffer's columns.
+	 *
+	 * @return true if the row has data to import
+	 */
+	public boolean bind(RowBuffer buffer) {
+		SpreadsheetImportTemplateColumn[] bufferColumns = buffer.getColumns();
+		boolean rowHasData = false;
+		for (int i = 0; i < bufferColumns.length; i++) {
+			Object value = buffer.get(ordinals[i]);
+			// check for empty cell (new Encounter)
+			if (value == null) {
+				rowHasData = true;
+				bufferColumns[i].setValue("");
+			} else if (RowBuffer.BLANK.equals(value)) {
+				bufferColumns[i].setValue("");
+			} else {
+				rowHasData = true;
+				bufferColumns[i].setValue(value);
+			}
+			// keys are only set for the imports done for this row
+			bufferColumns[i].setGeneratedKey(null);
+		}
+		buffer.setHasData(rowHasData);
+		return rowHasData;
+	}
+
+	/**
+	 * Make a bound row add to an existing encounter instead of creating one, as if the encounter
+	 * ID had been in the sheet
+	 */
+	public void reuseEncounter(RowBuffer buffer, String encounterId) {
+		for (SpreadsheetImportTemplateColumn column : buffer.getColumns()) {
+			if ("encounter".equals(column.getTableName()))
+				column.setValue(encounterId);
+		}
+	}
+
+	/**
+	 * Assign a decoded row to one of shardCount shards. Rows are keyed by patient identifier, so all
+	 * rows of one patient end up in the same shard whichever node or worker imports it; templates
+	 * without an identifier column fall back to the row number. The hash only depends on the cell
+	 * text, so every importer of the same sheet computes the same assignment.
+	 *
+	 * @return zero-based shard index
+	 */
+	public int getShard(RowBuffer row, int shardCount) {
+		if (shardCount <= 1)
+			return 0;
+		int hash;
+		Object identifier = row.get(patientIdentifierOrdinal);
+		if (identifier == null || RowBuffer.BLANK.equals(identifier)) {
+			hash = row.getRowNum();
+		} else {
+			hash = CellValues.unquote(identifier).trim().hashCode();
+		}
+		return (hash & Integer.MAX_VALUE) % shardCount;
+	}
+
+	/**
+	 * Whether a decoded row belongs to the row range and shard selected by the options. Rows after
+	 * the end of the range are checked separately with {@link ImportOptions#isAfterRange(int)},
+	 * readers stop there.
+	 */
+	public boolean isSelected(RowBuffer row, ImportOptions options) {
+		if (options.isBeforeRange(row.getRowNum()))
+			return false;
+		return !options.isSharded() || getShard(row, options.getShardCount()) == options.getShardIndex();
+	}
+
+	/**
+	 * Allocate a buffer with its own copy of the template columns. Values and generated keys are
+	 * kept on the columns during import, so rows in flight at the same time must not share them.
+	 */
+	public RowBuffer createRowBuffer() {
+		Map<SpreadsheetImportTemplateColumn, SpreadsheetImportTemplateColumn> copies = new IdentityHashMap<SpreadsheetImportTemplateColumn, SpreadsheetImportTemplateColumn>();
+		SpreadsheetImportTemplateColumn[] bufferColumns = new SpreadsheetImportTemplateColumn[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			bufferColumns[i] = copyColumn(columns[i]);
+			copies.put(columns[i], bufferColumns[i]);
+		}
+
+		// Dependencies must point at the copies, that is where generated keys end up
+		for (int i = 0; i < columns.length; i++) {
+			for (SpreadsheetImportTemplateColumnColumn cc : columns[i].getColumnColumnsImportBefore()) {
+				SpreadsheetImportTemplateColumn columnImportFirst = copies.get(cc.getColumnImportFirst());
+				SpreadsheetImportTemplateColumnColumn copy = new SpreadsheetImportTemplateColumnColumn();
+				copy.setId(cc.getId());
+				copy.setColumnName(cc.getColumnName());
+				copy.setColumnImportFirst(columnImportFirst == null ? cc.getColumnImportFirst() : columnImportFirst);
+				copy.setColumnImportNext(bufferColumns[i]);
+				bufferColumns[i].getColumnColumnsImportBefore().add(copy);
+			}
+		}
+
+		Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> bufferRowData = new LinkedHashMap<UniqueImport, Set<SpreadsheetImportTemplateColumn>>();
+		for (UniqueImport uniqueImport : rowData.keySet()) {
+			Set<SpreadsheetImportTemplateColumn> set = new TreeSet<SpreadsheetImportTemplateColumn>();
+			for (SpreadsheetImportTemplateColumn column : rowData.get(uniqueImport)) {
+				set.add(copies.get(column));
+			}
+			bufferRowData.put(uniqueImport, set);
+		}
+
+		return new RowBuffer(columnNames.size(), bufferRowData, bufferColumns);
+	}
+
+	private SpreadsheetImportTemplateColumn copyColumn(SpreadsheetImportTemplateColumn column) {
+		SpreadsheetImportTemplateColumn copy = new SpreadsheetImportTemplateColumn();
+		copy.setId(column.getId());
+		copy.setTemplate(column.getTemplate());
+		copy.setName(column.getName());
+		copy.setTableDotColumn(column.getTableDotColumn());
+		copy.setDatasetIdx(column.getDatasetIdx());
+		copy.setImportIdx(column.getImportIdx());
+		copy.setDisallowDuplicateValue(column.getDisallowDuplicateValue());
+		copy.setRowKey(column.getRowKey());
+		// pre-specified values are only read during import
+		copy.setColumnPrespecifiedValues(column.getColumnPrespecifiedValues());
+		return copy;
+	}
+
+	/**
+	 * @return the unique imports of a row, in import order
+	 */
+	public Set<UniqueImport> getUniqueImports() {
+		return rowData.keySet();
+	}
+
+	public SpreadsheetImportTemplate getTemplate() {
+		return template;
+	}
+
+	public List<String> getColumnNames() {
+		return columnNames;
+	}
+
+	/**
+	 * @return the sheet column ordinals referenced by the template; all other cells can be skipped
+	 */
+	public BitSet getNeededColumns() {
+		return neededColumns;
+	}
+
+	/**
+	 * @return the sheet column ordinals of encounter columns, which receive the generated encounter id
+	 */
+	public int[] getEncounterOrdinals() {
+		return encounterOrdinals;
+	}
+
+	/**
+	 * @return the sheet column ordinals of the row key columns, in sheet order; empty if the
+	 *         template declares no row key
+	 */
+	public int[] getRowKeyOrdinals() {
+		return rowKeyOrdinals;
+	}
+
+	/**
+	 * @return the sheet column ordinal of the patient identifier, or -1 if the template has none
+	 */
+	public int getPatientIdentifierOrdinal() {
+		return patientIdentifierOrdinal;
+	}
+
+	/**
+	 * @return for every unique import of the template, in import order, the unique imports whose
+	 *         generated keys it needs
+	 */
+	public Map<UniqueImport, Set<UniqueImport>> getDependencies() {
+		return dependencies;
+	}
+
+	/**
+	 * @return the unique imports no other unique import depends on, which are inserted together at
+	 *         the end of each row
+	 */
+	public Set<UniqueImport> getBatchedImports() {
+		return batchedImports;
+	}
+
+	public List<String> getColumnNamesOnlyInTemplate() {
+		return columnNamesOnlyInTemplate;
+	}
+
+	public List<String> getColumnNamesOnlyInSheet() {
+		return columnNamesOnlyInSheet;
+	}
+}
@@ -0,0 +1,126 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The first rows of a sheet as the import would see them: the values of the columns the template
+ * refers to, decoded and bound as for an import, and the validation error of each row, if any.
+ * Built by {@link SpreadsheetImportUtil#preview(SpreadsheetImportTemplate,
+ * org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader, int)}.
+ */
+public class ImportPreview {
+
+	/**
+	 * One row of the preview
+	 */
+	public static class Row {
+
+		int rowNum;
+
+		List<String> values;
+
+		String error;
+
+		Row(int rowNum, List<String> values, String error) {
+			this.rowNum = rowNum;
+			this.values = values;
+			this.error = error;
+		}
+
+		/**
+		 * @return the row number as shown by spreadsheet programs, starting at 1 for the header
+		 */
+		public int getRowNum() {
+			return rowNum;
+		}
+
+		public List<String> getValues() {
+			return values;
+		}
+
+		/**
+		 * @return why the row would not be imported, or null if it is valid
+		 */
+		public String getError() {
+			return error;
+		}
+	}
+
+	List<String> columnNames = new ArrayList<String>();
+
+	int[] ordinals = new int[0];
+
+	List<Row> rows = new ArrayList<Row>();
+
+	List<String> messages = new ArrayList<String>();
+
+	long millis;
+
+	/**
+	 * Show the columns the plan needs, in sheet order
+	 */
+	void setColumns(ImportPlan plan) {
+		ordinals = new int[plan.getNeededColumns().cardinality()];
+		int i = 0;
+		for (int idx = plan.getNeededColumns().nextSetBit(0); idx >= 0; idx = plan.getNeededColumns().nextSetBit(idx + 1)) {
+			ordinals[i++] = idx;
+			columnNames.add(plan.getColumnNames().get(idx));
+		}
+	}
+
+	void addRow(RowBuffer row, String error) {
+		List<String> values = new ArrayList<String>(ordinals.length);
+		for (int idx : ordinals) {
+			values.add(CsvFileWriter.toText(row.get(idx)));
+		}
+		rows.add(new Row(row.getRowNum() + 1, values, error));
+	}
+
+	public List<String> getColumnNames() {
+		return columnNames;
+	}
+
+	public List<Row> getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the number of rows with a validation error
+	 */
+	public int getErrorCount() {
+		int count = 0;
+		for (Row row : rows) {
+			if (row.getError() != null)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return problems with the sheet as a whole, such as missing columns
+	 */
+	public List<String> getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return how long reading and validating the rows took
+	 */
+	public long getMillis() {
+		return millis;
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a running import. The import threads only increment atomic counters, so reading the
+ * progress from another thread, e.g. for a progress request, never blocks the import. Other
+ * threads can also cancel the import and adjust its {@link ImportThrottle} through the progress.
+ */
+public class ImportProgress {
+
+	public static final String PHASE_WAITING = "waiting";
+
+	public static final String PHASE_VALIDATING = "validating";
+
+	public static final String PHASE_IMPORTING = "importing";
+
+	public static final String PHASE_DONE = "done";
+
+	volatile String phase = PHASE_WAITING;
+
+	volatile long phaseStartMillis = System.currentTimeMillis();
+
+	/** Number of rows selected for import, -1 if not known */
+	volatile long totalRows = -1;
+
+	final AtomicLong rowsRead = new AtomicLong();
+
+	final AtomicLong rowsValidated = new AtomicLong();
+
+	final AtomicLong rowsImported = new AtomicLong();
+
+	final AtomicLong rowsSkipped = new AtomicLong();
+
+	final AtomicLong rowsRejected = new AtomicLong();
+
+	final AtomicLong rowsFailed = new AtomicLong();
+
+	volatile boolean cancelled;
+
+	final ImportThrottle throttle = new ImportThrottle();
+
+	final ImportStatistics statistics = new ImportStatistics();
+
+	/**
+	 * Start a phase; the throughput and the remaining time are those of the current phase
+	 */
+	public void startPhase(String phase) {
+		this.phaseStartMillis = System.currentTimeMillis();
+		this.phase = phase;
+	}
+
+	/**
+	 * Ask the import to stop; it stops at the next row boundary, rows already imported stay
+	 */
+	public void cancel() {
+		cancelled = true;
+		throttle.release();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public ImportThrottle getThrottle() {
+		return throttle;
+	}
+
+	public ImportStatistics getStatistics() {
+		return statistics;
+	}
+
+	public String getPhase() {
+		return phase;
+	}
+
+	public long getTotalRows() {
+		return totalRows;
+	}
+
+	public void setTotalRows(long totalRows) {
+		this.totalRows = totalRows;
+	}
+
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+
+	public long getRowsValidated() {
+		return rowsValidated.get();
+	}
+
+	public long getRowsImported() {
+		return rowsImported.get();
+	}
+
+	/**
+	 * @return rows skipped because they had been imported before
+	 */
+	public long getRowsSkipped() {
+		return rowsSkipped.get();
+	}
+
+	/**
+	 * @return rows which failed and were rejected, when continuing on errors
+	 */
+	public long getRowsRejected() {
+		return rowsRejected.get();
+	}
+
+	/**
+	 * @return rows which failed validation or import and stopped the import
+	 */
+	public long getRowsFailed() {
+		return rowsFailed.get();
+	}
+
+	public void rowRead() {
+		rowsRead.incrementAndGet();
+	}
+
+	public void rowValidated() {
+		rowsValidated.incrementAndGet();
+	}
+
+	public void rowImported() {
+		rowsImported.incrementAndGet();
+	}
+
+	public void rowSkipped() {
+		rowsSkipped.incrementAndGet();
+	}
+
+	public void rowRejected() {
+		rowsRejected.incrementAndGet();
+	}
+
+	public void rowFailed() {
+		rowsFailed.incrementAndGet();
+	}
+
+	/**
+	 * @return rows done in the current phase
+	 */
+	private long getPhaseRows() {
+		if (PHASE_VALIDATING.equals(phase))
+			return rowsValidated.get();
+		if (PHASE_IMPORTING.equals(phase))
+			return rowsImported.get() + rowsSkipped.get() + rowsRejected.get();
+		return 0;
+	}
+
+	/**
+	 * @return rows per second in the current phase
+	 */
+	public double getRowsPerSecond() {
+		long millis = System.currentTimeMillis() - phaseStartMillis;
+		return millis <= 0 ? 0 : getPhaseRows() * 1000.0 / millis;
+	}
+
+	/**
+	 * @return estimated seconds until the current phase is done, or -1 if not known
+	 */
+	public long getEtaSeconds() {
+		long rows = getPhaseRows();
+		double rate = getRowsPerSecond();
+		if (totalRows < 0 || rate <= 0)
+			return -1;
+		return (long) Math.ceil(Math.max(0, totalRows - rows) / rate);
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of an import started through
+ * {@link org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService}, which runs on a
+ * thread of its own. It reports progress while the import runs, and collects the messages of the
+ * import and the outcome of every row, in sheet order. Outcomes are kept in memory until the handle
+ * is dropped; callers polling a long import can fetch only the outcomes added since their last
+ * call with {@link #getOutcomes(int)}.
+ */
+public class ImportResult implements RowImportListener {
+
+	final ImportProgress progress = new ImportProgress();
+
+	final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+	final List<RowOutcome> outcomes = Collections.synchronizedList(new ArrayList<RowOutcome>());
+
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile boolean succeeded;
+
+	volatile File resultFile;
+
+	volatile File rejectFile;
+
+	volatile File keyManifestFile;
+
+	private volatile boolean discardFiles = false;
+
+	public ImportProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @return the messages of the import so far
+	 */
+	public List<String> getMessages() {
+		synchronized (messages) {
+			return new ArrayList<String>(messages);
+		}
+	}
+
+	/**
+	 * @return the outcomes of all rows so far
+	 */
+	public List<RowOutcome> getOutcomes() {
+		return getOutcomes(0);
+	}
+
+	/**
+	 * @param from number of outcomes already fetched
+	 * @return the outcomes added after the first from ones
+	 */
+	public List<RowOutcome> getOutcomes(int from) {
+		synchronized (outcomes) {
+			if (from >= outcomes.size())
+				return new ArrayList<RowOutcome>();
+			return new ArrayList<RowOutcome>(outcomes.subList(from, outcomes.size()));
+		}
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * @return whether the import is done and all its rows were imported or skipped
+	 */
+	public boolean isSucceeded() {
+		return succeeded;
+	}
+
+	/**
+	 * @return the CSV file of the imported rows with their generated keys, for imports of spooled
+	 *         files, or null; the caller deletes it when done with it
+	 */
+	public File getResultFile() {
+		return resultFile;
+	}
+
+	/**
+	 * @return the CSV file of the rows rejected by an import of a .xls or .xlsx file which
+	 *         continued on errors, or null; the caller deletes it when done with it
+	 */
+	public File getRejectFile() {
+		return rejectFile;
+	}
+
+	/**
+	 * @return the manifest of the keys generated for every row, if the options asked for one, or
+	 *         null; the caller deletes it when done with it
+	 */
+	public File getKeyManifestFile() {
+		return keyManifestFile;
+	}
+
+	/**
+	 * Delete the result, reject and key manifest files when the import is done, or right away if it is, for
+	 * callers which do not use them
+	 */
+	public void discardFiles() {
+		discardFiles = true;
+		if (isDone())
+			deleteFiles();
+	}
+
+	/**
+	 * Wait until the import is done
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+	/**
+	 * @return whether the import is done
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return done.await(timeout, unit);
+	}
+
+	/**
+	 * Stop the import before its next row; rows already imported stay imported
+	 */
+	public void cancel() {
+		progress.cancel();
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.RowImportListener#rowImported(org.openmrs.module.spreadsheetimport.RowBuffer)
+	 */
+	public void rowImported(RowBuffer row) {
+		outcomes.add(new RowOutcome(row.getRowNum(), row.isSkipped() ? RowOutcome.SKIPPED : RowOutcome.IMPORTED, row
+		        .getEncounterId(), null));
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.RowImportListener#rowFailed(int, java.lang.String)
+	 */
+	public void rowFailed(int rowNum, String message) {
+		outcomes.add(new RowOutcome(rowNum, RowOutcome.FAILED, null, message));
+	}
+
+	void finish(boolean succeeded) {
+		this.succeeded = succeeded;
+		done.countDown();
+		// after counting down, so either this or discardFiles sees the other
+		if (discardFiles)
+			deleteFiles();
+	}
+
+	private void deleteFiles() {
+		if (resultFile != null)
+			resultFile.delete();
+		if (rejectFile != null)
+			rejectFile.delete();
+		if (keyManifestFile != null)
+			keyManifestFile.delete();
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The record of one import, stored in the spreadsheetimport_run table when the import is done: the
+ * rows it read and what became of them, the rows it inserted into each table and the time spent in
+ * each stage, see {@link ImportStatistics}. Runs are compared across versions and sites, so the
+ * record is only written once, from the counters of the import.
+ */
+public class ImportRun {
+
+	public static final String OUTCOME_SUCCEEDED = "succeeded";
+
+	public static final String OUTCOME_FAILED = "failed";
+
+	public static final String OUTCOME_CANCELLED = "cancelled";
+
+	Integer id;
+
+	Integer templateId;
+
+	String templateName;
+
+	Integer creatorId;
+
+	/** Hex MD5 of the imported file, null for rows which were not read from a file */
+	String fileHash;
+
+	String outcome;
+
+	Date started;
+
+	Date finished;
+
+	long rowsRead;
+
+	long rowsValidated;
+
+	long rowsImported;
+
+	long rowsSkipped;
+
+	long rowsRejected;
+
+	long rowsFailed;
+
+	Map<String, Long> insertedRows = new TreeMap<String, Long>();
+
+	long readMillis;
+
+	long validateMillis;
+
+	long matchMillis;
+
+	long insertMillis;
+
+	long commitMillis;
+
+	/** For Hibernate */
+	public ImportRun() {
+	}
+
+	/**
+	 * Record an import which is done
+	 * 
+	 * @param started when the import started
+	 * @param succeeded whether the import succeeded
+	 */
+	public ImportRun(SpreadsheetImportTemplate template, ImportOptions options, ImportProgress progress, String fileHash,
+	    Date started, boolean succeeded) {
+		this.templateId = template.getId();
+		this.templateName = template.getName();
+		this.creatorId = options.getCreatorId();
+		this.fileHash = fileHash;
+		this.outcome = succeeded ? OUTCOME_SUCCEEDED : progress.isCancelled() ? OUTCOME_CANCELLED : OUTCOME_FAILED;
+		this.started = started;
+		this.finished = new Date();
+		this.rowsRead = progress.getRowsRead();
+		this.rowsValidated = progress.getRowsValidated();
+		this.rowsImported = progress.getRowsImported();
+		this.rowsSkipped = progress.getRowsSkipped();
+		this.rowsRejected = progress.getRowsRejected();
+		this.rowsFailed = progress.getRowsFailed();
+		ImportStatistics statistics = progress.getStatistics();
+		this.insertedRows = statistics.getInsertedRows();
+		this.readMillis = statistics.getReadMillis();
+		this.validateMillis = statistics.getValidateMillis();
+		this.matchMillis = statistics.getMatchMillis();
+		this.insertMillis = statistics.getInsertMillis();
+		this.commitMillis = statistics.getCommitMillis();
+	}
+
+	/**
+	 * @return the time from start to end of the import
+	 */
+	public long getElapsedMillis() {
+		return started == null || finished == null ? 0 : finished.getTime() - started.getTime();
+	}
+
+	/**
+	 * @return rows imported per second of the whole import
+	 */
+	public long getRowsPerSecond() {
+		long millis = getElapsedMillis();
+		return millis <= 0 ? 0 : rowsImported * 1000 / millis;
+	}
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public Integer getTemplateId() {
+		return templateId;
+	}
+
+	public void setTemplateId(Integer templateId) {
+		this.templateId = templateId;
+	}
+
+	public String getTemplateName() {
+		return templateName;
+	}
+
+	public void setTemplateName(String templateName) {
+		this.templateName = templateName;
+	}
+
+	public Integer getCreatorId() {
+		return creatorId;
+	}
+
+	public void setCreatorId(Integer creatorId) {
+		this.creatorId = creatorId;
+	}
+
+	public String getFileHash() {
+		return fileHash;
+	}
+
+	public void setFileHash(String fileHash) {
+		this.fileHash = fileHash;
+	}
+
+	public String getOutcome() {
+		return outcome;
+	}
+
+	public void setOutcome(String outcome) {
+		this.outcome = outcome;
+	}
+
+	public Date getStarted() {
+		return started;
+	}
+
+	public void setStarted(Date started) {
+		this.started = started;
+	}
+
+	public Date getFinished() {
+		return finished;
+	}
+
+	public void setFinished(Date finished) {
+		this.finished = finished;
+	}
+
+	public long getRowsRead() {
+		return rowsRead;
+	}
+
+	public void setRowsRead(long rowsRead) {
+		this.rowsRead = rowsRead;
+	}
+
+	public long getRowsValidated() {
+		return rowsValidated;
+	}
+
+	public void setRowsValidated(long rowsValidated) {
+		this.rowsValidated = rowsValidated;
+	}
+
+	public long getRowsImported() {
+		return rowsImported;
+	}
+
+	public void setRowsImported(long rowsImported) {
+		this.rowsImported = rowsImported;
+	}
+
+	public long getRowsSkipped() {
+		return rowsSkipped;
+	}
+
+	public void setRowsSkipped(long rowsSkipped) {
+		this.rowsSkipped = rowsSkipped;
+	}
+
+	public long getRowsRejected() {
+		return rowsRejected;
+	}
+
+	public void setRowsRejected(long rowsRejected) {
+		this.rowsRejected = rowsRejected;
+	}
+
+	public long getRowsFailed() {
+		return rowsFailed;
+	}
+
+	public void setRowsFailed(long rowsFailed) {
+		this.rowsFailed = rowsFailed;
+	}
+
+	/**
+	 * @return rows inserted per table, by table name
+	 */
+	public Map<String, Long> getInsertedRows() {
+		return insertedRows;
+	}
+
+	/**
+	 * @return the rows inserted per table as "table=rows,...", as stored
+	 */
+	public String getInsertedRowsText() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> entry : insertedRows.entrySet()) {
+			if (sb.length() != 0)
+				sb.append(',');
+			sb.append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	public void setInsertedRowsText(String insertedRowsText) {
+		insertedRows.clear();
+		if (insertedRowsText == null || insertedRowsText.length() == 0)
+			return;
+		for (String entry : insertedRowsText.split(",")) {
+			int eq = entry.indexOf('=');
+			if (eq > 0)
+				insertedRows.put(entry.substring(0, eq), Long.valueOf(entry.substring(eq + 1)));
+		}
+	}
+
+	public long getReadMillis() {
+		return readMillis;
+	}
+
+	public void setReadMillis(long readMillis) {
+		this.readMillis = readMillis;
+	}
+
+	public long getValidateMillis() {
+		return validateMillis;
+	}
+
+	public void setValidateMillis(long validateMillis) {
+		this.validateMillis = validateMillis;
+	}
+
+	public long getMatchMillis() {
+		return matchMillis;
+	}
+
+	public void setMatchMillis(long matchMillis) {
+		this.matchMillis = matchMillis;
+	}
+
+	public long getInsertMillis() {
+		return insertMillis;
+	}
+
+	public void setInsertMillis(long insertMillis) {
+		this.insertMillis = insertMillis;
+	}
+
+	public long getCommitMillis() {
+		return commitMillis;
+	}
+
+	public void setCommitMillis(long commitMillis) {
+		this.commitMillis = commitMillis;
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time of an import goes and what it inserted, kept in memory while the import runs and
+ * written to an {@link ImportRun} when it is done. Like {@link ImportProgress}, the import threads
+ * only add to atomic counters. The time of a stage run by several threads is the sum over its
+ * threads, so it can be longer than the import took.
+ * <ul>
+ * <li>read: decoding and binding rows</li>
+ * <li>validate: checking rows against the database</li>
+ * <li>match: looking up rows imported before and existing patients and persons</li>
+ * <li>insert: the inserts of rows, up to their commit</li>
+ * <li>commit: committing or rolling back the transactions of rows</li>
+ * </ul>
+ */
+public class ImportStatistics {
+
+	final AtomicLong readNanos = new AtomicLong();
+
+	final AtomicLong validateNanos = new AtomicLong();
+
+	final AtomicLong matchNanos = new AtomicLong();
+
+	final AtomicLong insertNanos = new AtomicLong();
+
+	final AtomicLong commitNanos = new AtomicLong();
+
+	/** Rows inserted into each table by committed row transactions */
+	final ConcurrentMap<String, AtomicLong> insertedRows = new ConcurrentHashMap<String, AtomicLong>();
+
+	public void addRead(long nanos) {
+		readNanos.addAndGet(nanos);
+	}
+
+	public void addValidate(long nanos) {
+		validateNanos.addAndGet(nanos);
+	}
+
+	public void addMatch(long nanos) {
+		matchNanos.addAndGet(nanos);
+	}
+
+	public void addInsert(long nanos) {
+		insertNanos.addAndGet(nanos);
+	}
+
+	public void addCommit(long nanos) {
+		commitNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Count the rows a committed row transaction inserted
+	 * 
+	 * @param counts rows inserted per table
+	 */
+	public void addInserted(Map<String, Integer> counts) {
+		for (Map.Entry<String, Integer> count : counts.entrySet()) {
+			AtomicLong rows = insertedRows.get(count.getKey());
+			if (rows == null) {
+				AtomicLong added = new AtomicLong();
+				rows = insertedRows.putIfAbsent(count.getKey(), added);
+				if (rows == null)
+					rows = added;
+			}
+			rows.addAndGet(count.getValue());
+		}
+	}
+
+	public long getReadMillis() {
+		return readNanos.get() / 1000000;
+	}
+
+	public long getValidateMillis() {
+		return validateNanos.get() / 1000000;
+	}
+
+	public long getMatchMillis() {
+		return matchNanos.get() / 1000000;
+	}
+
+	public long getInsertMillis() {
+		return insertNanos.get() / 1000000;
+	}
+
+	public long getCommitMillis() {
+		return commitNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return rows inserted per table, by table name
+	 */
+	public Map<String, Long> getInsertedRows() {
+		Map<String, Long> rows = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : insertedRows.entrySet()) {
+			rows.put(entry.getKey(), entry.getValue().get());
+		}
+		return rows;
+	}
+}
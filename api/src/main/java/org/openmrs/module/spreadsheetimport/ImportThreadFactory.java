@@ -0,0 +1,86 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Names the daemon threads of one import, e.g. "spreadsheetimport-3-stage-2". On a JDK with
+ * virtual threads, {@link #create(String, boolean)} can hand out virtual threads instead; the
+ * module is built for older JDKs, so they are created through reflection.
+ */
+class ImportThreadFactory implements ThreadFactory {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportThreadFactory.class);
+
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final int pool = poolNumber.incrementAndGet();
+
+	private final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final String role;
+
+	ImportThreadFactory(String role) {
+		this.role = role;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, "spreadsheetimport-" + pool + "-" + role + "-" + threadNumber.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * @param virtual whether to use virtual threads if the JDK has them
+	 * @return a factory of virtual threads, or of platform threads if virtual is false or not
+	 *         supported
+	 */
+	static ThreadFactory create(String role, boolean virtual) {
+		if (virtual) {
+			ThreadFactory factory = newVirtualThreadFactory("spreadsheetimport-" + role + "-");
+			if (factory != null)
+				return factory;
+		}
+		return new ImportThreadFactory(role);
+	}
+
+	public static boolean isVirtualThreadSupported() {
+		return newVirtualThreadFactory("") != null;
+	}
+
+	/**
+	 * Thread.ofVirtual().name(prefix, 1).factory()
+	 */
+	private static ThreadFactory newVirtualThreadFactory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method name = builderClass.getMethod("name", String.class, long.class);
+			builder = name.invoke(builder, prefix, Long.valueOf(1));
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		}
+		catch (Exception e) {
+			if (log.isDebugEnabled())
+				log.debug("Virtual threads not available: " + e);
+			return null;
+		}
+	}
+}
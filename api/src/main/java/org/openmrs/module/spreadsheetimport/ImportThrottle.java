@@ -0,0 +1,192 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+/**
+ * Slows the writers of an import down, so that a large import leaves the database usable for
+ * everybody else. Three limits can be combined, and changed while the import runs:
+ * <ul>
+ * <li>rows per second, over all writers;</li>
+ * <li>the share of a writer's time spent in the database, in percent: after a row which took d
+ * in the database the writer pauses d * (100 - share) / share;</li>
+ * <li>a latency threshold: while the average time of a row in the database is above it, the
+ * writers back off with a pause which doubles with every row, up to {@link #MAX_BACKOFF_MILLIS},
+ * and halves again once the database is fast enough.</li>
+ * </ul>
+ * Pauses end early when the throttle is released, e.g. because the import is cancelled.
+ */
+public class ImportThrottle {
+
+	public static final long MIN_BACKOFF_MILLIS = 10;
+
+	public static final long MAX_BACKOFF_MILLIS = 5000;
+
+	/** Weight of the latest row in the average latency */
+	private static final double LATENCY_WEIGHT = 0.2;
+
+	/** Rows per second over all writers, 0 for no limit */
+	volatile int rowsPerSecond;
+
+	/** Percent of the time a writer may spend in the database, 100 for no limit */
+	volatile int dbTimeShare = 100;
+
+	/** Average row latency above which writers back off, 0 for no backoff */
+	volatile int latencyThresholdMillis;
+
+	volatile boolean released;
+
+	/** Counts the changes of the limits, which end the current pauses */
+	private int changes;
+
+	/** When the next row may start, for the rows per second limit */
+	private long nextRowNanos;
+
+	private double averageLatencyMillis;
+
+	private long backoffMillis;
+
+	/**
+	 * @return a message describing the invalid limit, or null if the limits are valid
+	 */
+	public static String checkLimits(int rowsPerSecond, int dbTimeShare, int latencyThresholdMillis) {
+		if (rowsPerSecond < 0)
+			return "rows per second must not be negative";
+		if (dbTimeShare < 1 || dbTimeShare > 100)
+			return "database time share must be between 1 and 100 percent";
+		if (latencyThresholdMillis < 0)
+			return "latency threshold must not be negative";
+		return null;
+	}
+
+	/**
+	 * Take the limits from the options of an import
+	 */
+	public void setLimits(ImportOptions options) {
+		setRowsPerSecond(options.getRowsPerSecond());
+		setDbTimeShare(options.getDbTimeShare());
+		setLatencyThresholdMillis(options.getLatencyThresholdMillis());
+	}
+
+	/**
+	 * Wait until the next row may start under the rows per second limit
+	 */
+	public void beforeRow() throws InterruptedException {
+		int limit = rowsPerSecond;
+		if (limit <= 0)
+			return;
+		long interval = 1000000000L / limit;
+		long now = System.nanoTime();
+		long start;
+		synchronized (this) {
+			start = Math.max(nextRowNanos, now);
+			nextRowNanos = start + interval;
+		}
+		pause((start - now) / 1000000L);
+	}
+
+	/**
+	 * Pause after a row for the time share limit and the latency backoff
+	 *
+	 * @param nanos time the row spent in the database
+	 */
+	public void afterRow(long nanos) throws InterruptedException {
+		double millis = nanos / 1000000.0;
+		long pause = 0;
+		int share = dbTimeShare;
+		if (share > 0 && share < 100)
+			pause = (long) (millis * (100 - share) / share);
+
+		long threshold = latencyThresholdMillis;
+		synchronized (this) {
+			averageLatencyMillis = (averageLatencyMillis == 0 ? millis : averageLatencyMillis
+			        + LATENCY_WEIGHT * (millis - averageLatencyMillis));
+			if (threshold > 0 && averageLatencyMillis > threshold)
+				backoffMillis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, backoffMillis * 2));
+			else
+				backoffMillis = (backoffMillis / 2 < MIN_BACKOFF_MILLIS ? 0 : backoffMillis / 2);
+			pause += backoffMillis;
+		}
+		pause(pause);
+	}
+
+	/**
+	 * Sleep, unless the throttle is released or its limits change
+	 */
+	private synchronized void pause(long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		long left = millis;
+		int seen = changes;
+		while (left > 0 && !released && changes == seen) {
+			wait(left);
+			left = end - System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * End all pauses now and from now on
+	 */
+	public synchronized void release() {
+		released = true;
+		notifyAll();
+	}
+
+	public int getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	public synchronized void setRowsPerSecond(int rowsPerSecond) {
+		this.rowsPerSecond = rowsPerSecond;
+		nextRowNanos = 0;
+		changed();
+	}
+
+	public int getDbTimeShare() {
+		return dbTimeShare;
+	}
+
+	public synchronized void setDbTimeShare(int dbTimeShare) {
+		this.dbTimeShare = dbTimeShare;
+		changed();
+	}
+
+	public int getLatencyThresholdMillis() {
+		return latencyThresholdMillis;
+	}
+
+	public synchronized void setLatencyThresholdMillis(int latencyThresholdMillis) {
+		this.latencyThresholdMillis = latencyThresholdMillis;
+		if (latencyThresholdMillis <= 0)
+			backoffMillis = 0;
+		changed();
+	}
+
+	private void changed() {
+		changes++;
+		notifyAll();
+	}
+
+	/**
+	 * @return the average time of a row in the database, in milliseconds
+	 */
+	public synchronized double getAverageLatencyMillis() {
+		return averageLatencyMillis;
+	}
+
+	/**
+	 * @return the current backoff pause after each row, in milliseconds
+	 */
+	public synchronized long getBackoffMillis() {
+		return backoffMillis;
+	}
+}
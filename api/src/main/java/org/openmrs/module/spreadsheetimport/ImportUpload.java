@@ -0,0 +1,318 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A file uploaded in chunks, so that an upload over a bad connection can carry on where it broke
+ * off instead of starting over. The client declares the length and checksum of the file, then
+ * sends chunks at increasing offsets; each chunk is appended to a part file in the spool directory.
+ * If a chunk breaks off, the client asks for the offset reached and sends the rest from there.
+ * Once all bytes are in and the checksum matches, the file is claimed as the spool file of an
+ * import job.
+ * <p>
+ * The part file and a properties file describing it are all the state there is, so uploads survive
+ * a restart. Uploads not touched for the job retention time are deleted by {@link ImportJobTask}.
+ */
+public class ImportUpload {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportUpload.class);
+
+	public static final String DIRECTORY = "uploads";
+
+	private static final int BUFFER_SIZE = 65536;
+
+	/** Uploads with a chunk being written, which take no other chunk meanwhile */
+	private static final ConcurrentMap<String, Boolean> writing = new ConcurrentHashMap<String, Boolean>();
+
+	String id;
+
+	String name;
+
+	long length;
+
+	/** Hex MD5 or SHA-256 of the whole file, told apart by length */
+	String checksum;
+
+	Integer ownerId;
+
+	Date created;
+
+	private ImportUpload() {
+	}
+
+	/**
+	 * Start an upload
+	 *
+	 * @param name the name of the file, for the user
+	 * @param length the length of the file in bytes
+	 * @param checksum hex MD5 or SHA-256 of the file
+	 * @param ownerId the user uploading, who alone may append to it or import it
+	 */
+	public static ImportUpload create(String name, long length, String checksum, Integer ownerId) throws IOException {
+		if (length <= 0)
+			throw new IllegalArgumentException("length must be positive");
+		if (getAlgorithm(checksum) == null)
+			throw new IllegalArgumentException("checksum must be a hex MD5 or SHA-256");
+		ImportUpload upload = new ImportUpload();
+		upload.id = UUID.randomUUID().toString();
+		upload.name = name;
+		upload.length = length;
+		upload.checksum = checksum.toLowerCase();
+		upload.ownerId = ownerId;
+		upload.created = new Date();
+		upload.getPartFile().createNewFile();
+		upload.save();
+		return upload;
+	}
+
+	/**
+	 * @return the upload, or null if there is none with this id
+	 */
+	public static ImportUpload get(String id) {
+		// the id becomes a file name, so only accept what create hands out
+		if (id == null || !id.matches("[0-9a-f-]{36}"))
+			return null;
+		File file = new File(getDirectory(), id + ".properties");
+		if (!file.exists())
+			return null;
+		Properties properties = new Properties();
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				properties.load(is);
+			}
+			finally {
+				is.close();
+			}
+			ImportUpload upload = new ImportUpload();
+			upload.id = id;
+			upload.name = properties.getProperty("name");
+			upload.length = Long.parseLong(properties.getProperty("length"));
+			upload.checksum = properties.getProperty("checksum");
+			String owner = properties.getProperty("owner");
+			upload.ownerId = (owner == null ? null : Integer.valueOf(owner));
+			upload.created = new Date(Long.parseLong(properties.getProperty("created")));
+			return upload;
+		}
+		catch (Exception e) {
+			log.warn("Cannot read upload " + id, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Delete the uploads which have not received a chunk since the cutoff
+	 */
+	public static void purge(Date cutoff) {
+		File[] files = getDirectory().listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (!file.getName().endsWith(".properties") || file.lastModified() >= cutoff.getTime())
+				continue;
+			String id = file.getName().substring(0, file.getName().length() - ".properties".length());
+			ImportUpload upload = get(id);
+			if (upload != null && upload.getPartFile().lastModified() < cutoff.getTime()) {
+				if (log.isInfoEnabled())
+					log.info("Deleting stale upload " + id + " of " + upload.name);
+				upload.delete();
+			}
+		}
+	}
+
+	public static File getDirectory() {
+		File dir = new File(ImportJobManager.getSpoolDirectory(), DIRECTORY);
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static String getAlgorithm(String checksum) {
+		if (checksum == null || !checksum.matches("[0-9a-fA-F]+"))
+			return null;
+		if (checksum.length() == 32)
+			return "MD5";
+		if (checksum.length() == 64)
+			return "SHA-256";
+		return null;
+	}
+
+	/**
+	 * Append a chunk read from a stream; if the stream breaks off, the bytes received so far are
+	 * kept and {@link #getOffset()} tells where to carry on
+	 *
+	 * @param offset where the chunk starts in the file, which must be the offset reached
+	 * @return the offset reached, or -1 if offset is not the offset reached or another chunk of
+	 *         this upload is being written
+	 * @throws IOException if reading the chunk failed, or the chunk goes past the declared length
+	 */
+	public long append(long offset, InputStream in) throws IOException {
+		if (writing.putIfAbsent(id, Boolean.TRUE) != null)
+			return -1;
+		try {
+			File part = getPartFile();
+			if (offset != part.length())
+				return -1;
+			long left = length - offset;
+			byte[] buffer = new byte[BUFFER_SIZE];
+			OutputStream out = new FileOutputStream(part, true);
+			try {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					if (n > left) {
+						out.write(buffer, 0, (int) left);
+						throw new IOException("chunk goes past the length of the upload, " + length + " bytes");
+					}
+					out.write(buffer, 0, n);
+					left -= n;
+				}
+			}
+			finally {
+				out.close();
+			}
+			return part.length();
+		}
+		finally {
+			writing.remove(id);
+		}
+	}
+
+	/**
+	 * Check that all bytes are in and match the checksum; a complete upload which does not match
+	 * is deleted, as resuming cannot repair it
+	 *
+	 * @return null if the upload can be imported, otherwise why not
+	 */
+	public String verify() throws IOException {
+		File part = getPartFile();
+		if (part.length() < length)
+			return "upload is incomplete, " + part.length() + " of " + length + " bytes received";
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(getAlgorithm(checksum));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream in = new FileInputStream(part);
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, n);
+			}
+		}
+		finally {
+			in.close();
+		}
+		String actual = RowLedger.toHex(digest.digest());
+		if (!actual.equals(checksum)) {
+			delete();
+			return "checksum of the upload is " + actual + ", not " + checksum + "; the upload has been deleted";
+		}
+		return null;
+	}
+
+	/**
+	 * Take the file of a verified upload for an import job; the upload is gone afterwards
+	 *
+	 * @return the spool file
+	 */
+	public File claim() throws IOException {
+		File spoolFile = File.createTempFile("sim", ".xls", ImportJobManager.getSpoolDirectory());
+		spoolFile.delete();
+		if (!getPartFile().renameTo(spoolFile))
+			throw new IOException("Cannot move upload " + id + " to " + spoolFile);
+		new File(getDirectory(), id + ".properties").delete();
+		return spoolFile;
+	}
+
+	public void delete() {
+		getPartFile().delete();
+		new File(getDirectory(), id + ".properties").delete();
+	}
+
+	private void save() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("name", name == null ? "" : name);
+		properties.setProperty("length", String.valueOf(length));
+		properties.setProperty("checksum", checksum);
+		if (ownerId != null)
+			properties.setProperty("owner", ownerId.toString());
+		properties.setProperty("created", String.valueOf(created.getTime()));
+		OutputStream out = new FileOutputStream(new File(getDirectory(), id + ".properties"));
+		try {
+			properties.store(out, "Spreadsheet import upload");
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	File getPartFile() {
+		return new File(getDirectory(), id + ".part");
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public Integer getOwnerId() {
+		return ownerId;
+	}
+
+	public Date getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return the number of bytes received so far
+	 */
+	public long getOffset() {
+		return getPartFile().length();
+	}
+
+	public boolean isComplete() {
+		return getOffset() >= length;
+	}
+}
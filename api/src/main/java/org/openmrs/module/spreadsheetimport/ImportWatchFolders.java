@@ -0,0 +1,252 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * Imports the spreadsheets dropped into the watch folders of templates, configured in the global
+ * property spreadsheetimport.watchFolders as "templateId:directory,...". The folders are scanned
+ * by {@link ImportJobTask} once a minute, and by the {@link ImportFolderWatcher} as soon as a file
+ * arrives where the JDK can watch folders. A file which has not changed for {@link #SETTLE_MILLIS}
+ * is moved to the "processing" subfolder and imported as a background job in the bulk lane, which
+ * continues on errors: invalid rows are rejected and the others imported. When the job is done,
+ * the file is moved on to "done" or "failed", next to the messages of the job, the rows it
+ * rejected and, if it succeeded, the imported rows with their generated keys. CSV files are
+ * imported as well, e.g. fixed reject files.
+ */
+public class ImportWatchFolders {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(ImportWatchFolders.class);
+
+	public static final String PROCESSING = "processing";
+
+	public static final String DONE = "done";
+
+	public static final String FAILED = "failed";
+
+	public static final String LANE = "bulk";
+
+	/** How long a file must stay unchanged before it is picked up, so half copied files are not */
+	public static final long SETTLE_MILLIS = 10000;
+
+	/** Size and modification time of the files in the watch folders at the previous scan */
+	private static final Map<String, String> seen = new ConcurrentHashMap<String, String>();
+
+	private ImportWatchFolders() {
+	}
+
+	/**
+	 * @return the watch folder of each template, from the global property
+	 */
+	public static Map<Integer, File> getFolders() {
+		Map<Integer, File> folders = new LinkedHashMap<Integer, File>();
+		String property = Context.getAdministrationService().getGlobalProperty("spreadsheetimport.watchFolders", "");
+		for (String folder : property.split(",")) {
+			// the directory may contain a colon itself, e.g. on Windows
+			int colon = folder.indexOf(':');
+			if (colon < 0) {
+				if (StringUtils.hasText(folder))
+					log.warn("Invalid watch folder, expected templateId:directory: " + folder);
+				continue;
+			}
+			try {
+				folders.put(Integer.valueOf(folder.substring(0, colon).trim()), new File(folder.substring(colon + 1).trim()));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Invalid template id of watch folder: " + folder);
+			}
+		}
+		return folders;
+	}
+
+	/**
+	 * Submit an import job for every settled spreadsheet in the watch folders, and watch the
+	 * folders for new files until the next call. Must be called with an open session.
+	 */
+	public static void scan() {
+		Map<Integer, File> folders = getFolders();
+		ImportFolderWatcher.watch(folders.values(), Context.getUserContext());
+		scan(folders);
+	}
+
+	/**
+	 * Submit an import job for every settled spreadsheet in the given watch folders
+	 * 
+	 * @return whether files are waiting to settle
+	 */
+	static synchronized boolean scan(Map<Integer, File> folders) {
+		boolean pending = false;
+		Set<String> present = new HashSet<String>();
+		SpreadsheetImportService service = Context.getService(SpreadsheetImportService.class);
+		for (Map.Entry<Integer, File> folder : folders.entrySet()) {
+			File dir = folder.getValue();
+			File[] files = dir.listFiles();
+			if (files == null) {
+				log.warn("Watch folder " + dir + " is not a directory");
+				continue;
+			}
+			SpreadsheetImportTemplate template = null;
+			for (File file : files) {
+				if (!isSpreadsheet(file))
+					continue;
+				present.add(file.getPath());
+				if (!isSettled(file)) {
+					pending = true;
+					continue;
+				}
+				if (template == null)
+					template = service.getTemplateById(folder.getKey());
+				if (template == null) {
+					log.warn("Template " + folder.getKey() + " of watch folder " + dir + " does not exist");
+					break;
+				}
+				try {
+					pickUp(template, dir, file);
+				}
+				catch (Exception e) {
+					log.error("Cannot import " + file, e);
+				}
+			}
+		}
+		// forget files which were deleted or moved away before they settled
+		seen.keySet().retainAll(present);
+		return pending;
+	}
+
+	private static boolean isSpreadsheet(File file) {
+		String name = file.getName().toLowerCase();
+		return file.isFile() && !name.startsWith(".") && (name.endsWith(".xls") || name.endsWith(".xlsx") || name.endsWith(".csv"));
+	}
+
+	/**
+	 * @return whether the file has not changed since the previous scan and for the settle time
+	 */
+	private static boolean isSettled(File file) {
+		String state = file.length() + ":" + file.lastModified();
+		String before = seen.put(file.getPath(), state);
+		return state.equals(before) && System.currentTimeMillis() - file.lastModified() >= SETTLE_MILLIS;
+	}
+
+	/**
+	 * Claim a file by moving it to the processing folder, and submit a job for a copy of it
+	 */
+	private static void pickUp(SpreadsheetImportTemplate template, File dir, File file) throws IOException {
+		seen.remove(file.getPath());
+		File processing = new File(dir, PROCESSING);
+		processing.mkdirs();
+		File claimed = unusedFile(processing, file.getName());
+		if (!file.renameTo(claimed)) {
+			log.warn("Cannot move " + file + " to " + processing);
+			return;
+		}
+
+		File spoolFile = File.createTempFile("sim", ".xls", ImportJobManager.getSpoolDirectory());
+		try {
+			FileCopyUtils.copy(claimed, spoolFile);
+		}
+		catch (IOException e) {
+			spoolFile.delete();
+			claimed.renameTo(file);
+			throw e;
+		}
+
+		ImportOptions options = new ImportOptions();
+		options.setContinueOnError(true);
+		options.setSkipImportedRows(true);
+		ImportJob job = ImportJobManager.submit(template, spoolFile, "", options, LANE, false, claimed);
+		if (job == null) {
+			// the queue is full, try again with the next scan
+			claimed.renameTo(file);
+			return;
+		}
+		if (log.isInfoEnabled())
+			log.info("Import job " + job.getId() + " imports " + file);
+	}
+
+	/**
+	 * Move the file of a finished job from the watch folder's processing folder to done or failed,
+	 * with the messages of the job, its rejected rows and its result
+	 */
+	static void finished(ImportJob job) {
+		File file = job.getWatchFile();
+		if (file == null || !file.exists())
+			return;
+		boolean succeeded = ImportJob.STATE_SUCCEEDED.equals(job.getState());
+		File dir = new File(file.getParentFile().getParentFile(), succeeded ? DONE : FAILED);
+		dir.mkdirs();
+		File moved = unusedFile(dir, file.getName());
+		if (!file.renameTo(moved)) {
+			log.warn("Cannot move " + file + " to " + dir);
+			return;
+		}
+		job.setWatchFile(moved);
+
+		try {
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, moved.getName()
+			        + ".messages.txt")), "UTF-8"));
+			try {
+				writer.println("Import job " + job.getId() + " " + job.getState());
+				for (String message : job.getMessages()) {
+					writer.println(message);
+				}
+			}
+			finally {
+				writer.close();
+			}
+			String name = moved.getName();
+			String base = name.substring(0, name.lastIndexOf('.'));
+			File rejects = job.getRejectFile();
+			if (rejects != null && rejects.exists())
+				FileCopyUtils.copy(rejects, new File(dir, base + ".rejects.csv"));
+			File result = job.getResultFile();
+			if (succeeded && result != null && result.exists())
+				FileCopyUtils.copy(result, new File(dir, base + ".result.csv"));
+		}
+		catch (IOException e) {
+			log.warn("Cannot write the results of " + moved, e);
+		}
+	}
+
+	/**
+	 * @return a file of the given name in dir, or with a number added if that exists
+	 */
+	private static File unusedFile(File dir, String name) {
+		File file = new File(dir, name);
+		int dot = name.lastIndexOf('.');
+		String base = (dot < 0 ? name : name.substring(0, dot));
+		String extension = (dot < 0 ? "" : name.substring(dot));
+		for (int i = 1; file.exists(); i++) {
+			file = new File(dir, base + "-" + i + extension);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the keys generated by an import to a compact CSV manifest as rows are imported, in sheet
+ * order, for reconciling the import with the systems the sheet came from. There is one record per
+ * sheet row the import got to: the sheet row number, the outcome and, for imported rows, the key of
+ * every unique import of the template, e.g. the person_id, patient_id, encounter_id and obs_ids.
+ * Key columns are named after the table, with the dataset index of tables imported more than
+ * once, as in "obs_id.2"; a key is empty if the row did not insert into that table. Rows which
+ * matched an existing patient or encounter list the key of the existing one.
+ */
+public class KeyManifestWriter extends CsvFileWriter {
+
+	public static final String ROW_COLUMN = "row";
+
+	public static final String STATUS_COLUMN = "status";
+
+	UniqueImport[] uniqueImports;
+
+	/**
+	 * @param uniqueImports the unique imports of the template, in import order
+	 * @param append whether to add to an existing file, e.g. when a job is resumed
+	 */
+	public KeyManifestWriter(File file, Collection<UniqueImport> uniqueImports, boolean append) throws IOException {
+		super(file, append);
+		this.uniqueImports = uniqueImports.toArray(new UniqueImport[uniqueImports.size()]);
+		if (needsHeader()) {
+			writeField(ROW_COLUMN);
+			writeField(STATUS_COLUMN);
+			for (UniqueImport uniqueImport : this.uniqueImports) {
+				writeField(getKeyColumnName(uniqueImport));
+			}
+			endRecord(false);
+		}
+	}
+
+	static String getKeyColumnName(UniqueImport uniqueImport) {
+		String name = uniqueImport.getTableName() + "_id";
+		return uniqueImport.getDatasetIdx() == null ? name : name + "." + uniqueImport.getDatasetIdx();
+	}
+
+	/**
+	 * Write the keys of a row which was imported, or skipped as imported before
+	 */
+	public void imported(RowBuffer row) throws IOException {
+		writeField(String.valueOf(row.getRowNum() + 1));
+		writeField(row.isSkipped() ? RowOutcome.SKIPPED : RowOutcome.IMPORTED);
+		Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = row.getRowData();
+		for (UniqueImport uniqueImport : uniqueImports) {
+			String key = null;
+			if (!row.isSkipped()) {
+				for (SpreadsheetImportTemplateColumn column : rowData.get(uniqueImport)) {
+					key = column.getGeneratedKey();
+					break;
+				}
+			}
+			writeField(key == null ? "" : key);
+		}
+		endRecord(true);
+	}
+
+	/**
+	 * Write a row which failed, without keys
+	 *
+	 * @param rowNum zero-based sheet row number
+	 */
+	public void failed(int rowNum) throws IOException {
+		writeField(String.valueOf(rowNum + 1));
+		writeField(RowOutcome.FAILED);
+		for (int i = 0; i < uniqueImports.length; i++) {
+			writeField("");
+		}
+		endRecord(true);
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of one stage of an {@link ImportPipeline}. Busy time is spent working on rows, wait time
+ * is spent blocked on a full or empty ring buffer.
+ */
+public class PipelineStage {
+
+	String name;
+
+	int threads;
+
+	AtomicLong rows = new AtomicLong();
+
+	AtomicLong busyNanos = new AtomicLong();
+
+	AtomicLong waitNanos = new AtomicLong();
+
+	volatile long startNanos;
+
+	volatile long endNanos;
+
+	public PipelineStage(String name, int threads) {
+		this.name = name;
+		this.threads = threads;
+	}
+
+	void start() {
+		startNanos = System.nanoTime();
+	}
+
+	void stop() {
+		endNanos = System.nanoTime();
+	}
+
+	void addBusy(long nanos) {
+		busyNanos.addAndGet(nanos);
+	}
+
+	void addWait(long nanos) {
+		waitNanos.addAndGet(nanos);
+	}
+
+	void addRow() {
+		rows.incrementAndGet();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	public long getBusyMillis() {
+		return busyNanos.get() / 1000000;
+	}
+
+	public long getWaitMillis() {
+		return waitNanos.get() / 1000000;
+	}
+
+	/**
+	 * @return the share of the stage's wall time its threads spent busy, between 0 and 1
+	 */
+	public double getUtilization() {
+		long end = endNanos == 0 ? System.nanoTime() : endNanos;
+		long elapsed = (end - startNanos) * threads;
+		if (startNanos == 0 || elapsed <= 0)
+			return 0.0;
+		return Math.min(1.0, (double) busyNanos.get() / elapsed);
+	}
+
+	public String toString() {
+		return name + ": rows=" + getRows() + ", threads=" + threads + ", busy=" + getBusyMillis() + "ms, wait="
+		        + getWaitMillis() + "ms, utilization=" + Math.round(getUtilization() * 100) + "%";
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.openmrs.module.spreadsheetimport.reader.CsvRowReader;
+
+/**
+ * Writes the rows rejected by an import which continues on errors to a CSV file, as they are
+ * rejected. The file has the columns of the sheet the template refers to, followed by the sheet row
+ * number, the column which failed, if known, and the reason; after fixing the rows it can be
+ * imported again on its own with the same template, which ignores the three extra columns.
+ * <p>
+ * Writers reject rows concurrently, so the rows are not necessarily in sheet order. A resumed job
+ * may reject a row again which was written just before the job stopped; rows already in the file
+ * are not written twice.
+ */
+public class RejectFileWriter extends CsvFileWriter {
+
+	public static final String ROW_COLUMN = "Rejected Row";
+
+	public static final String FAILED_COLUMN = "Rejected Column";
+
+	public static final String REASON_COLUMN = "Rejected Reason";
+
+	int[] ordinals;
+
+	/** Sheet row numbers of the rows in the file before it was opened */
+	Set<String> rejectedBefore = new HashSet<String>();
+
+	/**
+	 * @param append whether to add to an existing file, e.g. when a job is resumed
+	 */
+	public RejectFileWriter(File file, List<String> columnNames, BitSet neededColumns, boolean append)
+	    throws IOException {
+		super(file, append);
+		ordinals = new int[neededColumns.cardinality()];
+		int i = 0;
+		for (int idx = neededColumns.nextSetBit(0); idx >= 0; idx = neededColumns.nextSetBit(idx + 1)) {
+			ordinals[i++] = idx;
+		}
+		if (needsHeader()) {
+			for (int idx : ordinals) {
+				writeField(columnNames.get(idx));
+			}
+			writeField(ROW_COLUMN);
+			writeField(FAILED_COLUMN);
+			writeField(REASON_COLUMN);
+			endRecord(false);
+		} else {
+			readRejectedRows();
+		}
+	}
+
+	private void readRejectedRows() throws IOException {
+		CsvRowReader reader = new CsvRowReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			List<String> header = reader.readHeader();
+			int rowIdx = (header == null ? -1 : header.indexOf(ROW_COLUMN));
+			if (rowIdx < 0)
+				return;
+			RowBuffer row = new RowBuffer(header.size());
+			while (reader.nextRow(row)) {
+				rejectedBefore.add(toText(row.get(rowIdx)));
+			}
+		}
+		catch (IOException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new IOException("Cannot read the rows rejected before from " + file + ": " + e);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Write a rejected row, with the values as they were read, and flush it to the file
+	 *
+	 * @param column name of the column which failed, or null
+	 */
+	public synchronized void reject(RowBuffer row, String column, String reason) throws IOException {
+		if (rejectedBefore.contains(String.valueOf(row.getRowNum() + 1)))
+			return;
+		for (int idx : ordinals) {
+			writeField(toText(row.get(idx)));
+		}
+		writeField(String.valueOf(row.getRowNum() + 1));
+		writeField(column == null ? "" : column);
+		writeField(reason == null ? "" : reason);
+		endRecord(true);
+		flush();
+	}
+}
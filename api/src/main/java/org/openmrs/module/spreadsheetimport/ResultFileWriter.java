@@ -0,0 +1,74 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes the result of an import to a CSV file as rows are imported, in sheet order. It has the
+ * columns of the sheet the template refers to, with the generated encounter id in the encounter
+ * columns, and the sheet row number; rows skipped or rejected are left out. Only the needed columns
+ * of one row are held at a time, unlike writing the keys back into the whole workbook, and the file
+ * can be imported again with the same template to add to the same encounters.
+ */
+public class ResultFileWriter extends CsvFileWriter {
+
+	public static final String ROW_COLUMN = "Sheet Row";
+
+	int[] ordinals;
+
+	boolean[] encounter;
+
+	/**
+	 * @param append whether to add to an existing file, e.g. when a job is resumed
+	 */
+	public ResultFileWriter(File file, List<String> columnNames, BitSet neededColumns, int[] encounterOrdinals,
+	    boolean append) throws IOException {
+		super(file, append);
+		ordinals = new int[neededColumns.cardinality()];
+		encounter = new boolean[ordinals.length];
+		int i = 0;
+		for (int idx = neededColumns.nextSetBit(0); idx >= 0; idx = neededColumns.nextSetBit(idx + 1)) {
+			for (int encounterIdx : encounterOrdinals) {
+				if (encounterIdx == idx)
+					encounter[i] = true;
+			}
+			ordinals[i++] = idx;
+		}
+		if (needsHeader()) {
+			for (int idx : ordinals) {
+				writeField(columnNames.get(idx));
+			}
+			writeField(ROW_COLUMN);
+			endRecord(false);
+		}
+	}
+
+	/**
+	 * Write an imported row
+	 */
+	public void write(RowBuffer row) throws IOException {
+		for (int i = 0; i < ordinals.length; i++) {
+			if (encounter[i] && row.getEncounterId() != null)
+				writeField(row.getEncounterId());
+			else
+				writeField(toText(row.get(ordinals[i])));
+		}
+		writeField(String.valueOf(row.getRowNum() + 1));
+		endRecord(true);
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the decoded cell values of one spreadsheet row, indexed by column ordinal. A buffer is
+ * allocated once per import and refilled by the reader for every row, so only the cells of
+ * columns referenced by the template are ever set. Every buffer owns a private copy of the
+ * template columns, so several rows can be validated and imported at the same time.
+ */
+public class RowBuffer {
+
+	/**
+	 * Value stored for a cell which exists but holds no data, as opposed to null for a cell which
+	 * does not exist at all.
+	 */
+	public static final String BLANK = "";
+
+	int rowNum;
+
+	Object[] values;
+
+	Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData;
+
+	SpreadsheetImportTemplateColumn[] columns;
+
+	boolean hasData;
+
+	String encounterId;
+
+	String fingerprint;
+
+	boolean skipped;
+
+	String rowKey;
+
+	boolean changed;
+
+	Exception exception;
+
+	public RowBuffer(int width) {
+		this.values = new Object[width];
+	}
+
+	public RowBuffer(int width, Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData,
+	    SpreadsheetImportTemplateColumn[] columns) {
+		this(width);
+		this.rowData = rowData;
+		this.columns = columns;
+	}
+
+	/**
+	 * Clear all values before the buffer is refilled for the next row
+	 */
+	public void reset(int rowNum) {
+		this.rowNum = rowNum;
+		this.hasData = false;
+		this.encounterId = null;
+		this.fingerprint = null;
+		this.skipped = false;
+		this.rowKey = null;
+		this.changed = false;
+		this.exception = null;
+		Arrays.fill(values, null);
+	}
+
+	/**
+	 * @return the zero-based sheet row number of the row currently held
+	 */
+	public int getRowNum() {
+		return rowNum;
+	}
+
+	public void setRowNum(int rowNum) {
+		this.rowNum = rowNum;
+	}
+
+	public int getWidth() {
+		return values.length;
+	}
+
+	public Object get(int ordinal) {
+		if (ordinal < 0 || ordinal >= values.length)
+			return null;
+		return values[ordinal];
+	}
+
+	public void set(int ordinal, Object value) {
+		if (ordinal >= 0 && ordinal < values.length)
+			values[ordinal] = value;
+	}
+
+	/**
+	 * @return this buffer's copy of the template columns grouped by unique import, in import order
+	 */
+	public Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> getRowData() {
+		return rowData;
+	}
+
+	SpreadsheetImportTemplateColumn[] getColumns() {
+		return columns;
+	}
+
+	public boolean getHasData() {
+		return hasData;
+	}
+
+	public void setHasData(boolean hasData) {
+		this.hasData = hasData;
+	}
+
+	/**
+	 * @return the encounter id generated when this row was imported, if any
+	 */
+	public String getEncounterId() {
+		return encounterId;
+	}
+
+	public void setEncounterId(String encounterId) {
+		this.encounterId = encounterId;
+	}
+
+	/**
+	 * @return the fingerprint of the row's content, see {@link RowLedger}
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	public void setFingerprint(String fingerprint) {
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * @return whether the row is skipped because it has been imported before; skipped rows have no
+	 *         data to import
+	 */
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	public void setSkipped(boolean skipped) {
+		this.skipped = skipped;
+		if (skipped)
+			this.hasData = false;
+	}
+
+	/**
+	 * @return the hash of the row key cells in a delta import, see {@link RowKeySnapshot}
+	 */
+	public String getRowKey() {
+		return rowKey;
+	}
+
+	public void setRowKey(String rowKey) {
+		this.rowKey = rowKey;
+	}
+
+	/**
+	 * @return whether the row was imported before with different content; its encounter ID is the
+	 *         encounter to update
+	 */
+	public boolean isChanged() {
+		return changed;
+	}
+
+	public void setChanged(boolean changed) {
+		this.changed = changed;
+	}
+
+	/**
+	 * @return the exception thrown while validating or importing this row, if any
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	public void setException(Exception exception) {
+		this.exception = exception;
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+/**
+ * Notified after each row has been imported or skipped, in sheet order and on the thread which
+ * runs the import. The buffer is reused for a later row as soon as the call returns.
+ */
+public interface RowImportListener {
+
+	public void rowImported(RowBuffer row) throws Exception;
+
+	/**
+	 * Notified of a row which failed validation or import
+	 *
+	 * @param rowNum the zero-based sheet row number
+	 * @param message why the row failed
+	 */
+	public void rowFailed(int rowNum, String message) throws Exception;
+}
@@ -0,0 +1,173 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The ledger of a delta import, for sheets which are sent again in full with new and changed rows,
+ * such as a cumulative monthly register. The template declares the row key columns, e.g. patient
+ * identifier and visit date. For every row key the table spreadsheetimport_row_key keeps the
+ * fingerprint of the row as last imported and its encounter; a row whose key is new is imported,
+ * a row with the same fingerprint is skipped, and a changed row is imported into its existing
+ * encounter, whose observations are voided first.
+ * <p>
+ * When a row key occurs in more than one row of a sheet, the first row is used.
+ * <p>
+ * A changed row can only be updated through its encounter. Rows of a template without an
+ * encounter, such as a registration template, are imported once: when such a row changes it fails
+ * as "changed row cannot be updated", a violation or reject like any invalid row, and its stored
+ * fingerprint is left as it was.
+ */
+public class RowKeySnapshot extends RowLedger {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(RowKeySnapshot.class);
+
+	ImportPlan plan;
+
+	int[] keyOrdinals;
+
+	/** Row keys claimed by a row of this import */
+	ConcurrentMap<String, Boolean> claimed = new ConcurrentHashMap<String, Boolean>();
+
+	AtomicInteger newRows = new AtomicInteger();
+
+	AtomicInteger changedRows = new AtomicInteger();
+
+	AtomicInteger unchangedRows = new AtomicInteger();
+
+	public RowKeySnapshot(Integer templateId, ImportPlan plan) {
+		super(templateId, plan);
+		this.plan = plan;
+		this.keyOrdinals = plan.getRowKeyOrdinals();
+	}
+
+	/**
+	 * Mark the unchanged rows of a chunk as skipped and the changed rows as changed, with the
+	 * encounter they were imported into; a changed row without an encounter is given an exception
+	 * instead. Rows without data are left alone.
+	 */
+	public void filter(Connection conn, List<RowBuffer> chunk) throws SQLException {
+		Map<String, RowBuffer> rows = new HashMap<String, RowBuffer>();
+		StringBuilder in = new StringBuilder();
+		for (RowBuffer row : chunk) {
+			if (!row.getHasData())
+				continue;
+			row.setFingerprint(fingerprint(row));
+			row.setRowKey(hash(row, keyOrdinals));
+			if (claimed.putIfAbsent(row.getRowKey(), Boolean.TRUE) != null) {
+				if (log.isWarnEnabled())
+					log.warn("Row " + (row.getRowNum() + 1) + " repeats the row key of an earlier row, skipped");
+				row.setSkipped(true);
+				continue;
+			}
+			rows.put(row.getRowKey(), row);
+			if (in.length() != 0)
+				in.append(", ");
+			in.append('\'').append(row.getRowKey()).append('\'');
+		}
+		if (in.length() == 0)
+			return;
+
+		int found = 0;
+		Statement s = conn.createStatement();
+		try {
+			ResultSet rs = s.executeQuery("select row_key, fingerprint, encounter_id from spreadsheetimport_row_key"
+			        + " where template_id = " + templateId + " and row_key in (" + in + ")");
+			while (rs.next()) {
+				RowBuffer row = rows.get(rs.getString(1));
+				if (row == null)
+					continue;
+				found++;
+				String encounterId = rs.getString(3);
+				if (row.getFingerprint().equals(rs.getString(2))) {
+					row.setSkipped(true);
+					if (encounterId != null)
+						row.setEncounterId(encounterId);
+					unchangedRows.incrementAndGet();
+				} else {
+					row.setChanged(true);
+					if (encounterId != null) {
+						row.setEncounterId(encounterId);
+						plan.reuseEncounter(row, encounterId);
+					} else {
+						// importing it again would add a second patient instead of updating the first
+						row.setException(new SpreadsheetImportTemplateValidationException(
+						        "changed row cannot be updated, it was imported without an encounter"));
+					}
+					changedRows.incrementAndGet();
+				}
+			}
+			rs.close();
+		}
+		finally {
+			s.close();
+		}
+		newRows.addAndGet(rows.size() - found);
+	}
+
+	/**
+	 * Store the fingerprint and encounter of an imported row under its row key; called in the
+	 * transaction of the row
+	 */
+	public void record(Connection conn, RowBuffer row, String encounterId) throws SQLException {
+		if (row.getRowKey() == null)
+			return;
+		String encounter = (encounterId == null ? "null" : encounterId);
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate("insert into spreadsheetimport_row_key (template_id, row_key, fingerprint, encounter_id, date_changed)"
+			        + " values (" + templateId + ", '" + row.getRowKey() + "', '" + row.getFingerprint() + "', " + encounter
+			        + ", now()) on duplicate key update fingerprint = values(fingerprint), encounter_id = "
+			        + (encounterId == null ? "encounter_id" : encounter) + ", date_changed = now()");
+		}
+		finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * @return rows whose row key was not imported before
+	 */
+	public int getNewRows() {
+		return newRows.get();
+	}
+
+	/**
+	 * @return rows imported before with different content
+	 */
+	public int getChangedRows() {
+		return changedRows.get();
+	}
+
+	/**
+	 * @return rows imported before with the same content, which are skipped
+	 */
+	public int getUnchangedRows() {
+		return unchangedRows.get();
+	}
+}
@@ -0,0 +1,239 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.openmrs.module.spreadsheetimport.reader.CellValues;
+
+/**
+ * Remembers which rows have been imported with a template, so that uploading the same or an
+ * overlapping sheet again skips the rows imported before. Each row is identified by a fingerprint,
+ * the MD5 of the template id and the normalized cells the template refers to; the encounter ID
+ * column is left out, so a sheet returned with encounter IDs written back still matches.
+ * <p>
+ * The fingerprints are stored in the table spreadsheetimport_row_ledger with the keys generated
+ * for the row, in the transaction which imports the row. Readers look up a chunk of rows with one
+ * query; fingerprints found or imported are kept in memory for the rest of the import. Repeated
+ * rows within the same sheet are resolved when they are imported: the writer claims the
+ * fingerprint of a row (see {@link #claim(RowBuffer)}), and an equal row is skipped once the first
+ * one has been committed, or imported after all if the first one failed.
+ */
+public class RowLedger {
+
+	/** Rows looked up with one query */
+	public static final int CHUNK_SIZE = 256;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	Integer templateId;
+
+	/** Referenced cells, without the encounter ID write-back column */
+	int[] ordinals;
+
+	/** Fingerprints known to be imported, with their encounter ID or "" */
+	ConcurrentMap<String, String> known = new ConcurrentHashMap<String, String>();
+
+	/** Fingerprints of the rows being imported right now; guarded by this */
+	Set<String> importing = new HashSet<String>();
+
+	public RowLedger(Integer templateId, ImportPlan plan) {
+		this.templateId = templateId;
+		BitSet columns = (BitSet) plan.getNeededColumns().clone();
+		for (int idx : plan.getEncounterOrdinals()) {
+			columns.clear(idx);
+		}
+		ordinals = new int[columns.cardinality()];
+		int i = 0;
+		for (int idx = columns.nextSetBit(0); idx >= 0; idx = columns.nextSetBit(idx + 1)) {
+			ordinals[i++] = idx;
+		}
+	}
+
+	/**
+	 * @return hex MD5 of the template id and the normalized referenced cells of the row
+	 */
+	public String fingerprint(RowBuffer row) {
+		return hash(row, ordinals);
+	}
+
+	/**
+	 * @return hex MD5 of the template id and the normalized cells of the row at the given ordinals
+	 */
+	protected String hash(RowBuffer row, int[] ordinals) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(templateId);
+		for (int ordinal : ordinals) {
+			// separator which does not occur in cell text
+			sb.append('\u0001');
+			Object value = row.get(ordinal);
+			if (value != null && !RowBuffer.BLANK.equals(value))
+				sb.append(CellValues.unquote(value).trim());
+		}
+		byte[] digest;
+		try {
+			digest = md5.digest(sb.toString().getBytes("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return toHex(digest);
+	}
+
+	static String toHex(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Mark the rows of a chunk which have been imported before as skipped, with the encounter ID
+	 * they got. Rows without data are left alone. Equal rows which have not been imported yet are
+	 * all kept; see {@link #claim(RowBuffer)}.
+	 */
+	public void filter(Connection conn, List<RowBuffer> chunk) throws SQLException {
+		StringBuilder in = new StringBuilder();
+		for (RowBuffer row : chunk) {
+			if (!row.getHasData())
+				continue;
+			row.setFingerprint(fingerprint(row));
+			if (!known.containsKey(row.getFingerprint())) {
+				if (in.length() != 0)
+					in.append(", ");
+				in.append('\'').append(row.getFingerprint()).append('\'');
+			}
+		}
+
+		if (in.length() != 0) {
+			Statement s = conn.createStatement();
+			try {
+				ResultSet rs = s.executeQuery("select fingerprint, encounter_id from spreadsheetimport_row_ledger"
+				        + " where template_id = " + templateId + " and fingerprint in (" + in + ")");
+				while (rs.next()) {
+					String encounterId = rs.getString(2);
+					known.put(rs.getString(1), encounterId == null ? "" : encounterId);
+				}
+				rs.close();
+			}
+			finally {
+				s.close();
+			}
+		}
+
+		for (RowBuffer row : chunk) {
+			if (!row.getHasData())
+				continue;
+			skipIfKnown(row);
+		}
+	}
+
+	/**
+	 * Claim the fingerprint of a row which is about to be imported, waiting while an equal row is
+	 * being imported. Every claim must be ended with {@link #release(RowBuffer, boolean, String)}.
+	 * 
+	 * @return false if an equal row has been imported meanwhile, in which case the row is marked
+	 *         as skipped and not claimed
+	 */
+	public synchronized boolean claim(RowBuffer row) throws InterruptedException {
+		String fingerprint = row.getFingerprint();
+		if (fingerprint == null)
+			return true;
+		while (importing.contains(fingerprint)) {
+			wait();
+		}
+		if (skipIfKnown(row))
+			return false;
+		importing.add(fingerprint);
+		return true;
+	}
+
+	/**
+	 * End the claim of a row
+	 * 
+	 * @param imported whether the row has been committed; if not, an equal row may claim its
+	 *            fingerprint and be imported instead
+	 */
+	public synchronized void release(RowBuffer row, boolean imported, String encounterId) {
+		String fingerprint = row.getFingerprint();
+		if (fingerprint == null)
+			return;
+		if (imported)
+			known.put(fingerprint, encounterId == null ? "" : encounterId);
+		importing.remove(fingerprint);
+		notifyAll();
+	}
+
+	/**
+	 * @return whether the row has been imported before and is now marked as skipped
+	 */
+	private boolean skipIfKnown(RowBuffer row) {
+		String encounterId = known.get(row.getFingerprint());
+		if (encounterId == null)
+			return false;
+		row.setSkipped(true);
+		if (encounterId.length() != 0)
+			row.setEncounterId(encounterId);
+		return true;
+	}
+
+	/**
+	 * Add an imported row to the ledger; called in the transaction of the row
+	 */
+	public void record(Connection conn, RowBuffer row, String encounterId) throws SQLException {
+		if (row.getFingerprint() == null)
+			return;
+		StringBuilder keys = new StringBuilder();
+		for (Map.Entry<UniqueImport, Set<SpreadsheetImportTemplateColumn>> entry : row.getRowData().entrySet()) {
+			String key = entry.getValue().iterator().next().getGeneratedKey();
+			if (key == null)
+				continue;
+			if (keys.length() != 0)
+				keys.append(',');
+			keys.append(entry.getKey().getTableName()).append('=').append(key);
+		}
+		Statement s = conn.createStatement();
+		try {
+			s.executeUpdate("insert ignore into spreadsheetimport_row_ledger"
+			        + " (template_id, fingerprint, encounter_id, generated_keys, date_created) values (" + templateId
+			        + ", '" + row.getFingerprint() + "', " + (encounterId == null ? "null" : encounterId) + ", '"
+			        + keys + "', now())");
+		}
+		finally {
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+/**
+ * What became of one row of an import started through the service
+ */
+public class RowOutcome {
+
+	public static final String IMPORTED = "imported";
+
+	public static final String SKIPPED = "skipped";
+
+	public static final String FAILED = "failed";
+
+	int rowNum;
+
+	String status;
+
+	String encounterId;
+
+	String message;
+
+	public RowOutcome(int rowNum, String status, String encounterId, String message) {
+		this.rowNum = rowNum;
+		this.status = status;
+		this.encounterId = encounterId;
+		this.message = message;
+	}
+
+	/**
+	 * @return the zero-based sheet row number
+	 */
+	public int getRowNum() {
+		return rowNum;
+	}
+
+	/**
+	 * @return {@link #IMPORTED}, {@link #SKIPPED} or {@link #FAILED}
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the encounter the row was imported into, if the template creates encounters
+	 */
+	public String getEncounterId() {
+		return encounterId;
+	}
+
+	/**
+	 * @return why the row failed, or null
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	public String toString() {
+		return "row " + (rowNum + 1) + ": " + status + (message == null ? "" : ", " + message);
+	}
+}
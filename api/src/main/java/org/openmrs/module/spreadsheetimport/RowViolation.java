@@ -0,0 +1,48 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+/**
+ * A problem found in one row of the sheet
+ */
+public class RowViolation implements Comparable<RowViolation> {
+
+	int rowNum;
+
+	String message;
+
+	public RowViolation(int rowNum, String message) {
+		this.rowNum = rowNum;
+		this.message = message;
+	}
+
+	/**
+	 * @return the zero-based sheet row number
+	 */
+	public int getRowNum() {
+		return rowNum;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public int compareTo(RowViolation that) {
+		return rowNum < that.rowNum ? -1 : (rowNum == that.rowNum ? 0 : 1);
+	}
+
+	public String toString() {
+		return "row " + (rowNum + 1) + ": " + message;
+	}
+}
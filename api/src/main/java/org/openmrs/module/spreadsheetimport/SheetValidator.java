@@ -0,0 +1,293 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader;
+
+/**
+ * Validates every selected row of a sheet before anything is written, so that all problems are
+ * reported at once instead of the import stopping at the first bad row. The calling thread decodes
+ * rows and hands them to a pool of validator threads sharing a connection pool; concept and
+ * identifier type definitions and the values of no-duplicate columns are shared through a
+ * {@link ValidationCache}.
+ */
+public class SheetValidator {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(SheetValidator.class);
+
+	ImportPlan plan;
+
+	SpreadsheetRowReader reader;
+
+	ImportOptions options;
+
+	int threads;
+
+	ValidationCache cache = new ValidationCache();
+
+	List<RowViolation> violations = Collections.synchronizedList(new ArrayList<RowViolation>());
+
+	ImportProgress progress = new ImportProgress();
+
+	ImportCheckpoint checkpoint;
+
+	RowLedger ledger;
+
+	/** Fingerprints of the rows validated, so repeated rows are validated once */
+	Set<String> fingerprints = new HashSet<String>();
+
+	volatile Exception fatalException;
+
+	/** Marks the end of the rows on the work queue */
+	private final RowBuffer end = new RowBuffer(0);
+
+	public SheetValidator(ImportPlan plan, SpreadsheetRowReader reader, ImportOptions options) {
+		this(plan, reader, options, Runtime.getRuntime().availableProcessors());
+	}
+
+	public SheetValidator(ImportPlan plan, SpreadsheetRowReader reader, ImportOptions options, int threads) {
+		this.plan = plan;
+		this.reader = reader;
+		this.options = options;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param progress counts the rows validated
+	 */
+	public void setProgress(ImportProgress progress) {
+		this.progress = progress;
+	}
+
+	/**
+	 * @param checkpoint rows it records as imported are not validated again
+	 */
+	public void setCheckpoint(ImportCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * @param ledger rows it knows as imported before are not validated again; use a ledger of its
+	 *            own, not the one of the import
+	 */
+	public void setLedger(RowLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	/**
+	 * Read and validate all rows selected by the options
+	 *
+	 * @return the violations found, in sheet order
+	 * @throws Exception if reading the sheet or talking to the database failed
+	 */
+	public List<RowViolation> run() throws Exception {
+		final BlockingQueue<RowBuffer> free = new ArrayBlockingQueue<RowBuffer>(threads * 4);
+		final BlockingQueue<RowBuffer> work = new ArrayBlockingQueue<RowBuffer>(threads * 4 + threads);
+		for (int i = 0; i < threads * 4; i++) {
+			free.add(plan.createRowBuffer());
+		}
+
+		long start = System.currentTimeMillis();
+		int rows = 0;
+		final ImportConnectionPool connections = new ImportConnectionPool(options.getMaxConnections() > 0 ? options
+		        .getMaxConnections() : threads) {
+
+			protected Connection openConnection() throws Exception {
+				return SheetValidator.this.openConnection();
+			}
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(threads, ImportThreadFactory.create("validate", options
+		        .isVirtualThreads()));
+		try {
+			for (int i = 0; i < threads; i++) {
+				executor.execute(new Runnable() {
+
+					public void run() {
+						validate(work, free, connections);
+					}
+				});
+			}
+
+			List<RowBuffer> chunk = new ArrayList<RowBuffer>();
+			boolean more = true;
+			while (more && fatalException == null) {
+				// wait for one free buffer, then take whatever else is free for the ledger lookup
+				RowBuffer row = free.take();
+				if (progress.isCancelled()) {
+					free.add(row);
+					throw new SpreadsheetImportCancelledException();
+				}
+				while (row != null) {
+					if (!reader.nextRow(row) || options.isAfterRange(row.getRowNum())) {
+						free.add(row);
+						more = false;
+						break;
+					}
+					if (!plan.isSelected(row, options) || isImported(row) || !plan.bind(row)) {
+						free.add(row);
+					} else {
+						chunk.add(row);
+						if (!isChunked() || chunk.size() >= RowLedger.CHUNK_SIZE)
+							break;
+					}
+					row = free.poll();
+				}
+				if (isChunked() && !chunk.isEmpty()) {
+					long matchStart = System.nanoTime();
+					Connection conn = connections.borrow();
+					try {
+						if (ledger != null)
+							ledger.filter(conn, chunk);
+						prefetch(conn, chunk);
+					}
+					finally {
+						connections.giveBack(conn);
+					}
+					progress.getStatistics().addMatch(System.nanoTime() - matchStart);
+				}
+				for (RowBuffer r : chunk) {
+					if (!r.isSkipped() && r.getFingerprint() != null && !fingerprints.add(r.getFingerprint()))
+						r.setSkipped(true);
+					if (r.getException() != null) {
+						// the ledger found the row cannot be imported
+						violations.add(new RowViolation(r.getRowNum(), SpreadsheetImportUtil.describeError(r.getException())));
+						free.add(r);
+					} else if (r.isSkipped()) {
+						free.add(r);
+					} else {
+						work.put(r);
+						rows++;
+					}
+				}
+				chunk.clear();
+			}
+		}
+		finally {
+			for (int i = 0; i < threads; i++) {
+				work.put(end);
+			}
+			executor.shutdown();
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				log.debug("Waiting for validators to stop");
+			}
+			connections.close();
+		}
+
+		if (fatalException != null)
+			throw fatalException;
+
+		if (log.isInfoEnabled())
+			log.info("Validated " + rows + " rows in " + (System.currentTimeMillis() - start) + " ms, "
+			        + violations.size() + " violations");
+
+		List<RowViolation> result = new ArrayList<RowViolation>(violations);
+		Collections.sort(result);
+		return result;
+	}
+
+	private void validate(BlockingQueue<RowBuffer> work, BlockingQueue<RowBuffer> free, ImportConnectionPool connections) {
+		try {
+			while (true) {
+				RowBuffer row = work.take();
+				if (row == end)
+					break;
+				// after a fatal error keep draining the queue, so the reader never blocks
+				if (fatalException == null) {
+					try {
+						long validateStart = System.nanoTime();
+						Connection conn = connections.borrow();
+						try {
+							validateRow(conn, row);
+						}
+						finally {
+							connections.giveBack(conn);
+						}
+						progress.getStatistics().addValidate(System.nanoTime() - validateStart);
+						progress.rowValidated();
+					}
+					catch (Exception e) {
+						fatalException = e;
+					}
+				}
+				free.put(row);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return whether rows are handed to the validators in chunks, so the ledger and
+	 *         {@link #prefetch(Connection, List)} can look up a chunk at a time
+	 */
+	protected boolean isChunked() {
+		return ledger != null;
+	}
+
+	/**
+	 * Look up what the rows of a chunk need from the database with a few queries before they are
+	 * validated; rows the ledger skips are still in the chunk
+	 */
+	protected void prefetch(Connection conn, List<RowBuffer> chunk) throws Exception {
+	}
+
+	private boolean isImported(RowBuffer row) {
+		return checkpoint != null && checkpoint.isImported(row.getRowNum(), plan.getShard(row, options.getWorkers()));
+	}
+
+	protected Connection openConnection() throws Exception {
+		return DatabaseBackend.openConnection();
+	}
+
+	/**
+	 * Record the problems of one row; the buffer is reused as soon as this returns, so messages are
+	 * built right away
+	 * 
+	 * @return whether the row is valid
+	 */
+	protected boolean validateRow(Connection conn, RowBuffer row) throws Exception {
+		boolean valid = true;
+		try {
+			DatabaseBackend.validateData(conn, row.getRowData(), cache);
+		}
+		catch (SpreadsheetImportTemplateValidationException e) {
+			violations.add(new RowViolation(row.getRowNum(), SpreadsheetImportUtil.describeError(e)));
+			valid = false;
+		}
+		try {
+			DatabaseBackend.checkDuplicateValues(conn, row.getRowData(), cache, row.getRowNum());
+		}
+		catch (SpreadsheetImportDuplicateValueException e) {
+			violations.add(new RowViolation(row.getRowNum(), SpreadsheetImportUtil.describeError(e)));
+			valid = false;
+		}
+		return valid;
+	}
+}
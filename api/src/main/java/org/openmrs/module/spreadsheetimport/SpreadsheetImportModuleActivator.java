@@ -13,9 +13,14 @@
  */
 package org.openmrs.module.spreadsheetimport;
 
+import java.util.Date;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.Activator;
+import org.openmrs.scheduler.SchedulerService;
+import org.openmrs.scheduler.TaskDefinition;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
@@ -29,6 +34,35 @@ public class SpreadsheetImportModuleActivator implements Activator {
 	 */
 	public void startup() {
 		log.info("Starting Spreadsheet Import Module");
+		registerImportJobTask();
+	}
+	
+	/**
+	 * Schedule the task which starts queued import jobs, unless an administrator has done so
+	 */
+	private void registerImportJobTask() {
+		try {
+			Context.addProxyPrivilege("Manage Scheduler");
+			SchedulerService scheduler = Context.getSchedulerService();
+			if (scheduler.getTaskByName(ImportJobTask.TASK_NAME) == null) {
+				TaskDefinition task = new TaskDefinition();
+				task.setName(ImportJobTask.TASK_NAME);
+				task.setDescription("Starts queued spreadsheet imports, imports files from watch folders and deletes old finished imports and uploads");
+				task.setTaskClass(ImportJobTask.class.getName());
+				task.setRepeatInterval(60L);
+				task.setStartTime(new Date());
+				task.setStartOnStartup(true);
+				scheduler.saveTask(task);
+				scheduler.scheduleTask(task);
+			}
+		}
+		catch (Exception e) {
+			log.warn("Cannot schedule task " + ImportJobTask.TASK_NAME
+			        + ", queued imports only start when another import is submitted or finishes", e);
+		}
+		finally {
+			Context.removeProxyPrivilege("Manage Scheduler");
+		}
 	}
 	
 	/**
@@ -36,6 +70,8 @@ public class SpreadsheetImportModuleActivator implements Activator {
 	 */
 	public void shutdown() {
 		log.info("Shutting down Spreadsheet Import Module");
+		ImportFolderWatcher.stop();
+		ImportJobManager.shutdown();
 	}
 	
 }
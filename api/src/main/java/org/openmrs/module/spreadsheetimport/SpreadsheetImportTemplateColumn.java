@@ -33,6 +33,8 @@ public class SpreadsheetImportTemplateColumn implements Comparable {
 	
 	Boolean disallowDuplicateValue;
 	
+	Boolean rowKey;
+	
 	Set<SpreadsheetImportTemplateColumnPrespecifiedValue> columnPrespecifiedValues = new TreeSet<SpreadsheetImportTemplateColumnPrespecifiedValue>();
 	
 	Set<SpreadsheetImportTemplateColumnColumn> columnColumnsImportBefore = new TreeSet<SpreadsheetImportTemplateColumnColumn>();
@@ -98,6 +100,18 @@ public class SpreadsheetImportTemplateColumn implements Comparable {
 		this.disallowDuplicateValue = disallowDuplicateValue;
 	}
 	
+	/**
+	 * @return whether the column is part of the row key, which identifies a row across the sheets
+	 *         of a delta import
+	 */
+	public Boolean getRowKey() {
+		return rowKey;
+	}
+	
+	public void setRowKey(Boolean rowKey) {
+		this.rowKey = rowKey;
+	}
+	
 	public Set<SpreadsheetImportTemplateColumnPrespecifiedValue> getColumnPrespecifiedValues() {
 		return columnPrespecifiedValues;
 	}
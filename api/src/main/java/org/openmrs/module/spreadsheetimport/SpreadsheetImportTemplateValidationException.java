@@ -2,7 +2,21 @@ package org.openmrs.module.spreadsheetimport;
 
 public class SpreadsheetImportTemplateValidationException extends Exception {
 
+	SpreadsheetImportTemplateColumn column;
+
 	public SpreadsheetImportTemplateValidationException(String message) {
 		super(message);
 	}
+
+	public SpreadsheetImportTemplateValidationException(String message, SpreadsheetImportTemplateColumn column) {
+		super(message);
+		this.column = column;
+	}
+
+	/**
+	 * @return the column whose value is invalid, or null if not known
+	 */
+	public SpreadsheetImportTemplateColumn getColumn() {
+		return column;
+	}
 }
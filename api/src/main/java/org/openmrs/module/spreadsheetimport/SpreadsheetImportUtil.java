@@ -14,26 +14,34 @@
 package org.openmrs.module.spreadsheetimport;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.sql.ResultSet;
-import java.sql.SQLSyntaxErrorException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.Vector;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.DateUtil;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.springframework.util.StringUtils;
+import org.apache.poi.POIXMLDocument;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.spreadsheetimport.reader.CsvRowReader;
+import org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader;
+import org.openmrs.module.spreadsheetimport.reader.WorkbookRowReader;
+import org.openmrs.module.spreadsheetimport.reader.XlsxStreamingRowReader;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.springframework.util.FileCopyUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 /**
@@ -44,6 +52,15 @@ public class SpreadsheetImportUtil {
 	/** Logger for this class and subclasses */
 	protected static final Log log = LogFactory.getLog(SpreadsheetImportUtil.class);
 	
+	/** Number of row violations listed in the messages, the rest is only counted */
+	public static final int MAX_REPORTED_VIOLATIONS = 100;
+	
+	public static final String FORMAT_CSV = "csv";
+	
+	public static final String FORMAT_XLS = "xls";
+	
+	public static final String FORMAT_XLSX = "xlsx";
+	
 	/**
 	 * Resolve template dependencies: 1. Generate pre-specified values which are necessary for
 	 * template to be imported. 2. Create import indices which describe the order in which columns
@@ -215,171 +232,761 @@ public class SpreadsheetImportUtil {
 	
 	public static File importTemplate(SpreadsheetImportTemplate template, MultipartFile file, String sheetName,
 	                                     List<String> messages, boolean rollbackTransaction) throws Exception {
+		return importTemplate(template, file, sheetName, messages, new ImportOptions(rollbackTransaction));
+	}
+	
+	/**
+	 * Import the rows of one sheet selected by the options. Large sheets can be split by row range
+	 * or into shards by patient identifier and imported by several runs, each of which checks the
+	 * header once and then only decodes and imports its own rows.
+	 */
+	public static File importTemplate(SpreadsheetImportTemplate template, MultipartFile file, String sheetName,
+	                                     List<String> messages, ImportOptions options) throws Exception {
 
 		if (file.isEmpty()) {
 			messages.add("file must not be empty");
 			return null;
 		}
 		
-		// Open file
-		Workbook wb = WorkbookFactory.create(file.getInputStream());
-		Sheet sheet;
-		if (!StringUtils.hasText(sheetName)) {
-			sheet = wb.getSheetAt(0);
-		} else {
-			sheet = wb.getSheet(sheetName);
+		String invalidOptions = options.validate();
+		if (invalidOptions != null) {
+			messages.add(invalidOptions);
+			return null;
 		}
 		
-		// Header row
-		Row firstRow = sheet.getRow(0);
-		if (firstRow == null) {
-			messages.add("Spreadsheet header row must not be null");
+		return importTemplate(template, spoolUpload(file), sheetName, messages, options, new ImportProgress());
+	}
+	
+	/**
+	 * Copy an upload to a temporary file; the streaming reader needs random access to the zip
+	 * entries, and background imports outlive the request
+	 */
+	public static File spoolUpload(MultipartFile file) throws Exception {
+		return spoolUpload(file, null);
+	}
+	
+	/**
+	 * @param directory where to spool the upload, null for the temporary directory; the result of
+	 *            the import is written to the same directory
+	 */
+	public static File spoolUpload(MultipartFile file, File directory) throws Exception {
+		File spoolFile = File.createTempFile("sim", ".xls", directory);
+		try {
+			file.transferTo(spoolFile);
+		}
+		catch (Exception e) {
+			spoolFile.delete();
+			throw e;
+		}
+		return spoolFile;
+	}
+	
+	/**
+	 * Copy a stream to a temporary file, for readers which need random access
+	 * 
+	 * @param directory where to spool the stream, null for the temporary directory
+	 */
+	public static File spoolStream(InputStream in, File directory) throws IOException {
+		File spoolFile = File.createTempFile("sim", ".xls", directory);
+		try {
+			FileCopyUtils.copy(in, new FileOutputStream(spoolFile));
+		}
+		catch (IOException e) {
+			spoolFile.delete();
+			throw e;
+		}
+		return spoolFile;
+	}
+	
+	/**
+	 * Read the first rows of an upload and validate them as the import would, without writing
+	 * anything. CSV uploads are read straight from the upload; .xls and .xlsx files are spooled
+	 * first, as their readers need a file.
+	 * 
+	 * @param maxRows the number of data rows to show
+	 */
+	public static ImportPreview preview(SpreadsheetImportTemplate template, MultipartFile file, String sheetName,
+	                                    int maxRows) throws Exception {
+		String name = file.getOriginalFilename();
+		if (name != null && name.toLowerCase().endsWith(".csv"))
+			return preview(template, new CsvRowReader(new InputStreamReader(file.getInputStream(), "UTF-8")), maxRows);
+		
+		File spoolFile = spoolUpload(file);
+		try {
+			return preview(template, openReader(spoolFile, sheetName), maxRows);
+		}
+		finally {
+			spoolFile.delete();
+		}
+	}
+	
+	/**
+	 * Decode and bind the first rows of a sheet and check them against the database with the
+	 * validation of the import. Only the header and the rows shown are read, so this takes about
+	 * as long for a large sheet as for a small one. The reader is closed when done.
+	 * 
+	 * @param maxRows the number of data rows to show; skipped rows, e.g. empty ones, do not count
+	 */
+	public static ImportPreview preview(SpreadsheetImportTemplate template, SpreadsheetRowReader reader, int maxRows)
+	                                                                                                                  throws Exception {
+		long start = System.currentTimeMillis();
+		ImportPreview preview = new ImportPreview();
+		Connection conn = null;
+		try {
+			ImportPlan plan = createPlan(template, reader, preview.getMessages(), new ImportOptions());
+			if (plan == null)
+				return preview;
+			preview.setColumns(plan);
+			reader.setProjection(plan.getNeededColumns());
+			
+			ValidationCache cache = new ValidationCache();
+			RowBuffer row = plan.createRowBuffer();
+			while (preview.getRows().size() < maxRows && reader.nextRow(row)) {
+				if (!plan.bind(row))
+					continue;
+				if (conn == null)
+					conn = DatabaseBackend.openConnection();
+				String error = null;
+				try {
+					DatabaseBackend.validateData(conn, row.getRowData(), cache);
+					DatabaseBackend.checkDuplicateValues(conn, row.getRowData(), cache, row.getRowNum());
+				}
+				catch (SpreadsheetImportTemplateValidationException e) {
+					error = describeError(e);
+				}
+				catch (SpreadsheetImportDuplicateValueException e) {
+					error = describeError(e);
+				}
+				preview.addRow(row, error);
+			}
+		}
+		finally {
+			reader.close();
+			if (conn != null)
+				conn.close();
+		}
+		preview.millis = System.currentTimeMillis() - start;
+		return preview;
+	}
+	
+	/**
+	 * Import a spooled upload, reporting progress as rows are validated and imported. The spool
+	 * file is deleted when the import is done.
+	 * 
+	 * @return the result file, see {@link ResultFileWriter}, or null if the import failed and
+	 *         messages say why; the caller deletes it when done with it
+	 */
+	public static File importTemplate(SpreadsheetImportTemplate template, File spoolFile, String sheetName,
+	                                     List<String> messages, ImportOptions options, ImportProgress progress)
+	                                                                                                           throws Exception {
+		return importTemplate(template, spoolFile, sheetName, messages, options, progress, null);
+	}
+	
+	/**
+	 * Import a spooled upload from a checkpoint: rows the checkpoint records as imported are
+	 * neither read nor validated again, and every row imported is recorded in it. The spool file is
+	 * kept if the import fails, so that it can be resumed.
+	 * 
+	 * @param checkpoint may be null to import without one
+	 */
+	public static File importTemplate(SpreadsheetImportTemplate template, File spoolFile, String sheetName,
+	                                     List<String> messages, ImportOptions options, ImportProgress progress,
+	                                     ImportCheckpoint checkpoint) throws Exception {
+		return importTemplate(template, spoolFile, sheetName, messages, options, progress, checkpoint, null);
+	}
+	
+	/**
+	 * Imports other than dry runs are recorded as an {@link ImportRun} when they are done.
+	 * 
+	 * @param listener is told the outcome of every row, may be null
+	 */
+	public static File importTemplate(SpreadsheetImportTemplate template, File spoolFile, String sheetName,
+	                                     List<String> messages, ImportOptions options, ImportProgress progress,
+	                                     ImportCheckpoint checkpoint, RowImportListener listener) throws Exception {
+		Date started = new Date();
+		// the spool file is gone when the import is done
+		String fileHash = (options.isDryRun() ? null : hashFile(spoolFile));
+		File resultFile = null;
+		try {
+			resultFile = importSpoolFile(template, spoolFile, sheetName, messages, options, progress, checkpoint,
+			    listener);
+			return resultFile;
+		}
+		finally {
+			progress.startPhase(ImportProgress.PHASE_DONE);
+			if (!options.isDryRun())
+				recordRun(new ImportRun(template, options, progress, fileHash, started, resultFile != null));
+		}
+	}
+	
+	/**
+	 * Import rows which can only be read once, such as rows handed in by a program or a CSV
+	 * stream. They go through the same pipeline as the rows of a spooled upload, but without a
+	 * temporary file: rows are validated as they are imported, even if the options ask to validate
+	 * first, and nothing is written back.
+	 * 
+	 * @param listener is told the outcome of every row, may be null
+	 * @return whether all rows were imported or skipped; if not, messages say why
+	 */
+	public static boolean importRows(SpreadsheetImportTemplate template, SpreadsheetRowReader reader,
+	                                 List<String> messages, ImportOptions options, ImportProgress progress,
+	                                 RowImportListener listener) throws Exception {
+		Date started = new Date();
+		boolean succeeded = false;
+		try {
+			String invalidOptions = options.validate();
+			if (invalidOptions != null) {
+				messages.add(invalidOptions);
+				return false;
+			}
+			if (options.isValidatedBeforeImport())
+				messages.add("Rows read from a stream are validated as they are imported");
+			progress.getThrottle().setLimits(options);
+			
+			ImportPlan plan = createPlan(template, reader, messages, options);
+			if (plan == null)
+				return false;
+			reader.setProjection(plan.getNeededColumns());
+			skipToFirstRow(reader, options, null);
+			progress.setTotalRows(options.estimateRows(reader.getLastRowNum()));
+			if (options.isDryRun())
+				return dryRun(plan, reader, messages, options, progress, listener,
+				    isLedgerUsed(template, options) ? createLedger(template, plan, options) : null, null);
+			
+			progress.startPhase(ImportProgress.PHASE_IMPORTING);
+			ImportPipeline pipeline = new ImportPipeline(plan, reader, options);
+			pipeline.setProgress(progress);
+			pipeline.setListener(listener);
+			RowLedger ledger = null;
+			if (isLedgerUsed(template, options)) {
+				ledger = createLedger(template, plan, options);
+				pipeline.setLedger(ledger);
+			}
+			try {
+				pipeline.run();
+			} catch (Exception e) {
+				String message = describeError(e);
+				if (message == null)
+					throw e;
+				messages.add(message);
+				return false;
+			}
+			reportSkippedRows(ledger, progress, messages);
+			reportRejectedRows(null, progress, messages);
+			succeeded = true;
+			return true;
+		}
+		finally {
+			reader.close();
+			progress.startPhase(ImportProgress.PHASE_DONE);
+			if (!options.isDryRun())
+				recordRun(new ImportRun(template, options, progress, null, started, succeeded));
+		}
+	}
+	
+	/**
+	 * Start importing the rows of a reader on a thread of its own, as the user calling this
+	 * 
+	 * @see #importRows(SpreadsheetImportTemplate, SpreadsheetRowReader, List, ImportOptions,
+	 *      ImportProgress, RowImportListener)
+	 */
+	public static ImportResult startImport(final SpreadsheetImportTemplate template, final SpreadsheetRowReader reader,
+	                                       final ImportOptions options) {
+		final ImportResult result = new ImportResult();
+		return start(result, options, new Callable<Boolean>() {
+			
+			public Boolean call() throws Exception {
+				return importRows(reload(template), reader, result.messages, options, result.progress, result);
+			}
+		});
+	}
+	
+	/**
+	 * Start importing a spooled .xls or .xlsx file on a thread of its own, as the user calling
+	 * this; the spool file is deleted when the import is done
+	 */
+	public static ImportResult startImport(final SpreadsheetImportTemplate template, final File spoolFile,
+	                                       final String sheetName, final ImportOptions options) {
+		final ImportResult result = new ImportResult();
+		return start(result, options, new Callable<Boolean>() {
+			
+			public Boolean call() throws Exception {
+				result.resultFile = importTemplate(reload(template), spoolFile, sheetName, result.messages, options,
+				    result.progress, null, result);
+				File rejectFile = getRejectFile(spoolFile);
+				if (rejectFile.exists())
+					result.rejectFile = rejectFile;
+				File keyManifestFile = getKeyManifestFile(spoolFile);
+				if (keyManifestFile.exists())
+					result.keyManifestFile = keyManifestFile;
+				return result.resultFile != null;
+			}
+		});
+	}
+	
+	/**
+	 * @return the template loaded in the session of the import thread, as the one passed in may
+	 *         belong to a session closed before the import is done
+	 */
+	private static SpreadsheetImportTemplate reload(SpreadsheetImportTemplate template) {
+		if (template.getId() == null)
+			return template;
+		SpreadsheetImportTemplate loaded = Context.getService(SpreadsheetImportService.class).getTemplateById(
+		    template.getId());
+		return loaded == null ? template : loaded;
+	}
+	
+	private static ImportResult start(final ImportResult result, ImportOptions options, final Callable<Boolean> body) {
+		// the import thread has no user context of its own
+		final UserContext userContext = Context.getUserContext();
+		if (options.getCreatorId() == null && Context.getAuthenticatedUser() != null)
+			options.setCreatorId(Context.getAuthenticatedUser().getId());
+		
+		Thread thread = new ImportThreadFactory("api").newThread(new Runnable() {
+			
+			public void run() {
+				boolean succeeded = false;
+				Context.openSession();
+				try {
+					Context.setUserContext(userContext);
+					succeeded = body.call().booleanValue();
+				}
+				catch (Throwable t) {
+					log.error("Import failed", t);
+					result.messages.add("Import failed: " + t);
+				}
+				finally {
+					result.progress.startPhase(ImportProgress.PHASE_DONE);
+					try {
+						Context.clearUserContext();
+						Context.closeSession();
+					}
+					finally {
+						result.finish(succeeded);
+					}
+				}
+			}
+		});
+		thread.start();
+		return result;
+	}
+	
+	private static File importSpoolFile(SpreadsheetImportTemplate template, File spoolFile, String sheetName,
+	                                    List<String> messages, ImportOptions options, ImportProgress progress,
+	                                    ImportCheckpoint checkpoint, final RowImportListener listener)
+	                                                                                                        throws Exception {
+		String invalidOptions = options.validate();
+		if (invalidOptions != null) {
+			messages.add(invalidOptions);
+			spoolFile.delete();
 			return null;
 		}
+		if (checkpoint != null && !checkpoint.isEmpty())
+			messages.add("Resuming at row " + (checkpoint.getResumeRow() + 1));
+		progress.getThrottle().setLimits(options);
 		
-		List<String> columnNames = new Vector<String>();
-		for (Cell cell : firstRow) {
-			columnNames.add(cell.getStringCellValue());
+		boolean resumed = checkpoint != null && !checkpoint.isEmpty();
+		File resultFile = getResultFile(spoolFile);
+		SpreadsheetRowReader reader = null;
+		ResultFileWriter resultWriter = null;
+		KeyManifestWriter manifestWriter = null;
+		boolean succeeded = false;
+		try {
+			reader = openReader(spoolFile, sheetName);
+			ImportPlan plan = createPlan(template, reader, messages, options);
+			if (plan == null)
+				return null;
+			boolean useLedger = isLedgerUsed(template, options);
+			
+			// Only decode the cells the template refers to
+			reader.setProjection(plan.getNeededColumns());
+			skipToFirstRow(reader, options, checkpoint);
+			progress.setTotalRows(options.estimateRows(reader.getLastRowNum()));
+			
+			if (options.isDryRun()) {
+				if (!dryRun(plan, reader, messages, options, progress, listener, useLedger ? createLedger(template, plan,
+				    options) : null, resultFile))
+					return null;
+				succeeded = true;
+				spoolFile.delete();
+				return resultFile;
+			}
+			
+			// Find all problems before the first row is written
+			if (options.isValidatedBeforeImport()) {
+				progress.startPhase(ImportProgress.PHASE_VALIDATING);
+				SheetValidator validator = new SheetValidator(plan, reader, options);
+				validator.setProgress(progress);
+				validator.setCheckpoint(checkpoint);
+				if (useLedger)
+					validator.setLedger(createLedger(template, plan, options));
+				List<RowViolation> violations;
+				try {
+					violations = validator.run();
+				}
+				catch (SpreadsheetImportCancelledException e) {
+					messages.add(describeError(e));
+					return null;
+				}
+				if (!violations.isEmpty()) {
+					reportViolations(violations, messages, progress, listener);
+					return null;
+				}
+				
+				// Start over for the import
+				reader.close();
+				reader = openReader(spoolFile, sheetName);
+				reader.readHeader();
+				reader.setProjection(plan.getNeededColumns());
+				skipToFirstRow(reader, options, checkpoint);
+			}
+			
+			// Process rows
+			progress.startPhase(ImportProgress.PHASE_IMPORTING);
+			ImportPipeline pipeline = new ImportPipeline(plan, reader, options);
+			pipeline.setProgress(progress);
+			pipeline.setCheckpoint(checkpoint);
+			RowLedger ledger = null;
+			if (useLedger) {
+				ledger = createLedger(template, plan, options);
+				pipeline.setLedger(ledger);
+			}
+			RejectFileWriter rejectWriter = null;
+			if (options.isContinueOnError()) {
+				// a resumed job adds to the rows rejected before
+				rejectWriter = new RejectFileWriter(getRejectFile(spoolFile), plan.getColumnNames(), plan
+				        .getNeededColumns(), resumed);
+				pipeline.setRejectWriter(rejectWriter);
+			}
+			
+			// Write the result as rows are imported, a resumed job adds to the rows written before
+			final ResultFileWriter writer = new ResultFileWriter(resultFile, plan.getColumnNames(), plan
+			        .getNeededColumns(), plan.getEncounterOrdinals(), resumed);
+			resultWriter = writer;
+			if (options.isKeyManifest())
+				manifestWriter = new KeyManifestWriter(getKeyManifestFile(spoolFile), plan.getUniqueImports(), resumed);
+			final KeyManifestWriter manifest = manifestWriter;
+			pipeline.setListener(new RowImportListener() {
+				
+				public void rowImported(RowBuffer row) throws Exception {
+					if (!row.isSkipped())
+						writer.write(row);
+					if (manifest != null)
+						manifest.imported(row);
+					if (listener != null)
+						listener.rowImported(row);
+				}
+				
+				public void rowFailed(int rowNum, String message) throws Exception {
+					if (manifest != null)
+						manifest.failed(rowNum);
+					if (listener != null)
+						listener.rowFailed(rowNum, message);
+				}
+			});
+			try {
+				pipeline.run();
+			} catch (Exception e) {
+				String message = describeError(e);
+				if (message == null)
+					throw e;
+				messages.add(message);
+				return null;
+			}
+			finally {
+				if (rejectWriter != null)
+					rejectWriter.close();
+			}
+			reportSkippedRows(ledger, progress, messages);
+			reportRejectedRows(rejectWriter, progress, messages);
+			succeeded = true;
+		}
+		finally {
+			if (reader != null)
+				reader.close();
+			if (resultWriter != null)
+				resultWriter.close();
+			if (manifestWriter != null)
+				manifestWriter.close();
+			// a job which failed keeps its files to be resumed
+			if (!succeeded && checkpoint == null) {
+				spoolFile.delete();
+				resultFile.delete();
+				getKeyManifestFile(spoolFile).delete();
+			}
+		}
+		
+		spoolFile.delete();
+		return resultFile;
+	}
+	
+	/**
+	 * Check the rows and count what importing them would create and reuse, without writing to the
+	 * database
+	 * 
+	 * @param ledger rows it knows as imported are counted as skipped, may be null
+	 * @param reportFile where the counts are written as CSV, may be null
+	 * @return whether all rows are valid
+	 */
+	private static boolean dryRun(ImportPlan plan, SpreadsheetRowReader reader, List<String> messages,
+	                              ImportOptions options, ImportProgress progress, RowImportListener listener,
+	                              RowLedger ledger, File reportFile) throws Exception {
+		progress.startPhase(ImportProgress.PHASE_VALIDATING);
+		DryRunValidator validator = new DryRunValidator(plan, reader, options);
+		validator.setProgress(progress);
+		validator.setLedger(ledger);
+		List<RowViolation> violations;
+		try {
+			violations = validator.run();
+		}
+		catch (SpreadsheetImportCancelledException e) {
+			messages.add(describeError(e));
+			return false;
+		}
+		messages.addAll(validator.describe());
+		if (reportFile != null)
+			validator.writeReport(reportFile);
+		if (!violations.isEmpty()) {
+			reportViolations(violations, messages, progress, listener);
+			return false;
+		}
+		return true;
+	}
+	
+	private static void reportViolations(List<RowViolation> violations, List<String> messages,
+	                                     ImportProgress progress, RowImportListener listener) throws Exception {
+		for (int i = 0; i < violations.size(); i++) {
+			progress.rowFailed();
+		}
+		if (listener != null) {
+			for (RowViolation violation : violations) {
+				listener.rowFailed(violation.getRowNum(), violation.getMessage());
+			}
+		}
+		messages.add("Validation failed for " + violations.size() + " rows, nothing was imported");
+		for (int i = 0; i < violations.size() && i < MAX_REPORTED_VIOLATIONS; i++) {
+			messages.add(violations.get(i).toString());
+		}
+		if (violations.size() > MAX_REPORTED_VIOLATIONS)
+			messages.add("... and " + (violations.size() - MAX_REPORTED_VIOLATIONS) + " more");
+	}
+	
+	/**
+	 * Read the header row and match it with the template
+	 * 
+	 * @return the plan, or null if the sheet cannot be imported and messages say why
+	 */
+	private static ImportPlan createPlan(SpreadsheetImportTemplate template, SpreadsheetRowReader reader,
+	                                     List<String> messages, ImportOptions options) throws Exception {
+		// Header row
+		List<String> columnNames = reader.readHeader();
+		if (columnNames == null) {
+			messages.add("Spreadsheet header row must not be null");
+			return null;
 		}
 		if (log.isDebugEnabled()) {
 			log.debug("Column names: " + columnNames.toString());
 		}
 		
+		ImportPlan plan = new ImportPlan(template, columnNames);
+		
 		// Required column names
-		List<String> columnNamesOnlyInTemplate = new Vector<String>();
-		columnNamesOnlyInTemplate.addAll(template.getColumnNamesAsList());
-		columnNamesOnlyInTemplate.removeAll(columnNames);
-		if (columnNamesOnlyInTemplate.isEmpty() == false) {
-			messages.add("required column names not present: " + toString(columnNamesOnlyInTemplate));
+		if (plan.getColumnNamesOnlyInTemplate().isEmpty() == false) {
+			messages.add("required column names not present: " + toString(plan.getColumnNamesOnlyInTemplate()));
 			return null;
 		}
 		
 		// Extra column names?
-		List<String> columnNamesOnlyInSheet = new Vector<String>();
-		columnNamesOnlyInSheet.addAll(columnNames);
-		columnNamesOnlyInSheet.removeAll(template.getColumnNamesAsList());
-		if (columnNamesOnlyInSheet.isEmpty() == false) {
-			messages.add("Extra column names present, these will not be processed: " + toString(columnNamesOnlyInSheet));
+		if (plan.getColumnNamesOnlyInSheet().isEmpty() == false) {
+			messages.add("Extra column names present, these will not be processed: " + toString(plan.getColumnNamesOnlyInSheet()));
 		}
 		
-		// Process rows
-		boolean skipThisRow = true;
-		for (Row row : sheet) {
-			if (skipThisRow == true) {
-				skipThisRow = false;
-			} else {
-				boolean rowHasData = false;
-				Map<UniqueImport, Set<SpreadsheetImportTemplateColumn>> rowData = template
-				        .getMapOfUniqueImportToColumnSetSortedByImportIdx();
-				
-				for (UniqueImport uniqueImport : rowData.keySet()) {
-					Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-					for (SpreadsheetImportTemplateColumn column : columnSet) {
-												
-						int idx = columnNames.indexOf(column.getName());
-						Cell cell = row.getCell(idx);
-						
-						Object value = null;
-						// check for empty cell (new Encounter)
-						if (cell == null) {
-							rowHasData = true;
-							column.setValue("");
-							continue;
-						}
-						
-						switch (cell.getCellType()) {
-							case Cell.CELL_TYPE_BOOLEAN:
-								value = new Boolean(cell.getBooleanCellValue());
-								break;
-							case Cell.CELL_TYPE_ERROR:
-								value = new Byte(cell.getErrorCellValue());
-								break;
-							case Cell.CELL_TYPE_FORMULA:
-							case Cell.CELL_TYPE_NUMERIC:
-								if (DateUtil.isCellDateFormatted(cell)) {
-									java.util.Date date = cell.getDateCellValue();
-									value = "'" + new java.sql.Timestamp(date.getTime()).toString() + "'";
-								} else {
-									value = cell.getNumericCellValue();
-								}
-								break;
-							case Cell.CELL_TYPE_STRING:
-								// Escape for SQL
-								value = "'" + cell.getRichStringCellValue() + "'";
-								break;
-						}
-						if (value != null) {
-							rowHasData = true;
-							column.setValue(value);
-						} else
-							column.setValue("");
-					}
-				}
-				
-				for (UniqueImport uniqueImport : rowData.keySet()) {
-					Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-					boolean isFirst = true;
-					for (SpreadsheetImportTemplateColumn column : columnSet) {
-
-						if (isFirst) {
-							// Should be same for all columns in unique import
-//							System.out.println("SpreadsheetImportUtil.importTemplate: column.getColumnPrespecifiedValues(): " + column.getColumnPrespecifiedValues().size());
-							if (column.getColumnPrespecifiedValues().size() > 0) {
-								Set<SpreadsheetImportTemplateColumnPrespecifiedValue> columnPrespecifiedValueSet = column.getColumnPrespecifiedValues();
-								for (SpreadsheetImportTemplateColumnPrespecifiedValue columnPrespecifiedValue : columnPrespecifiedValueSet) {
-//									System.out.println(columnPrespecifiedValue.getPrespecifiedValue().getValue());
-								}
-							}
-						}
-					}
-				}
-				
-				
-				
-				if (rowHasData) {
-					Exception exception = null;
-					try {
-						DatabaseBackend.validateData(rowData);
-						String encounterId = DatabaseBackend.importData(rowData, rollbackTransaction);
-						if (encounterId != null) {
-							for (UniqueImport uniqueImport : rowData.keySet()) {
-								Set<SpreadsheetImportTemplateColumn> columnSet = rowData.get(uniqueImport);
-								for (SpreadsheetImportTemplateColumn column : columnSet) {
-									if ("encounter".equals(column.getTableName())) {						
-										int idx = columnNames.indexOf(column.getName());
-										Cell cell = row.getCell(idx);
-										if (cell == null)											
-											cell = row.createCell(idx);
-										cell.setCellValue(encounterId);
-									}
-								}
-							}
-						}
-					} catch (SpreadsheetImportTemplateValidationException e) {
-						messages.add("Validation failed: " + e.getMessage());
-						return null;
-					} catch (SpreadsheetImportDuplicateValueException e) {
-						messages.add("found duplicate value for column " + e.getColumn().getName() + " with value " + e.getColumn().getValue());
-						return null;
-					} catch (SpreadsheetImportSQLSyntaxException e) {
-						messages.add("SQL syntax error: \"" + e.getSqlErrorMessage() + "\".<br/>Attempted SQL Statement: \"" + e.getSqlStatement() + "\"");
-						return null;
-					} catch (Exception e) {
-						exception = e;
-					}
-					if (exception != null) {
-						throw exception;
-					}
+		if (options.isDeltaImport() && plan.getRowKeyOrdinals().length == 0) {
+			messages.add("Delta import needs a template with row key columns");
+			return null;
+		}
+		return plan;
+	}
+	
+	/**
+	 * Rows imported before are only skipped for saved templates
+	 */
+	private static boolean isLedgerUsed(SpreadsheetImportTemplate template, ImportOptions options) {
+		return (options.isSkipImportedRows() || options.isDeltaImport()) && template.getId() != null;
+	}
+	
+	private static void reportSkippedRows(RowLedger ledger, ImportProgress progress, List<String> messages) {
+		if (ledger instanceof RowKeySnapshot) {
+			RowKeySnapshot snapshot = (RowKeySnapshot) ledger;
+			messages.add("Delta import: " + snapshot.getNewRows() + " new rows, " + snapshot.getChangedRows()
+			        + " changed rows, " + snapshot.getUnchangedRows() + " unchanged rows skipped");
+		} else if (progress.getRowsSkipped() > 0)
+			messages.add(progress.getRowsSkipped() + " rows were imported before and have been skipped");
+	}
+	
+	/**
+	 * Rows rejected when continuing on errors are listed in the reject file, which is deleted if
+	 * there are none
+	 */
+	private static void reportRejectedRows(RejectFileWriter rejectWriter, ImportProgress progress, List<String> messages) {
+		if (rejectWriter != null && rejectWriter.getCount() == 0 && !rejectWriter.isAppend())
+			rejectWriter.getFile().delete();
+		if (progress.getRowsRejected() == 0)
+			return;
+		String message = progress.getRowsRejected() + " rows failed and were not imported";
+		if (rejectWriter != null)
+			message += "; the reject file lists them with the reasons, fix them there and import it again";
+		messages.add(message);
+	}
+	
+	/**
+	 * @return the CSV file of the rows imported from a spool file with their generated keys, see
+	 *         {@link ResultFileWriter}
+	 */
+	public static File getResultFile(File spoolFile) {
+		return new File(spoolFile.getPath() + ".result.csv");
+	}
+	
+	/**
+	 * @return the manifest of the keys generated by an import of a spool file, see
+	 *         {@link KeyManifestWriter}
+	 */
+	public static File getKeyManifestFile(File spoolFile) {
+		return new File(spoolFile.getPath() + ".keys.csv");
+	}
+	
+	/**
+	 * @return the file of the rows rejected by an import of a spool file which continues on errors
+	 */
+	public static File getRejectFile(File spoolFile) {
+		return new File(spoolFile.getPath() + ".rejects.csv");
+	}
+	
+	/**
+	 * Store the record of an import; an import is not failed because its record cannot be stored
+	 */
+	private static void recordRun(ImportRun run) {
+		try {
+			Context.getService(SpreadsheetImportService.class).saveImportRun(run);
+		}
+		catch (Exception e) {
+			log.warn("Cannot record the run of template " + run.getTemplateId(), e);
+		}
+	}
+	
+	/**
+	 * @return the hex MD5 of a file, or null if it cannot be read
+	 */
+	private static String hashFile(File file) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] buffer = new byte[65536];
+			InputStream in = new FileInputStream(file);
+			try {
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, n);
 				}
 			}
+			finally {
+				in.close();
+			}
+			return RowLedger.toHex(digest.digest());
 		}
+		catch (Exception e) {
+			log.warn("Cannot hash " + file, e);
+			return null;
+		}
+	}
+	
+	/**
+	 * A delta import compares rows by row key, otherwise rows are compared by content
+	 */
+	private static RowLedger createLedger(SpreadsheetImportTemplate template, ImportPlan plan, ImportOptions options) {
+		if (options.isDeltaImport())
+			return new RowKeySnapshot(template.getId(), plan);
+		return new RowLedger(template.getId(), plan);
+	}
+	
+	/**
+	 * Skip the rows before the row range and the rows imported before the checkpoint without
+	 * decoding them
+	 */
+	private static void skipToFirstRow(SpreadsheetRowReader reader, ImportOptions options, ImportCheckpoint checkpoint) {
+		int firstRowNum = (options.getFirstRow() == null ? 1 : options.getFirstRow() - 1);
+		if (checkpoint != null)
+			firstRowNum = Math.max(firstRowNum, checkpoint.getResumeRow());
+		if (firstRowNum > 1)
+			reader.skipTo(firstRowNum);
+	}
+	
+	/**
+	 * Message shown to the user for an exception which stops an import
+	 * 
+	 * @return the message, or null if e is not one of the import exceptions
+	 */
+	public static String describeError(Exception e) {
+		if (e instanceof SpreadsheetImportTemplateValidationException) {
+			return "Validation failed: " + e.getMessage();
+		} else if (e instanceof SpreadsheetImportDuplicateValueException) {
+			SpreadsheetImportTemplateColumn column = ((SpreadsheetImportDuplicateValueException) e).getColumn();
+			return "found duplicate value for column " + column.getName() + " with value " + column.getValue();
+		} else if (e instanceof SpreadsheetImportCancelledException) {
+			return e.getMessage();
+		} else if (e instanceof SpreadsheetImportSQLSyntaxException) {
+			SpreadsheetImportSQLSyntaxException se = (SpreadsheetImportSQLSyntaxException) e;
+			return "SQL syntax error: \"" + se.getSqlErrorMessage() + "\".<br/>Attempted SQL Statement: \"" + se.getSqlStatement() + "\"";
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the name of the column an exception which stops or rejects a row is about, or null
+	 */
+	public static String getFailedColumn(Exception e) {
+		SpreadsheetImportTemplateColumn column = null;
+		if (e instanceof SpreadsheetImportTemplateValidationException)
+			column = ((SpreadsheetImportTemplateValidationException) e).getColumn();
+		else if (e instanceof SpreadsheetImportDuplicateValueException)
+			column = ((SpreadsheetImportDuplicateValueException) e).getColumn();
+		return column == null ? null : column.getName();
+	}
+	
+	/**
+	 * Generated keys go to the result file rather than back into the workbook, so .xlsx files are
+	 * always streamed without building the workbook. Files which are neither .xlsx nor .xls are
+	 * read as CSV in UTF-8, e.g. a reject file imported again.
+	 */
+	private static SpreadsheetRowReader openReader(File spoolFile, String sheetName) throws Exception {
+		String format = getFormat(spoolFile);
+		if (FORMAT_CSV.equals(format))
+			return new CsvRowReader(new InputStreamReader(new FileInputStream(spoolFile), "UTF-8"));
+		if (FORMAT_XLSX.equals(format))
+			return new XlsxStreamingRowReader(spoolFile, sheetName);
 		
-		// write back Excel file to a temp location
-		File returnFile = File.createTempFile("sim", ".xls");
-		FileOutputStream fos = new FileOutputStream(returnFile);
-		wb.write(fos);
-		fos.close();
-		
-		return returnFile;
+		InputStream is = new FileInputStream(spoolFile);
+		try {
+			return new WorkbookRowReader(is, sheetName);
+		}
+		finally {
+			is.close();
+		}
+	}
+	
+	/**
+	 * Check for the zip signature of an .xlsx file and the OLE2 signature of an .xls file
+	 * 
+	 * @return {@link #FORMAT_XLSX}, {@link #FORMAT_XLS} or, for anything else, {@link #FORMAT_CSV}
+	 */
+	private static String getFormat(File file) throws Exception {
+		InputStream is = new PushbackInputStream(new FileInputStream(file), 8);
+		try {
+			if (POIXMLDocument.hasOOXMLHeader(is))
+				return FORMAT_XLSX;
+			return POIFSFileSystem.hasPOIFSHeader(is) ? FORMAT_XLS : FORMAT_CSV;
+		}
+		finally {
+			is.close();
+		}
 	}
 }
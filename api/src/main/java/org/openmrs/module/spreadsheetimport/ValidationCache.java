@@ -0,0 +1,166 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.openmrs.module.spreadsheetimport.reader.CellValues;
+
+/**
+ * Concept and identifier type definitions looked up while validating rows. A template refers to a
+ * handful of concepts and identifier types, so each is queried once per import instead of once per
+ * row. Also remembers the values of no-duplicate columns seen so far in the sheet. Shared by all
+ * validator threads.
+ */
+public class ValidationCache {
+
+	private static final double[] NOT_NUMERIC = new double[0];
+
+	private static final Pattern NO_FORMAT = Pattern.compile("");
+
+	private static final Pattern NO_IDENTIFIER_TYPE = Pattern.compile("");
+
+	ConcurrentMap<String, Set<Double>> conceptAnswers = new ConcurrentHashMap<String, Set<Double>>();
+
+	ConcurrentMap<String, String> conceptNames = new ConcurrentHashMap<String, String>();
+
+	ConcurrentMap<String, double[]> numericRanges = new ConcurrentHashMap<String, double[]>();
+
+	ConcurrentMap<String, Pattern> identifierFormats = new ConcurrentHashMap<String, Pattern>();
+
+	ConcurrentMap<String, ConcurrentMap<String, Integer>> uniqueValues = new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+
+	/**
+	 * @param value cell value as handed to the database backend
+	 * @return whether value is one of the answers of the coded concept
+	 */
+	public boolean isConceptAnswer(Connection conn, String conceptId, Object value) throws SQLException {
+		Set<Double> answers = conceptAnswers.get(conceptId);
+		if (answers == null) {
+			answers = new HashSet<Double>();
+			Statement s = conn.createStatement();
+			try {
+				ResultSet rs = s.executeQuery("select answer_concept from concept_answer where concept_id = '" + conceptId
+				        + "'");
+				while (rs.next()) {
+					answers.add(rs.getDouble(1));
+				}
+				rs.close();
+			}
+			finally {
+				s.close();
+			}
+			conceptAnswers.putIfAbsent(conceptId, answers);
+		}
+		// the database compares the cell text with the integer answer_concept numerically
+		try {
+			return answers.contains(Double.valueOf(CellValues.unquote(value).trim()));
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	public String getConceptName(Connection conn, String conceptId) throws SQLException {
+		String name = conceptNames.get(conceptId);
+		if (name == null) {
+			Statement s = conn.createStatement();
+			try {
+				ResultSet rs = s.executeQuery("select name from concept_name where concept_id = " + conceptId);
+				rs.next();
+				name = rs.getString(1);
+				rs.close();
+			}
+			finally {
+				s.close();
+			}
+			conceptNames.putIfAbsent(conceptId, name);
+		}
+		return name;
+	}
+
+	/**
+	 * @return low_absolute and hi_absolute of the concept, or null if it is not a numeric concept
+	 */
+	public double[] getNumericRange(Connection conn, String conceptId) throws SQLException {
+		double[] range = numericRanges.get(conceptId);
+		if (range == null) {
+			Statement s = conn.createStatement();
+			try {
+				ResultSet rs = s.executeQuery("select hi_absolute, low_absolute from concept_numeric where concept_id = '"
+				        + conceptId + "'");
+				range = rs.next() ? new double[] { rs.getDouble(2), rs.getDouble(1) } : NOT_NUMERIC;
+				rs.close();
+			}
+			finally {
+				s.close();
+			}
+			numericRanges.putIfAbsent(conceptId, range);
+		}
+		return range == NOT_NUMERIC ? null : range;
+	}
+
+	/**
+	 * @return the format of the identifier type, or null if it has none
+	 * @throws SpreadsheetImportTemplateValidationException if the identifier type does not exist
+	 */
+	public Pattern getIdentifierFormat(Connection conn, String patientIdentifierTypeId) throws SQLException,
+	                                                                                   SpreadsheetImportTemplateValidationException {
+		Pattern format = identifierFormats.get(patientIdentifierTypeId);
+		if (format == null) {
+			Statement s = conn.createStatement();
+			try {
+				ResultSet rs = s.executeQuery("select format from patient_identifier_type where patient_identifier_type_id = "
+				        + patientIdentifierTypeId);
+				if (!rs.next()) {
+					format = NO_IDENTIFIER_TYPE;
+				} else {
+					String regex = rs.getString(1);
+					format = (regex != null && regex.trim().length() != 0) ? Pattern.compile(regex) : NO_FORMAT;
+				}
+				rs.close();
+			}
+			finally {
+				s.close();
+			}
+			identifierFormats.putIfAbsent(patientIdentifierTypeId, format);
+		}
+		if (format == NO_IDENTIFIER_TYPE)
+			throw new SpreadsheetImportTemplateValidationException("invalid prespcified patient identifier type ID");
+		return format == NO_FORMAT ? null : format;
+	}
+
+	/**
+	 * Remember that a row holds value in a column which must not contain duplicates
+	 *
+	 * @return the other row already holding the same value, or null
+	 */
+	public Integer putUniqueValue(SpreadsheetImportTemplateColumn column, Object value, int rowNum) {
+		ConcurrentMap<String, Integer> values = uniqueValues.get(column.getTableDotColumn());
+		if (values == null) {
+			uniqueValues.putIfAbsent(column.getTableDotColumn(), new ConcurrentHashMap<String, Integer>());
+			values = uniqueValues.get(column.getTableDotColumn());
+		}
+		Integer other = values.putIfAbsent(value.toString(), rowNum);
+		return (other == null || other == rowNum) ? null : other;
+	}
+}
@@ -17,6 +17,8 @@ package org.openmrs.module.spreadsheetimport.db.hibernate;
 import java.util.List;
 
 import org.hibernate.SessionFactory;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportRun;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
 
 public interface SpreadsheetImportDAO {
@@ -32,4 +34,16 @@ public interface SpreadsheetImportDAO {
     void deleteSpreadsheetImportTemplate(SpreadsheetImportTemplate template);
     
     public String getPredfinedValueById(int id);
+    
+    void saveImportJob(ImportJob job);
+    
+    ImportJob getImportJobById(String id);
+    
+    List<ImportJob> getImportJobs(String state);
+    
+    void deleteImportJob(ImportJob job);
+    
+    void saveImportRun(ImportRun run);
+    
+    List<ImportRun> getImportRuns(int max);
 }
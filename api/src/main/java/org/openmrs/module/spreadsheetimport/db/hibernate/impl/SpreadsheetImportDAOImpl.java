@@ -20,7 +20,10 @@ import org.hibernate.HibernateException;
 import org.hibernate.SessionFactory;
 import org.hibernate.criterion.CriteriaQuery;
 import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
 import org.hibernate.engine.TypedValue;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportRun;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumnPrespecifiedValue;
@@ -64,5 +67,38 @@ public class SpreadsheetImportDAOImpl implements SpreadsheetImportDAO {
 		return spreadsheetImportTemplatePrespecifiedValue != null ? spreadsheetImportTemplatePrespecifiedValue.getValue() : "";
 	}
 	
+	public void saveImportJob(ImportJob job) {
+		// jobs are updated from the threads running them, merge keeps the instance detached
+		sessionFactory.getCurrentSession().merge(job);
+	}
+	
+	public ImportJob getImportJobById(String id) {
+		return (ImportJob) sessionFactory.getCurrentSession().get(ImportJob.class, id);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<ImportJob> getImportJobs(String state) {
+		Criteria crit = sessionFactory.getCurrentSession().createCriteria(ImportJob.class);
+		crit.add(Restrictions.eq("state", state));
+		crit.addOrder(Order.asc("submitted"));
+		return (List<ImportJob>) crit.list();
+	}
+	
+	public void deleteImportJob(ImportJob job) {
+		sessionFactory.getCurrentSession().delete(job);
+	}
+	
+	public void saveImportRun(ImportRun run) {
+		sessionFactory.getCurrentSession().saveOrUpdate(run);
+	}
+	
+	@SuppressWarnings("unchecked")
+	public List<ImportRun> getImportRuns(int max) {
+		Criteria crit = sessionFactory.getCurrentSession().createCriteria(ImportRun.class);
+		crit.addOrder(Order.desc("finished"));
+		crit.setMaxResults(max);
+		return (List<ImportRun>) crit.list();
+	}
+	
 	
 }
@@ -0,0 +1,111 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+
+/**
+ * Conversions shared by the row readers, so that every reader hands the database backend the same
+ * representation of a cell value.
+ */
+public class CellValues {
+
+	public static Object quote(String s) {
+		// Escape for SQL
+		return "'" + s + "'";
+	}
+
+	public static Object timestamp(Date date) {
+		return "'" + new Timestamp(date.getTime()).toString() + "'";
+	}
+
+	/**
+	 * Convert a value handed in by a program, e.g. from a JDBC result set, to the representation
+	 * of the matching cell: null and empty strings are blank, numbers become Double.
+	 */
+	public static Object fromObject(Object value) {
+		if (value == null)
+			return RowBuffer.BLANK;
+		if (value instanceof String)
+			return ((String) value).length() == 0 ? RowBuffer.BLANK : quote((String) value);
+		if (value instanceof Date)
+			return timestamp((Date) value);
+		if (value instanceof Calendar)
+			return timestamp(((Calendar) value).getTime());
+		if (value instanceof Double || value instanceof Boolean)
+			return value;
+		if (value instanceof Number)
+			return Double.valueOf(((Number) value).doubleValue());
+		return quote(value.toString());
+	}
+
+	/**
+	 * Convert the text of a cell from a file without cell types, such as CSV: plain decimal numbers
+	 * become Double, everything else stays a string. Numbers with leading zeros or a plus sign are
+	 * kept as strings, since they are usually identifiers.
+	 */
+	public static Object fromText(String text) {
+		if (text == null || text.length() == 0)
+			return RowBuffer.BLANK;
+		return isPlainNumber(text) ? (Object) Double.valueOf(text) : quote(text);
+	}
+
+	private static boolean isPlainNumber(String s) {
+		int i = (s.charAt(0) == '-' ? 1 : 0);
+		int start = i;
+		while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+			i++;
+		int digits = i - start;
+		if (digits == 0 || (digits > 1 && s.charAt(start) == '0'))
+			return false;
+		if (i == s.length())
+			return true;
+		if (s.charAt(i++) != '.' || i == s.length())
+			return false;
+		while (i < s.length() && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+			i++;
+		return i == s.length();
+	}
+
+	/**
+	 * Strip the quotes added by {@link #quote(String)} and {@link #timestamp(Date)}
+	 */
+	public static String unquote(Object value) {
+		if (value == null)
+			return "";
+		String s = value.toString();
+		if (s.length() >= 2 && s.charAt(0) == '\'' && s.charAt(s.length() - 1) == '\'')
+			return s.substring(1, s.length() - 1);
+		return s;
+	}
+
+	/**
+	 * Zero-based column ordinal of a cell reference such as "AB12", without allocating a
+	 * CellReference
+	 */
+	public static int columnOrdinal(String cellRef) {
+		int col = 0;
+		for (int i = 0; i < cellRef.length(); i++) {
+			char c = cellRef.charAt(i);
+			if (c < 'A' || c > 'Z')
+				break;
+			col = col * 26 + (c - 'A' + 1);
+		}
+		return col - 1;
+	}
+}
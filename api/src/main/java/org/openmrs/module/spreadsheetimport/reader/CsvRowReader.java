@@ -0,0 +1,204 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+
+/**
+ * Reads comma separated values as they arrive, one record at a time, so the file is never held
+ * in memory or spooled. The first record is the header row. Fields may be quoted with double
+ * quotes as in RFC 4180, in which case they may contain the delimiter, line breaks and doubled
+ * quotes. Field text is converted with {@link CellValues#fromText(String)}; fields outside the
+ * projection are scanned but not converted.
+ */
+public class CsvRowReader implements SpreadsheetRowReader {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(CsvRowReader.class);
+
+	private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+	Reader in;
+
+	char delimiter;
+
+	char[] buffer = new char[8192];
+
+	int position = 0;
+
+	int limit = 0;
+
+	boolean eof = false;
+
+	/** Number of the record read last, the header being row 0 */
+	int rowNum = -1;
+
+	int skipBefore = 0;
+
+	BitSet projection = null;
+
+	List<String> fields = new ArrayList<String>();
+
+	StringBuilder field = new StringBuilder();
+
+	public CsvRowReader(Reader in) {
+		this(in, ',');
+	}
+
+	public CsvRowReader(Reader in, char delimiter) {
+		this.in = in;
+		this.delimiter = delimiter;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#readHeader()
+	 */
+	public List<String> readHeader() throws Exception {
+		if (!readRecord())
+			return null;
+		List<String> columnNames = new Vector<String>(fields);
+		String first = columnNames.get(0);
+		if (first.length() > 0 && first.charAt(0) == BYTE_ORDER_MARK)
+			columnNames.set(0, first.substring(1));
+		return columnNames;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#setProjection(java.util.BitSet)
+	 */
+	public void setProjection(BitSet neededColumns) {
+		projection = neededColumns;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#nextRow(org.openmrs.module.spreadsheetimport.RowBuffer)
+	 */
+	public boolean nextRow(RowBuffer buffer) throws Exception {
+		do {
+			if (!readRecord())
+				return false;
+		} while (rowNum < skipBefore);
+		buffer.reset(rowNum);
+		for (int idx = 0; idx < fields.size(); idx++) {
+			if (projection == null || projection.get(idx))
+				buffer.set(idx, CellValues.fromText(fields.get(idx)));
+		}
+		return true;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#skipTo(int)
+	 */
+	public void skipTo(int rowNum) {
+		skipBefore = rowNum;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#getLastRowNum()
+	 */
+	public int getLastRowNum() {
+		return -1;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#close()
+	 */
+	public void close() {
+		try {
+			in.close();
+		}
+		catch (IOException e) {
+			log.debug("Cannot close CSV input", e);
+		}
+	}
+
+	/**
+	 * Read the fields of the next record
+	 *
+	 * @return false at the end of the input
+	 */
+	boolean readRecord() throws IOException {
+		fields.clear();
+		int c = read();
+		if (c < 0)
+			return false;
+		rowNum++;
+		field.setLength(0);
+		boolean quoted = false;
+		while (true) {
+			if (quoted) {
+				if (c < 0)
+					throw new IOException("Unterminated quoted field in row " + (rowNum + 1));
+				if (c == '"') {
+					c = read();
+					if (c != '"') {
+						quoted = false;
+						continue;
+					}
+				}
+				field.append((char) c);
+			} else if (c == '"' && field.length() == 0) {
+				quoted = true;
+			} else if (c == delimiter) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\n' || c < 0) {
+				break;
+			} else if (c == '\r') {
+				if (peek() == '\n')
+					read();
+				break;
+			} else {
+				field.append((char) c);
+			}
+			c = read();
+		}
+		fields.add(field.toString());
+		return true;
+	}
+
+	private int read() throws IOException {
+		if (position == limit && !fill())
+			return -1;
+		return buffer[position++];
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && !fill())
+			return -1;
+		return buffer[position];
+	}
+
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		int n = in.read(buffer);
+		if (n <= 0) {
+			eof = true;
+			return false;
+		}
+		position = 0;
+		limit = n;
+		return true;
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+
+/**
+ * Reads rows handed in by a program as arrays of values, one array per row in the order of the
+ * column names, e.g. from another database or a message queue. Rows are numbered as if they
+ * followed a header row in a sheet, so the first array is row 1. Values are converted with
+ * {@link CellValues#fromObject(Object)}; the iterator is only advanced as the import asks for rows.
+ */
+public class IteratorRowReader implements SpreadsheetRowReader {
+
+	List<String> columnNames;
+
+	Iterator<Object[]> rows;
+
+	int rowNum = 0;
+
+	int[] projection = null;
+
+	public IteratorRowReader(List<String> columnNames, Iterator<Object[]> rows) {
+		this.columnNames = columnNames;
+		this.rows = rows;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#readHeader()
+	 */
+	public List<String> readHeader() throws Exception {
+		return columnNames == null ? null : new ArrayList<String>(columnNames);
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#setProjection(java.util.BitSet)
+	 */
+	public void setProjection(BitSet neededColumns) {
+		projection = new int[neededColumns.cardinality()];
+		int i = 0;
+		for (int idx = neededColumns.nextSetBit(0); idx >= 0; idx = neededColumns.nextSetBit(idx + 1)) {
+			projection[i++] = idx;
+		}
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#nextRow(org.openmrs.module.spreadsheetimport.RowBuffer)
+	 */
+	public boolean nextRow(RowBuffer buffer) throws Exception {
+		if (rows == null || !rows.hasNext())
+			return false;
+		Object[] values = rows.next();
+		buffer.reset(++rowNum);
+		if (values == null)
+			return true;
+		if (projection == null) {
+			for (int idx = 0; idx < values.length; idx++) {
+				buffer.set(idx, CellValues.fromObject(values[idx]));
+			}
+			return true;
+		}
+		for (int idx : projection) {
+			if (idx < values.length)
+				buffer.set(idx, CellValues.fromObject(values[idx]));
+		}
+		return true;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#skipTo(int)
+	 */
+	public void skipTo(int rowNum) {
+		while (this.rowNum + 1 < rowNum && rows != null && rows.hasNext()) {
+			rows.next();
+			this.rowNum++;
+		}
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#getLastRowNum()
+	 */
+	public int getLastRowNum() {
+		return -1;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#close()
+	 */
+	public void close() {
+		rows = null;
+	}
+}
@@ -0,0 +1,61 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+
+/**
+ * Reads the rows of one sheet. The header row is always read in full; for data rows only the
+ * cells in the projection are decoded. Decoded values use the same representation the database
+ * backend expects: quoted strings and timestamps, Double, Boolean, Byte for error cells and
+ * {@link RowBuffer#BLANK} for blank cells.
+ */
+public interface SpreadsheetRowReader {
+
+	/**
+	 * @return the column names of the header row, or null if the sheet has no header row
+	 */
+	public List<String> readHeader() throws Exception;
+
+	/**
+	 * Restrict decoding of the following data rows to the given column ordinals
+	 */
+	public void setProjection(BitSet neededColumns);
+
+	/**
+	 * Decode the next data row into the buffer
+	 *
+	 * @return false if there are no more rows
+	 */
+	public boolean nextRow(RowBuffer buffer) throws Exception;
+
+	/**
+	 * Skip the rows before rowNum without decoding them, e.g. to resume an import; call after
+	 * {@link #readHeader()}
+	 *
+	 * @param rowNum zero-based number of the first row nextRow may return
+	 */
+	public void skipTo(int rowNum);
+
+	/**
+	 * @return the zero-based number of the last row as recorded in the file, to estimate progress,
+	 *         or -1 if not known (yet)
+	 */
+	public int getLastRowNum();
+
+	public void close();
+}
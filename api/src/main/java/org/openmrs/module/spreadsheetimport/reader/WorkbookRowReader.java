@@ -0,0 +1,173 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.io.InputStream;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+import org.springframework.util.StringUtils;
+
+/**
+ * Reads a sheet through the POI user model. Handles both .xls and .xlsx, but loads the whole
+ * workbook into memory, so it is only used when the workbook itself is needed afterwards.
+ */
+public class WorkbookRowReader implements SpreadsheetRowReader {
+
+	Workbook wb;
+
+	Sheet sheet;
+
+	Iterator<Row> rows;
+
+	int skipBefore = 0;
+
+	int[] projection = null;
+
+	public WorkbookRowReader(InputStream is, String sheetName) throws Exception {
+		// Open file
+		wb = WorkbookFactory.create(is);
+		if (!StringUtils.hasText(sheetName)) {
+			sheet = wb.getSheetAt(0);
+		} else {
+			sheet = wb.getSheet(sheetName);
+		}
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#readHeader()
+	 */
+	public List<String> readHeader() throws Exception {
+		if (sheet == null)
+			return null;
+		Row firstRow = sheet.getRow(0);
+		if (firstRow == null)
+			return null;
+
+		List<String> columnNames = new Vector<String>();
+		for (Cell cell : firstRow) {
+			columnNames.add(cell.getStringCellValue());
+		}
+
+		// header row is always the first one iterated
+		rows = sheet.iterator();
+		if (rows.hasNext())
+			rows.next();
+		return columnNames;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#setProjection(java.util.BitSet)
+	 */
+	public void setProjection(BitSet neededColumns) {
+		projection = new int[neededColumns.cardinality()];
+		int i = 0;
+		for (int idx = neededColumns.nextSetBit(0); idx >= 0; idx = neededColumns.nextSetBit(idx + 1)) {
+			projection[i++] = idx;
+		}
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#nextRow(org.openmrs.module.spreadsheetimport.RowBuffer)
+	 */
+	public boolean nextRow(RowBuffer buffer) throws Exception {
+		Row currentRow;
+		do {
+			if (rows == null || !rows.hasNext())
+				return false;
+			currentRow = rows.next();
+		} while (currentRow.getRowNum() < skipBefore);
+		buffer.reset(currentRow.getRowNum());
+		if (projection == null) {
+			for (Cell cell : currentRow) {
+				buffer.set(cell.getColumnIndex(), decodeCell(cell));
+			}
+			return true;
+		}
+		for (int idx : projection) {
+			Cell cell = currentRow.getCell(idx);
+			if (cell != null)
+				buffer.set(idx, decodeCell(cell));
+		}
+		return true;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#skipTo(int)
+	 */
+	public void skipTo(int rowNum) {
+		skipBefore = rowNum;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#getLastRowNum()
+	 */
+	public int getLastRowNum() {
+		return sheet == null ? -1 : sheet.getLastRowNum();
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#close()
+	 */
+	public void close() {
+		rows = null;
+	}
+
+	/**
+	 * @return the workbook being read, e.g. to write generated keys back into it
+	 */
+	public Workbook getWorkbook() {
+		return wb;
+	}
+
+	/**
+	 * @return the sheet being read
+	 */
+	public Sheet getSheet() {
+		return sheet;
+	}
+
+	public static Object decodeCell(Cell cell) {
+		Object value = null;
+		switch (cell.getCellType()) {
+			case Cell.CELL_TYPE_BOOLEAN:
+				value = new Boolean(cell.getBooleanCellValue());
+				break;
+			case Cell.CELL_TYPE_ERROR:
+				value = new Byte(cell.getErrorCellValue());
+				break;
+			case Cell.CELL_TYPE_FORMULA:
+			case Cell.CELL_TYPE_NUMERIC:
+				if (DateUtil.isCellDateFormatted(cell)) {
+					value = CellValues.timestamp(cell.getDateCellValue());
+				} else {
+					value = cell.getNumericCellValue();
+				}
+				break;
+			case Cell.CELL_TYPE_STRING:
+				value = CellValues.quote(cell.getRichStringCellValue().getString());
+				break;
+		}
+		return value == null ? RowBuffer.BLANK : value;
+	}
+}
@@ -0,0 +1,429 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+import org.springframework.util.StringUtils;
+
+/**
+ * Reads a sheet of an .xlsx file by pulling the sheet XML with StAX, one row at a time, instead of
+ * building the whole workbook in memory. Cells outside the projection are skipped without reading
+ * their text, so neither a value string nor a shared string lookup is made for them.
+ */
+public class XlsxStreamingRowReader implements SpreadsheetRowReader {
+
+	/** Logger for this class and subclasses */
+	protected static final Log log = LogFactory.getLog(XlsxStreamingRowReader.class);
+
+	private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+	OPCPackage pkg;
+
+	InputStream sheetStream;
+
+	XMLStreamReader xml;
+
+	List<String> sharedStrings = new ArrayList<String>();
+
+	/** numFmtId of every cell style, indexed by the s attribute of a cell */
+	List<Integer> styleFormatIds = new ArrayList<Integer>();
+
+	Map<Integer, String> customFormats = new HashMap<Integer, String>();
+
+	/** Cached result of the date format check, indexed like styleFormatIds */
+	Map<Integer, Boolean> dateStyles = new HashMap<Integer, Boolean>();
+
+	boolean date1904 = false;
+
+	BitSet projection = null;
+
+	int rowCounter = 0;
+
+	int skipBefore = 0;
+
+	/** From the dimension element, which precedes the rows */
+	int lastRowNum = -1;
+
+	public XlsxStreamingRowReader(File file, String sheetName) throws Exception {
+		pkg = OPCPackage.open(file.getAbsolutePath(), PackageAccess.READ);
+		XSSFReader reader = new XSSFReader(pkg);
+
+		readWorkbookProperties(reader.getWorkbookData());
+		InputStream sst = reader.getSharedStringsData();
+		if (sst != null)
+			readSharedStrings(sst);
+		InputStream styles = reader.getStylesData();
+		if (styles != null)
+			readStyles(styles);
+
+		XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+		while (sheets.hasNext()) {
+			InputStream is = sheets.next();
+			if (sheetStream == null && (!StringUtils.hasText(sheetName) || sheetName.equals(sheets.getSheetName()))) {
+				sheetStream = is;
+			} else {
+				is.close();
+			}
+		}
+		if (sheetStream != null)
+			xml = xmlInputFactory.createXMLStreamReader(sheetStream);
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#readHeader()
+	 */
+	public List<String> readHeader() throws Exception {
+		if (xml == null || !nextRowElement())
+			return null;
+		String r = xml.getAttributeValue(null, "r");
+		if (r != null && !"1".equals(r))
+			return null;
+
+		Map<Integer, Object> cells = new HashMap<Integer, Object>();
+		int width = 0;
+		readCells(null, cells);
+		for (Integer idx : cells.keySet()) {
+			width = Math.max(width, idx + 1);
+		}
+		List<String> columnNames = new Vector<String>();
+		for (int i = 0; i < width; i++) {
+			Object value = cells.get(i);
+			if (value != null)
+				columnNames.add(CellValues.unquote(value));
+		}
+		return columnNames;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#setProjection(java.util.BitSet)
+	 */
+	public void setProjection(BitSet neededColumns) {
+		projection = neededColumns;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#nextRow(org.openmrs.module.spreadsheetimport.RowBuffer)
+	 */
+	public boolean nextRow(RowBuffer buffer) throws Exception {
+		while (xml != null && nextRowElement()) {
+			String r = xml.getAttributeValue(null, "r");
+			int rowNum = (r == null ? rowCounter - 1 : Integer.parseInt(r) - 1);
+			if (rowNum < skipBefore) {
+				skipElement();
+				continue;
+			}
+			buffer.reset(rowNum);
+			readCells(buffer, null);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The deflated sheet XML cannot be entered in the middle, so skipped rows are still parsed, but
+	 * none of their cells are decoded.
+	 *
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#skipTo(int)
+	 */
+	public void skipTo(int rowNum) {
+		skipBefore = rowNum;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#getLastRowNum()
+	 */
+	public int getLastRowNum() {
+		return lastRowNum;
+	}
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader#close()
+	 */
+	public void close() {
+		try {
+			if (xml != null)
+				xml.close();
+			if (sheetStream != null)
+				sheetStream.close();
+		}
+		catch (Exception e) {
+			log.debug(e.toString());
+		}
+		try {
+			// opened read only, so nothing gets written back
+			pkg.revert();
+		}
+		catch (Exception e) {
+			log.debug(e.toString());
+		}
+	}
+
+	/**
+	 * Advance to the next row start element
+	 */
+	private boolean nextRowElement() throws XMLStreamException {
+		while (xml.hasNext()) {
+			if (xml.next() == XMLStreamConstants.START_ELEMENT) {
+				if ("row".equals(xml.getLocalName())) {
+					rowCounter++;
+					return true;
+				} else if ("dimension".equals(xml.getLocalName())) {
+					readDimension(xml.getAttributeValue(null, "ref"));
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Take the last row from a range such as "A1:K5000"
+	 */
+	private void readDimension(String ref) {
+		if (ref == null)
+			return;
+		String last = ref.substring(ref.indexOf(':') + 1);
+		int i = 0;
+		while (i < last.length() && !Character.isDigit(last.charAt(i))) {
+			i++;
+		}
+		try {
+			lastRowNum = Integer.parseInt(last.substring(i)) - 1;
+		}
+		catch (NumberFormatException e) {
+			log.debug("Invalid sheet dimension " + ref);
+		}
+	}
+
+	/**
+	 * Decode the cells of the current row element. When cells is given (header row), every cell
+	 * is decoded into it regardless of the projection.
+	 */
+	private void readCells(RowBuffer buffer, Map<Integer, Object> cells) throws XMLStreamException {
+		int nextOrdinal = 0;
+		while (xml.hasNext()) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.END_ELEMENT && "row".equals(xml.getLocalName()))
+				return;
+			if (event != XMLStreamConstants.START_ELEMENT || !"c".equals(xml.getLocalName()))
+				continue;
+
+			String ref = xml.getAttributeValue(null, "r");
+			int ordinal = ref == null ? nextOrdinal : CellValues.columnOrdinal(ref);
+			nextOrdinal = ordinal + 1;
+
+			if (cells == null && (projection == null ? ordinal >= buffer.getWidth() : !projection.get(ordinal))) {
+				skipElement();
+				continue;
+			}
+
+			String type = xml.getAttributeValue(null, "t");
+			String style = xml.getAttributeValue(null, "s");
+			String text = readCellText("inlineStr".equals(type) ? "t" : "v");
+
+			Object value = decode(type, style, text);
+			if (cells != null)
+				cells.put(ordinal, value);
+			else
+				buffer.set(ordinal, value);
+		}
+	}
+
+	/**
+	 * Read the text of the value element of the current cell, leaving the reader on the cell end
+	 * element
+	 */
+	private String readCellText(String valueElement) throws XMLStreamException {
+		String text = null;
+		int depth = 1;
+		while (depth > 0 && xml.hasNext()) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				if (valueElement.equals(xml.getLocalName())) {
+					text = (text == null ? "" : text) + xml.getElementText();
+					depth--;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		return text;
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && xml.hasNext()) {
+			int event = xml.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	private Object decode(String type, String style, String text) {
+		if (text == null)
+			return RowBuffer.BLANK;
+		if ("s".equals(type)) {
+			int idx = Integer.parseInt(text.trim());
+			return CellValues.quote(idx < sharedStrings.size() ? sharedStrings.get(idx) : "");
+		}
+		if ("inlineStr".equals(type) || "str".equals(type))
+			return CellValues.quote(text);
+		if ("b".equals(type))
+			return Boolean.valueOf("1".equals(text.trim()) || "true".equalsIgnoreCase(text.trim()));
+		if ("e".equals(type))
+			return new Byte(errorCode(text.trim()));
+
+		double d = Double.parseDouble(text.trim());
+		if (style != null && isDateStyle(Integer.parseInt(style)) && DateUtil.isValidExcelDate(d))
+			return CellValues.timestamp(DateUtil.getJavaDate(d, date1904));
+		return d;
+	}
+
+	private boolean isDateStyle(int styleIdx) {
+		Boolean result = dateStyles.get(styleIdx);
+		if (result == null) {
+			result = Boolean.FALSE;
+			if (styleIdx < styleFormatIds.size()) {
+				int formatId = styleFormatIds.get(styleIdx);
+				String formatString = customFormats.get(formatId);
+				if (formatString == null)
+					formatString = BuiltinFormats.getBuiltinFormat(formatId);
+				result = DateUtil.isADateFormat(formatId, formatString);
+			}
+			dateStyles.put(styleIdx, result);
+		}
+		return result;
+	}
+
+	private static byte errorCode(String text) {
+		if ("#NULL!".equals(text))
+			return 0x00;
+		if ("#DIV/0!".equals(text))
+			return 0x07;
+		if ("#VALUE!".equals(text))
+			return 0x0F;
+		if ("#REF!".equals(text))
+			return 0x17;
+		if ("#NAME?".equals(text))
+			return 0x1D;
+		if ("#NUM!".equals(text))
+			return 0x24;
+		return 0x2A; // #N/A
+	}
+
+	private void readWorkbookProperties(InputStream is) throws Exception {
+		XMLStreamReader r = xmlInputFactory.createXMLStreamReader(is);
+		try {
+			while (r.hasNext()) {
+				if (r.next() == XMLStreamConstants.START_ELEMENT) {
+					if ("workbookPr".equals(r.getLocalName())) {
+						String value = r.getAttributeValue(null, "date1904");
+						date1904 = "1".equals(value) || "true".equalsIgnoreCase(value);
+						break;
+					}
+					if ("sheets".equals(r.getLocalName()))
+						break;
+				}
+			}
+		}
+		finally {
+			r.close();
+			is.close();
+		}
+	}
+
+	private void readSharedStrings(InputStream is) throws Exception {
+		XMLStreamReader r = xmlInputFactory.createXMLStreamReader(is);
+		try {
+			StringBuilder sb = null;
+			boolean inPhonetic = false;
+			while (r.hasNext()) {
+				int event = r.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = r.getLocalName();
+					if ("si".equals(name))
+						sb = new StringBuilder();
+					else if ("rPh".equals(name))
+						inPhonetic = true;
+					else if ("t".equals(name) && sb != null && !inPhonetic)
+						sb.append(r.getElementText());
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					String name = r.getLocalName();
+					if ("si".equals(name)) {
+						sharedStrings.add(sb.toString());
+						sb = null;
+					} else if ("rPh".equals(name)) {
+						inPhonetic = false;
+					}
+				}
+			}
+		}
+		finally {
+			r.close();
+			is.close();
+		}
+	}
+
+	private void readStyles(InputStream is) throws Exception {
+		XMLStreamReader r = xmlInputFactory.createXMLStreamReader(is);
+		try {
+			boolean inCellXfs = false;
+			while (r.hasNext()) {
+				int event = r.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = r.getLocalName();
+					if ("numFmt".equals(name)) {
+						customFormats.put(Integer.valueOf(r.getAttributeValue(null, "numFmtId")),
+						    r.getAttributeValue(null, "formatCode"));
+					} else if ("cellXfs".equals(name)) {
+						inCellXfs = true;
+					} else if ("xf".equals(name) && inCellXfs) {
+						String numFmtId = r.getAttributeValue(null, "numFmtId");
+						styleFormatIds.add(numFmtId == null ? 0 : Integer.parseInt(numFmtId));
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && "cellXfs".equals(r.getLocalName())) {
+					inCellXfs = false;
+				}
+			}
+		}
+		finally {
+			r.close();
+			is.close();
+		}
+	}
+
+}
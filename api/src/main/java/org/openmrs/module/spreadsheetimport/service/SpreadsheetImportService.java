@@ -13,11 +13,19 @@
  */
 package org.openmrs.module.spreadsheetimport.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
 
 import org.hibernate.SessionFactory;
 import org.openmrs.api.OpenmrsService;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportOptions;
+import org.openmrs.module.spreadsheetimport.ImportResult;
+import org.openmrs.module.spreadsheetimport.ImportRun;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportUtil;
 import org.springframework.transaction.annotation.Transactional;
 
 @Transactional
@@ -38,4 +46,54 @@ public interface SpreadsheetImportService extends OpenmrsService {
 	void deleteSpreadsheetImportTemplate(SpreadsheetImportTemplate template);
 	
 	public String getPredfinedValueById(int id);
+	
+	@Transactional
+	ImportJob saveImportJob(ImportJob job);
+	
+	@Transactional(readOnly = true)
+	ImportJob getImportJobById(String id);
+	
+	/**
+	 * @return the jobs in the given state, oldest first
+	 */
+	@Transactional(readOnly = true)
+	List<ImportJob> getImportJobs(String state);
+	
+	@Transactional
+	void deleteImportJob(ImportJob job);
+	
+	@Transactional
+	ImportRun saveImportRun(ImportRun run);
+	
+	/**
+	 * @return the last imports done, latest first
+	 */
+	@Transactional(readOnly = true)
+	List<ImportRun> getImportRuns(int max);
+	
+	/**
+	 * Import rows handed in by a program, one array of values per row in the order of the column
+	 * names. Strings, numbers, dates and booleans are imported like the matching cells of a sheet;
+	 * null and empty strings are blank cells. The rows are read from the iterator as the import
+	 * needs them, on the thread of the import.
+	 * 
+	 * @return the handle of the import, which runs on a thread of its own
+	 */
+	@Transactional(readOnly = true)
+	ImportResult importRows(SpreadsheetImportTemplate template, List<String> columnNames, Iterator<Object[]> rows,
+	                        ImportOptions options);
+	
+	/**
+	 * Import a sheet from a stream. CSV is parsed while it is read, with the header in the first
+	 * record; .xls and .xlsx files are copied to a temporary file first, as they can only be read
+	 * with random access. The stream is closed when the import is done.
+	 * 
+	 * @param format {@link SpreadsheetImportUtil#FORMAT_CSV}, {@link SpreadsheetImportUtil#FORMAT_XLS}
+	 *            or {@link SpreadsheetImportUtil#FORMAT_XLSX}
+	 * @param sheetName the sheet of a workbook, empty for the first one
+	 * @return the handle of the import, which runs on a thread of its own
+	 */
+	@Transactional(readOnly = true)
+	ImportResult importStream(SpreadsheetImportTemplate template, InputStream in, String format, String sheetName,
+	                          ImportOptions options) throws IOException;
 }
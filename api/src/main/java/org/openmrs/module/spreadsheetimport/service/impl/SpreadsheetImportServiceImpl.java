@@ -13,15 +13,27 @@
  */
 package org.openmrs.module.spreadsheetimport.service.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 
 import org.hibernate.SessionFactory;
 import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportOptions;
+import org.openmrs.module.spreadsheetimport.ImportResult;
+import org.openmrs.module.spreadsheetimport.ImportRun;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportUtil;
 import org.openmrs.module.spreadsheetimport.db.hibernate.SpreadsheetImportDAO;
+import org.openmrs.module.spreadsheetimport.reader.CsvRowReader;
+import org.openmrs.module.spreadsheetimport.reader.IteratorRowReader;
 import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
 
 public class SpreadsheetImportServiceImpl extends BaseOpenmrsService implements SpreadsheetImportService {
@@ -71,4 +83,71 @@ public class SpreadsheetImportServiceImpl extends BaseOpenmrsService implements
 	public String getPredfinedValueById(int id) {
 		return dao.getPredfinedValueById(id);
 	}
+	
+	public ImportJob saveImportJob(ImportJob job) {
+		if (job == null)
+			throw new IllegalArgumentException("job cannot be null");
+		dao.saveImportJob(job);
+		return job;
+	}
+	
+	public ImportJob getImportJobById(String id) {
+		return dao.getImportJobById(id);
+	}
+	
+	public List<ImportJob> getImportJobs(String state) {
+		return dao.getImportJobs(state);
+	}
+	
+	public void deleteImportJob(ImportJob job) {
+		dao.deleteImportJob(job);
+	}
+	
+	public ImportRun saveImportRun(ImportRun run) {
+		if (run == null)
+			throw new IllegalArgumentException("run cannot be null");
+		dao.saveImportRun(run);
+		return run;
+	}
+	
+	public List<ImportRun> getImportRuns(int max) {
+		return dao.getImportRuns(max);
+	}
+	
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService#importRows(org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate,
+	 *      java.util.List, java.util.Iterator, org.openmrs.module.spreadsheetimport.ImportOptions)
+	 */
+	public ImportResult importRows(SpreadsheetImportTemplate template, List<String> columnNames, Iterator<Object[]> rows,
+	                               ImportOptions options) {
+		if (template == null)
+			throw new IllegalArgumentException("template cannot be null");
+		return SpreadsheetImportUtil.startImport(template, new IteratorRowReader(columnNames, rows), options);
+	}
+	
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService#importStream(org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate,
+	 *      java.io.InputStream, java.lang.String, java.lang.String,
+	 *      org.openmrs.module.spreadsheetimport.ImportOptions)
+	 */
+	public ImportResult importStream(SpreadsheetImportTemplate template, InputStream in, String format, String sheetName,
+	                                 ImportOptions options) throws IOException {
+		if (template == null)
+			throw new IllegalArgumentException("template cannot be null");
+		if (SpreadsheetImportUtil.FORMAT_CSV.equalsIgnoreCase(format))
+			return SpreadsheetImportUtil.startImport(template, new CsvRowReader(new InputStreamReader(in, "UTF-8")),
+			    options);
+		if (SpreadsheetImportUtil.FORMAT_XLS.equalsIgnoreCase(format)
+		        || SpreadsheetImportUtil.FORMAT_XLSX.equalsIgnoreCase(format)) {
+			File spoolFile;
+			try {
+				spoolFile = SpreadsheetImportUtil.spoolStream(in, null);
+			}
+			finally {
+				in.close();
+			}
+			return SpreadsheetImportUtil.startImport(template, spoolFile, sheetName, options);
+		}
+		throw new IllegalArgumentException("unknown format: " + format);
+	}
 }
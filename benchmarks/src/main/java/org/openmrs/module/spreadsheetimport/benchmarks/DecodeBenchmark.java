@@ -0,0 +1,152 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.module.spreadsheetimport.reader.CellValues;
+import org.openmrs.module.spreadsheetimport.reader.WorkbookRowReader;
+
+/**
+ * Decoding single cells into the values an import binds, for each kind of input: CSV text, values
+ * handed in by a program and workbook cells. The cells are the ones of the sheet fixtures. One
+ * operation is one cell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+
+	private static final int CELLS = 1000;
+
+	private static final int COLUMNS = 10;
+
+	String[] texts = new String[CELLS];
+
+	Object[] objects = new Object[CELLS];
+
+	Cell[] cells = new Cell[CELLS];
+
+	String[] cellRefs = new String[CELLS];
+
+	@Setup
+	public void setUp() {
+		Workbook wb = new HSSFWorkbook();
+		CellStyle dateStyle = wb.createCellStyle();
+		dateStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+		Sheet sheet = wb.createSheet("Sheet1");
+		for (int i = 0; i < CELLS; i++) {
+			int r = 1 + i / COLUMNS;
+			int c = i % COLUMNS;
+			texts[i] = SheetFixtures.getText(r, c);
+			Object value = SheetFixtures.getValue(r, c);
+			objects[i] = (value instanceof Calendar ? ((Calendar) value).getTime() : value);
+
+			Row row = sheet.getRow(r);
+			if (row == null)
+				row = sheet.createRow(r);
+			Cell cell = row.createCell(c);
+			if (value instanceof Double) {
+				cell.setCellValue((Double) value);
+			} else if (value instanceof Calendar) {
+				cell.setCellValue((Calendar) value);
+				cell.setCellStyle(dateStyle);
+			} else {
+				cell.setCellValue(wb.getCreationHelper().createRichTextString((String) value));
+			}
+			cells[i] = cell;
+			// wide sheets have two letter columns
+			cellRefs[i] = new CellReference(r, c * 7).formatAsString();
+		}
+	}
+
+	/**
+	 * CSV fields, see {@link CellValues#fromText(String)}
+	 */
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void fromText(Blackhole bh) {
+		for (String text : texts) {
+			bh.consume(CellValues.fromText(text));
+		}
+	}
+
+	/**
+	 * Values handed in by a program, see {@link CellValues#fromObject(Object)}
+	 */
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void fromObject(Blackhole bh) {
+		for (Object object : objects) {
+			bh.consume(CellValues.fromObject(object));
+		}
+	}
+
+	/**
+	 * Workbook cells, see {@link WorkbookRowReader#decodeCell(Cell)}
+	 */
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void decodeCell(Blackhole bh) {
+		for (Cell cell : cells) {
+			bh.consume(WorkbookRowReader.decodeCell(cell));
+		}
+	}
+
+	/**
+	 * Column of a cell reference of the streaming .xlsx reader, see
+	 * {@link CellValues#columnOrdinal(String)}
+	 */
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void columnOrdinal(Blackhole bh) {
+		for (String cellRef : cellRefs) {
+			bh.consume(CellValues.columnOrdinal(cellRef));
+		}
+	}
+
+	/**
+	 * The same with {@link CellReference}, which the streaming reader avoids
+	 */
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void cellReference(Blackhole bh) {
+		for (String cellRef : cellRefs) {
+			bh.consume(new CellReference(cellRef).getCol());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.spreadsheetimport.ImportPlan;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
+
+/**
+ * Matching the header row of a sheet with a template, which an import does once and a preview or
+ * a chunked API import does for every request. The template registers a patient and records an
+ * observation for each further column; the sheet has the columns in another order and a tenth
+ * more columns the template does not know.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+	private static final String[] REGISTRATION = { "patient_identifier.identifier", "person_name.given_name",
+	        "person_name.family_name", "person.gender", "person.birthdate" };
+
+	@Param( { "10", "50", "200" })
+	public int columns;
+
+	SpreadsheetImportTemplate template;
+
+	List<String> columnNames;
+
+	@Setup
+	public void setUp() {
+		template = new SpreadsheetImportTemplate();
+		template.setName("Benchmark");
+		List<String> names = SheetFixtures.getColumnNames(columns + columns / 10);
+		for (int i = 0; i < columns; i++) {
+			SpreadsheetImportTemplateColumn column = new SpreadsheetImportTemplateColumn();
+			column.setId(i + 1);
+			column.setName(names.get(i));
+			column.setImportIdx(i);
+			if (i < REGISTRATION.length) {
+				column.setTableDotColumn(REGISTRATION[i]);
+			} else {
+				column.setTableDotColumn("obs.value_numeric");
+				column.setDatasetIdx(i);
+			}
+			column.setTemplate(template);
+			template.getColumns().add(column);
+		}
+		columnNames = new ArrayList<String>(names);
+		Collections.reverse(columnNames);
+	}
+
+	@Benchmark
+	public ImportPlan resolveHeader() {
+		return new ImportPlan(template, new ArrayList<String>(columnNames));
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing the rows of two typical templates with each {@link InsertStrategy}: a registration
+ * template inserting a person with a patient, name and identifier per row, and an encounter
+ * template inserting an encounter with {@link #OBS_PER_ROW} observations per row. Each row takes
+ * the generated key of its first insert, as DatabaseBackend does; the other inserts of
+ * {@link #rowsPerCommit} rows are sent together and committed, so 1 is the transaction per row of
+ * an import today. The tables have the columns of the OpenMRS tables the templates write, without
+ * foreign keys and triggers.
+ * <p>
+ * The database is an in-memory H2 in MySQL mode, which has no network and answers far faster than
+ * MySQL, so the rows per second overstate what a server does and understate what saving round
+ * trips is worth. The rows and roundTrips counters are rates; their ratio is the round trips per
+ * row, also printed at the end of each trial. Another database, e.g. a local MySQL, is used with
+ * -Dbenchmark.url=... -Dbenchmark.user=... -Dbenchmark.password=... and its driver on the class
+ * path; the tables are then created and dropped in that database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InsertBenchmark {
+
+	public static final String TEMPLATE_REGISTRATION = "registration";
+
+	public static final String TEMPLATE_ENCOUNTER = "encounter";
+
+	public static final int OBS_PER_ROW = 20;
+
+	private static final String DEFAULT_URL = "jdbc:h2:mem:spreadsheetimport;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+	private static final String[] TABLES = {
+	        "create table bench_person (person_id int not null auto_increment primary key, gender varchar(50),"
+	                + " birthdate date, creator int not null, date_created datetime not null, uuid char(38) not null)",
+	        "create table bench_patient (patient_id int not null primary key, creator int not null,"
+	                + " date_created datetime not null)",
+	        "create table bench_person_name (person_name_id int not null auto_increment primary key,"
+	                + " person_id int not null, preferred smallint not null, given_name varchar(50),"
+	                + " family_name varchar(50), creator int not null, date_created datetime not null,"
+	                + " uuid char(38) not null)",
+	        "create table bench_patient_identifier (patient_identifier_id int not null auto_increment primary key,"
+	                + " patient_id int not null, identifier varchar(50) not null, identifier_type int not null,"
+	                + " preferred smallint not null, location_id int, creator int not null,"
+	                + " date_created datetime not null, uuid char(38) not null)",
+	        "create table bench_encounter (encounter_id int not null auto_increment primary key,"
+	                + " encounter_type int not null, patient_id int not null, location_id int,"
+	                + " encounter_datetime datetime not null, creator int not null, date_created datetime not null,"
+	                + " uuid char(38) not null)",
+	        "create table bench_obs (obs_id int not null auto_increment primary key, person_id int not null,"
+	                + " concept_id int not null, encounter_id int, obs_datetime datetime not null, location_id int,"
+	                + " value_numeric double, creator int not null, date_created datetime not null,"
+	                + " uuid char(38) not null)" };
+
+	private static final String[] PERSON = { "gender", "birthdate", "creator", "date_created", "uuid" };
+
+	private static final String[] PATIENT = { "patient_id", "creator", "date_created" };
+
+	private static final String[] PERSON_NAME = { "person_id", "preferred", "given_name", "family_name", "creator",
+	        "date_created", "uuid" };
+
+	private static final String[] PATIENT_IDENTIFIER = { "patient_id", "identifier", "identifier_type", "preferred",
+	        "location_id", "creator", "date_created", "uuid" };
+
+	private static final String[] ENCOUNTER = { "encounter_type", "patient_id", "location_id", "encounter_datetime",
+	        "creator", "date_created", "uuid" };
+
+	private static final String[] OBS = { "person_id", "concept_id", "encounter_id", "obs_datetime", "location_id",
+	        "value_numeric", "creator", "date_created", "uuid" };
+
+	private static final Integer CREATOR = Integer.valueOf(1);
+
+	private static final Integer LOCATION = Integer.valueOf(1);
+
+	@Param( { TEMPLATE_REGISTRATION, TEMPLATE_ENCOUNTER })
+	public String template;
+
+	@Param( { InsertStrategy.STATEMENT, InsertStrategy.PREPARED, InsertStrategy.BATCH, InsertStrategy.MULTI_ROW })
+	public String strategy;
+
+	@Param( { "1", "10", "100" })
+	public int rowsPerCommit;
+
+	/**
+	 * Reported as rates next to the score
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Counters {
+
+		public long rows;
+
+		public long roundTrips;
+	}
+
+	Connection conn;
+
+	InsertStrategy inserts;
+
+	int rowNum;
+
+	long trialRows;
+
+	@Setup(Level.Trial)
+	public void setUp() throws SQLException {
+		conn = DriverManager.getConnection(System.getProperty("benchmark.url", DEFAULT_URL), System.getProperty(
+		    "benchmark.user", "sa"), System.getProperty("benchmark.password", ""));
+		dropTables();
+		Statement s = conn.createStatement();
+		try {
+			for (String ddl : TABLES) {
+				s.executeUpdate(ddl);
+			}
+		}
+		finally {
+			s.close();
+		}
+		conn.setAutoCommit(false);
+		inserts = InsertStrategy.create(strategy, conn);
+	}
+
+	/**
+	 * Start every iteration with empty tables, so the tables do not grow for the whole trial
+	 */
+	@Setup(Level.Iteration)
+	public void emptyTables() throws SQLException {
+		Statement s = conn.createStatement();
+		try {
+			for (String table : getTableNames()) {
+				s.executeUpdate("delete from " + table);
+			}
+		}
+		finally {
+			s.close();
+		}
+		conn.commit();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws SQLException {
+		if (trialRows > 0)
+			System.out.println(String.format("%s/%s/%d: %.2f round trips per row", template, strategy, rowsPerCommit,
+			    (double) inserts.getRoundTrips() / trialRows));
+		inserts.close();
+		conn.setAutoCommit(true);
+		dropTables();
+		conn.close();
+	}
+
+	@Benchmark
+	public void insert(Counters counters) throws SQLException {
+		long roundTrips = inserts.getRoundTrips();
+		for (int i = 0; i < rowsPerCommit; i++) {
+			if (TEMPLATE_REGISTRATION.equals(template))
+				insertRegistration(++rowNum);
+			else
+				insertEncounter(++rowNum);
+		}
+		inserts.flush();
+		inserts.commit();
+		counters.rows += rowsPerCommit;
+		counters.roundTrips += inserts.getRoundTrips() - roundTrips;
+		trialRows += rowsPerCommit;
+	}
+
+	private void insertRegistration(int row) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		long personId = inserts.insert("bench_person", PERSON, new Object[] { row % 2 == 0 ? "F" : "M",
+		        new java.sql.Date(now.getTime() - row * 86400000L % (80 * 365 * 86400000L)), CREATOR, now, uuid() });
+		Integer id = Integer.valueOf((int) personId);
+		inserts.add("bench_patient", PATIENT, new Object[] { id, CREATOR, now });
+		inserts.add("bench_person_name", PERSON_NAME, new Object[] { id, Integer.valueOf(1), "Given" + row,
+		        "O'Family" + row, CREATOR, now, uuid() });
+		inserts.add("bench_patient_identifier", PATIENT_IDENTIFIER, new Object[] { id, "ID-" + row, Integer.valueOf(1),
+		        Integer.valueOf(1), LOCATION, CREATOR, now, uuid() });
+	}
+
+	private void insertEncounter(int row) throws SQLException {
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		Integer patientId = Integer.valueOf(row % 1000 + 1);
+		long encounterId = inserts.insert("bench_encounter", ENCOUNTER, new Object[] { Integer.valueOf(1), patientId,
+		        LOCATION, now, CREATOR, now, uuid() });
+		Integer id = Integer.valueOf((int) encounterId);
+		for (int i = 0; i < OBS_PER_ROW; i++) {
+			inserts.add("bench_obs", OBS, new Object[] { patientId, Integer.valueOf(5000 + i), id, now, LOCATION,
+			        Double.valueOf(row + i / 10.0), CREATOR, now, uuid() });
+		}
+	}
+
+	private static String uuid() {
+		return UUID.randomUUID().toString();
+	}
+
+	private static String[] getTableNames() {
+		String[] names = new String[TABLES.length];
+		for (int i = 0; i < TABLES.length; i++) {
+			names[i] = TABLES[i].substring("create table ".length(), TABLES[i].indexOf(' ', "create table ".length()));
+		}
+		return names;
+	}
+
+	private void dropTables() throws SQLException {
+		Statement s = conn.createStatement();
+		try {
+			for (String table : getTableNames()) {
+				s.executeUpdate("drop table if exists " + table);
+			}
+		}
+		finally {
+			s.close();
+		}
+	}
+}
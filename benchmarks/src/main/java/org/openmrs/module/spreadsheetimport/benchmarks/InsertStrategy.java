@@ -0,0 +1,290 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One way of sending the inserts of rows to the database. Inserts whose generated key later inserts
+ * need, such as the person or encounter of a row, are sent one at a time by every strategy. The
+ * other inserts, such as the observations of an encounter, are queued with
+ * {@link #add(String, String[], Object[])} and sent by {@link #flush()}, which is where the
+ * strategies differ. Every statement executed and every commit counts as a round trip.
+ */
+public abstract class InsertStrategy {
+
+	/** String concatenated SQL on a plain statement, as DatabaseBackend inserts dependent tables */
+	public static final String STATEMENT = "statement";
+
+	/** One prepared statement per table, executed once per insert */
+	public static final String PREPARED = "prepared";
+
+	/** One prepared statement per table, with the queued inserts sent as one JDBC batch */
+	public static final String BATCH = "batch";
+
+	/** One insert with a value list per queued insert, as DatabaseBackend inserts independent tables */
+	public static final String MULTI_ROW = "multiRow";
+
+	protected Connection conn;
+
+	protected long roundTrips;
+
+	/** Queued inserts by table and column list */
+	protected Map<String, List<Object[]>> queued = new LinkedHashMap<String, List<Object[]>>();
+
+	protected Map<String, String[]> queuedColumns = new HashMap<String, String[]>();
+
+	private Map<String, PreparedStatement> prepared = new HashMap<String, PreparedStatement>();
+
+	public static InsertStrategy create(String name, Connection conn) {
+		InsertStrategy strategy;
+		if (STATEMENT.equals(name))
+			strategy = new StatementStrategy();
+		else if (PREPARED.equals(name))
+			strategy = new PreparedStrategy();
+		else if (BATCH.equals(name))
+			strategy = new BatchStrategy();
+		else if (MULTI_ROW.equals(name))
+			strategy = new MultiRowStrategy();
+		else
+			throw new IllegalArgumentException("unknown strategy: " + name);
+		strategy.conn = conn;
+		return strategy;
+	}
+
+	/**
+	 * Insert a row right away
+	 * 
+	 * @return the generated key
+	 */
+	public abstract long insert(String table, String[] columns, Object[] values) throws SQLException;
+
+	/**
+	 * Queue an insert until {@link #flush()}
+	 */
+	public void add(String table, String[] columns, Object[] values) {
+		String key = getInsertInto(table, columns);
+		List<Object[]> rows = queued.get(key);
+		if (rows == null) {
+			rows = new ArrayList<Object[]>();
+			queued.put(key, rows);
+			queuedColumns.put(key, columns);
+		}
+		rows.add(values);
+	}
+
+	/**
+	 * Send the queued inserts
+	 */
+	public void flush() throws SQLException {
+		for (Map.Entry<String, List<Object[]>> entry : queued.entrySet()) {
+			send(entry.getKey(), queuedColumns.get(entry.getKey()), entry.getValue());
+		}
+		queued.clear();
+	}
+
+	protected abstract void send(String insertInto, String[] columns, List<Object[]> rows) throws SQLException;
+
+	public void commit() throws SQLException {
+		conn.commit();
+		roundTrips++;
+	}
+
+	public long getRoundTrips() {
+		return roundTrips;
+	}
+
+	public void close() throws SQLException {
+		for (PreparedStatement ps : prepared.values()) {
+			ps.close();
+		}
+		prepared.clear();
+	}
+
+	protected static String getInsertInto(String table, String[] columns) {
+		StringBuilder sb = new StringBuilder("insert into ").append(table).append(" (");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(columns[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+	protected static String getPlaceholders(int count) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < count; i++) {
+			sb.append(i == 0 ? "?" : ", ?");
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * @return a prepared statement kept open for the whole run, like a statement cache would
+	 */
+	protected PreparedStatement prepare(String sql, boolean generatedKeys) throws SQLException {
+		PreparedStatement ps = prepared.get(sql);
+		if (ps == null) {
+			ps = generatedKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sql);
+			prepared.put(sql, ps);
+		}
+		return ps;
+	}
+
+	protected long insertPrepared(String table, String[] columns, Object[] values) throws SQLException {
+		PreparedStatement ps = prepare(getInsertInto(table, columns) + " values " + getPlaceholders(columns.length), true);
+		for (int i = 0; i < values.length; i++) {
+			ps.setObject(i + 1, values[i]);
+		}
+		ps.executeUpdate();
+		roundTrips++;
+		return getKey(ps);
+	}
+
+	protected static long getKey(Statement s) throws SQLException {
+		ResultSet rs = s.getGeneratedKeys();
+		try {
+			if (!rs.next())
+				throw new SQLException("no key generated");
+			return rs.getLong(1);
+		}
+		finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * @return a value as SQL literal, quoted and escaped like DatabaseBackend quotes cell values
+	 */
+	protected static String toLiteral(Object value) {
+		if (value == null)
+			return "NULL";
+		if (value instanceof Number)
+			return value.toString();
+		return "'" + value.toString().replace("'", "''") + "'";
+	}
+
+	static class StatementStrategy extends InsertStrategy {
+
+		public long insert(String table, String[] columns, Object[] values) throws SQLException {
+			Statement s = conn.createStatement();
+			try {
+				s.executeUpdate(getInsertInto(table, columns) + " values " + toValues(values),
+				    Statement.RETURN_GENERATED_KEYS);
+				roundTrips++;
+				return getKey(s);
+			}
+			finally {
+				s.close();
+			}
+		}
+
+		protected void send(String insertInto, String[] columns, List<Object[]> rows) throws SQLException {
+			Statement s = conn.createStatement();
+			try {
+				for (Object[] values : rows) {
+					s.executeUpdate(insertInto + " values " + toValues(values));
+					roundTrips++;
+				}
+			}
+			finally {
+				s.close();
+			}
+		}
+
+		static String toValues(Object[] values) {
+			StringBuilder sb = new StringBuilder("(");
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0)
+					sb.append(", ");
+				sb.append(toLiteral(values[i]));
+			}
+			return sb.append(")").toString();
+		}
+	}
+
+	static class PreparedStrategy extends InsertStrategy {
+
+		public long insert(String table, String[] columns, Object[] values) throws SQLException {
+			return insertPrepared(table, columns, values);
+		}
+
+		protected void send(String insertInto, String[] columns, List<Object[]> rows) throws SQLException {
+			PreparedStatement ps = prepare(insertInto + " values " + getPlaceholders(columns.length), false);
+			for (Object[] values : rows) {
+				for (int i = 0; i < values.length; i++) {
+					ps.setObject(i + 1, values[i]);
+				}
+				ps.executeUpdate();
+				roundTrips++;
+			}
+		}
+	}
+
+	static class BatchStrategy extends InsertStrategy {
+
+		public long insert(String table, String[] columns, Object[] values) throws SQLException {
+			return insertPrepared(table, columns, values);
+		}
+
+		protected void send(String insertInto, String[] columns, List<Object[]> rows) throws SQLException {
+			PreparedStatement ps = prepare(insertInto + " values " + getPlaceholders(columns.length), false);
+			for (Object[] values : rows) {
+				for (int i = 0; i < values.length; i++) {
+					ps.setObject(i + 1, values[i]);
+				}
+				ps.addBatch();
+			}
+			// one round trip with rewriteBatchedStatements on MySQL, one per insert without it
+			ps.executeBatch();
+			roundTrips++;
+		}
+	}
+
+	static class MultiRowStrategy extends InsertStrategy {
+
+		public long insert(String table, String[] columns, Object[] values) throws SQLException {
+			return insertPrepared(table, columns, values);
+		}
+
+		protected void send(String insertInto, String[] columns, List<Object[]> rows) throws SQLException {
+			StringBuilder sql = new StringBuilder(insertInto).append(" values ");
+			String placeholders = getPlaceholders(columns.length);
+			for (int i = 0; i < rows.size(); i++) {
+				if (i > 0)
+					sql.append(", ");
+				sql.append(placeholders);
+			}
+			// the number of rows is the same for every flush of a run, so few statements are prepared
+			PreparedStatement ps = prepare(sql.toString(), false);
+			int idx = 1;
+			for (Object[] values : rows) {
+				for (Object value : values) {
+					ps.setObject(idx++, value);
+				}
+			}
+			ps.executeUpdate();
+			roundTrips++;
+		}
+	}
+}
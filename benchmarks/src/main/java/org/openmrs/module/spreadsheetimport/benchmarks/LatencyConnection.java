@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection to no database which takes a fixed time for every statement executed and every
+ * commit or rollback, like the round trips to a database server. The time is spent parked, not
+ * spinning, so the thread waits as it would on a socket. Other methods return at once with null,
+ * zero or false.
+ */
+public class LatencyConnection implements InvocationHandler {
+
+	long latencyNanos;
+
+	private LatencyConnection(long latencyNanos) {
+		this.latencyNanos = latencyNanos;
+	}
+
+	/**
+	 * @param latencyNanos time taken by each round trip
+	 */
+	public static Connection create(long latencyNanos) {
+		return (Connection) Proxy.newProxyInstance(LatencyConnection.class.getClassLoader(),
+		    new Class<?>[] { Connection.class }, new LatencyConnection(latencyNanos));
+	}
+
+	/**
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method,
+	 *      java.lang.Object[])
+	 */
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (name.equals("createStatement"))
+			return Proxy.newProxyInstance(LatencyConnection.class.getClassLoader(), new Class<?>[] { Statement.class },
+			    this);
+		if (name.startsWith("execute") || name.equals("commit") || name.equals("rollback"))
+			roundTrip();
+		if (name.equals("executeUpdate"))
+			return Integer.valueOf(1);
+		if (name.equals("hashCode"))
+			return Integer.valueOf(System.identityHashCode(proxy));
+		if (name.equals("equals"))
+			return Boolean.valueOf(proxy == args[0]);
+		if (name.equals("toString"))
+			return "LatencyConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+		return defaultValue(method.getReturnType());
+	}
+
+	private void roundTrip() {
+		// parkNanos may return early
+		long deadline = System.nanoTime() + latencyNanos;
+		long left;
+		while ((left = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(left);
+		}
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class)
+			return Boolean.FALSE;
+		if (type == int.class)
+			return Integer.valueOf(0);
+		if (type == long.class)
+			return Long.valueOf(0);
+		if (type.isPrimitive() && type != void.class)
+			throw new UnsupportedOperationException("not stubbed: " + type);
+		return null;
+	}
+}
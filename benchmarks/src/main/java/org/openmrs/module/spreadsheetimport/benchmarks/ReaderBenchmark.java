@@ -0,0 +1,83 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.File;
+import java.util.BitSet;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+import org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader;
+
+/**
+ * Reads a whole generated sheet the way an import does: the header row, then every row into one
+ * reused {@link RowBuffer}, decoding only the projected columns. One operation is one sheet, so
+ * rows per second are ops/s times the rows parameter.
+ */
+@State(Scope.Benchmark)
+public abstract class ReaderBenchmark {
+
+	@Param( { "1000", "10000" })
+	public int rows;
+
+	@Param( { "10", "50" })
+	public int columns;
+
+	/** Share of the columns the template refers to, which are the only ones decoded */
+	@Param( { "100", "20" })
+	public int projectedPercent;
+
+	protected File file;
+
+	protected BitSet projection;
+
+	/**
+	 * @return the format of the fixture, see {@link SheetFixtures}
+	 */
+	protected abstract String getFormat();
+
+	@Setup
+	public void setUp() throws Exception {
+		file = SheetFixtures.get(getFormat(), rows, columns);
+		// spread the projected columns over the row, as templates rarely refer to the first ones only
+		projection = new BitSet(columns);
+		int projected = Math.max(1, columns * projectedPercent / 100);
+		for (int i = 0; i < projected; i++) {
+			projection.set(i * columns / projected);
+		}
+	}
+
+	protected int readAll(SpreadsheetRowReader reader, Blackhole bh) throws Exception {
+		try {
+			bh.consume(reader.readHeader());
+			reader.setProjection(projection);
+			RowBuffer row = new RowBuffer(columns);
+			int count = 0;
+			while (reader.nextRow(row)) {
+				for (int idx = projection.nextSetBit(0); idx >= 0; idx = projection.nextSetBit(idx + 1)) {
+					bh.consume(row.get(idx));
+				}
+				count++;
+			}
+			return count;
+		}
+		finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Generated sheets for the benchmarks: a header row of "Column 1" to "Column n" and rows whose
+ * columns cycle through the kinds of cells real sheets have, namely identifiers with leading
+ * zeros, names, whole numbers, decimals and dates. The same rows are written as .xls, .xlsx and
+ * CSV. Fixtures are kept in the temporary directory and reused by later runs, as writing a large
+ * .xlsx takes longer than reading it.
+ */
+public class SheetFixtures {
+
+	public static final String FORMAT_XLS = "xls";
+
+	public static final String FORMAT_XLSX = "xlsx";
+
+	public static final String FORMAT_CSV = "csv";
+
+	private static final int KINDS = 5;
+
+	private SheetFixtures() {
+	}
+
+	/**
+	 * @return the fixture of the given format and size, written first if it does not exist
+	 */
+	public static File get(String format, int rows, int columns) throws IOException {
+		File file = new File(System.getProperty("java.io.tmpdir"), "spreadsheetimport-" + rows + "x" + columns + "."
+		        + format);
+		if (file.exists())
+			return file;
+		// forks may ask for the same fixture, write it under another name first
+		File part = File.createTempFile("spreadsheetimport-", ".part", file.getParentFile());
+		try {
+			write(part, format, rows, columns);
+			if (!part.renameTo(file) && !file.exists())
+				throw new IOException("Cannot rename " + part + " to " + file);
+		}
+		finally {
+			part.delete();
+		}
+		return file;
+	}
+
+	public static List<String> getColumnNames(int columns) {
+		List<String> names = new ArrayList<String>(columns);
+		for (int c = 0; c < columns; c++) {
+			names.add("Column " + (c + 1));
+		}
+		return names;
+	}
+
+	/**
+	 * @return the value of a cell: a String, a Double or a Calendar
+	 */
+	public static Object getValue(int row, int column) {
+		switch (column % KINDS) {
+			case 0:
+				return String.format("%08d", row * 7 + column);
+			case 1:
+				return "Name " + (row % 997) + " " + column;
+			case 2:
+				return Double.valueOf(row % 1000);
+			case 3:
+				return Double.valueOf((row % 1000) / 8.0);
+			default:
+				return new GregorianCalendar(1950 + row % 60, row % 12, 1 + row % 28);
+		}
+	}
+
+	/**
+	 * @return the text of a cell in a CSV file
+	 */
+	public static String getText(int row, int column) {
+		Object value = getValue(row, column);
+		if (value instanceof Calendar) {
+			Calendar c = (Calendar) value;
+			return String.format("%04d-%02d-%02d", c.get(Calendar.YEAR), c.get(Calendar.MONTH) + 1, c
+			        .get(Calendar.DAY_OF_MONTH));
+		}
+		if (value instanceof Double && ((Double) value).doubleValue() == Math.rint((Double) value))
+			return String.valueOf(((Double) value).longValue());
+		return value.toString();
+	}
+
+	private static void write(File file, String format, int rows, int columns) throws IOException {
+		if (FORMAT_CSV.equals(format)) {
+			writeCsv(file, rows, columns);
+		} else if (FORMAT_XLS.equals(format)) {
+			writeWorkbook(file, new HSSFWorkbook(), rows, columns);
+		} else if (FORMAT_XLSX.equals(format)) {
+			writeWorkbook(file, new XSSFWorkbook(), rows, columns);
+		} else {
+			throw new IllegalArgumentException("unknown format: " + format);
+		}
+	}
+
+	private static void writeWorkbook(File file, Workbook wb, int rows, int columns) throws IOException {
+		CellStyle dateStyle = wb.createCellStyle();
+		dateStyle.setDataFormat(wb.getCreationHelper().createDataFormat().getFormat("yyyy-mm-dd"));
+		Sheet sheet = wb.createSheet("Sheet1");
+		Row header = sheet.createRow(0);
+		List<String> names = getColumnNames(columns);
+		for (int c = 0; c < columns; c++) {
+			header.createCell(c).setCellValue(wb.getCreationHelper().createRichTextString(names.get(c)));
+		}
+		for (int r = 1; r <= rows; r++) {
+			Row row = sheet.createRow(r);
+			for (int c = 0; c < columns; c++) {
+				Cell cell = row.createCell(c);
+				Object value = getValue(r, c);
+				if (value instanceof Double) {
+					cell.setCellValue((Double) value);
+				} else if (value instanceof Calendar) {
+					cell.setCellValue((Calendar) value);
+					cell.setCellStyle(dateStyle);
+				} else {
+					cell.setCellValue(wb.getCreationHelper().createRichTextString((String) value));
+				}
+			}
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			wb.write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private static void writeCsv(File file, int rows, int columns) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			List<String> names = getColumnNames(columns);
+			for (int c = 0; c < columns; c++) {
+				if (c > 0)
+					out.write(',');
+				out.write(names.get(c));
+			}
+			out.write("\r\n");
+			for (int r = 1; r <= rows; r++) {
+				for (int c = 0; c < columns; c++) {
+					if (c > 0)
+						out.write(',');
+					out.write(getText(r, c));
+				}
+				out.write("\r\n");
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.module.spreadsheetimport.reader.CsvRowReader;
+import org.openmrs.module.spreadsheetimport.reader.SpreadsheetRowReader;
+import org.openmrs.module.spreadsheetimport.reader.XlsxStreamingRowReader;
+
+/**
+ * Reading with the readers which decode rows as they go, the way an import reads .xlsx and CSV
+ * files; compare with {@link WorkbookReaderBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamingReaderBenchmark extends ReaderBenchmark {
+
+	@Param( { SheetFixtures.FORMAT_XLSX, SheetFixtures.FORMAT_CSV })
+	public String format;
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.benchmarks.ReaderBenchmark#getFormat()
+	 */
+	protected String getFormat() {
+		return format;
+	}
+
+	/**
+	 * The reader an import opens for the format
+	 */
+	@Benchmark
+	public int streamingRowReader(Blackhole bh) throws Exception {
+		SpreadsheetRowReader reader;
+		if (SheetFixtures.FORMAT_CSV.equals(format))
+			reader = new CsvRowReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		else
+			reader = new XlsxStreamingRowReader(file, "Sheet1");
+		return readAll(reader, bh);
+	}
+}
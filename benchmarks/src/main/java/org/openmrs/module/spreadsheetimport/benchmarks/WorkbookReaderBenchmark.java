@@ -0,0 +1,102 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openmrs.module.spreadsheetimport.reader.WorkbookRowReader;
+
+/**
+ * Reading with {@link WorkbookFactory}, which builds the whole workbook in memory before the first
+ * row is decoded. This is how .xls files are still read, and how .xlsx files were read before the
+ * streaming reader; compare with {@link StreamingReaderBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkbookReaderBenchmark extends ReaderBenchmark {
+
+	@Param( { SheetFixtures.FORMAT_XLS, SheetFixtures.FORMAT_XLSX })
+	public String format;
+
+	/**
+	 * @see org.openmrs.module.spreadsheetimport.benchmarks.ReaderBenchmark#getFormat()
+	 */
+	protected String getFormat() {
+		return format;
+	}
+
+	/**
+	 * The reader an import opens for an .xls file
+	 */
+	@Benchmark
+	public int workbookRowReader(Blackhole bh) throws Exception {
+		InputStream is = new FileInputStream(file);
+		try {
+			return readAll(new WorkbookRowReader(is, "Sheet1"), bh);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Only loading the workbook, without decoding a cell, to tell the cost of building the
+	 * workbook from the cost of decoding
+	 */
+	@Benchmark
+	public Workbook workbookFactory() throws Exception {
+		InputStream is = new FileInputStream(file);
+		try {
+			return WorkbookFactory.create(is);
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Loading the workbook and decoding every cell, as imports did before rows were projected
+	 */
+	@Benchmark
+	public int workbookFactoryAllCells(Blackhole bh) throws Exception {
+		Sheet sheet = workbookFactory().getSheetAt(0);
+		int count = 0;
+		for (Row row : sheet) {
+			for (Cell cell : row) {
+				bh.consume(WorkbookRowReader.decodeCell(cell));
+			}
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.benchmarks;
+
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openmrs.module.spreadsheetimport.ImportOptions;
+import org.openmrs.module.spreadsheetimport.ImportPipeline;
+import org.openmrs.module.spreadsheetimport.ImportPlan;
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
+import org.openmrs.module.spreadsheetimport.reader.IteratorRowReader;
+
+/**
+ * Importing a sheet through the {@link ImportPipeline} with the writers on platform threads or on
+ * virtual threads (see {@link ImportOptions#isVirtualThreads()}). The database is a
+ * {@link LatencyConnection}: every row takes {@link #INSERTS_PER_ROW} inserts and a commit of
+ * {@link #latencyMicros} each, the round trips of a registration row with string concatenated
+ * statements (see {@link InsertBenchmark}). The score is rows per second.
+ * <p>
+ * At most {@link #maxConnections} rows are imported at the same time, so writers beyond that
+ * wait for a connection; with a connection per row the rows per second cannot exceed
+ * maxConnections / (5 * latency). Virtual threads need a JDK with Thread.ofVirtual() (21 or
+ * later) for the benchmark JVM; on older JDKs the pipeline falls back to platform threads and a
+ * warning is printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class WriterThreadsBenchmark {
+
+	public static final int ROWS = 5000;
+
+	public static final int INSERTS_PER_ROW = 4;
+
+	private static final List<String> COLUMNS = Arrays.asList("Identifier", "Given", "Family", "Gender", "Birthdate");
+
+	private static final String[] REGISTRATION = { "patient_identifier.identifier", "person_name.given_name",
+	        "person_name.family_name", "person.gender", "person.birthdate" };
+
+	@Param( { "false", "true" })
+	public boolean virtualThreads;
+
+	@Param( { "16", "256", "1024" })
+	public int writers;
+
+	@Param( { "16", "64" })
+	public int maxConnections;
+
+	@Param( { "400" })
+	public int latencyMicros;
+
+	ImportPlan plan;
+
+	List<Object[]> rows = new ArrayList<Object[]>();
+
+	@Setup
+	public void setUp() {
+		if (virtualThreads && !isVirtualThreadSupported())
+			System.out.println("Virtual threads are not available on this JDK, the writers use platform threads");
+
+		SpreadsheetImportTemplate template = new SpreadsheetImportTemplate();
+		template.setName("Benchmark");
+		for (int i = 0; i < REGISTRATION.length; i++) {
+			SpreadsheetImportTemplateColumn column = new SpreadsheetImportTemplateColumn();
+			column.setId(i + 1);
+			column.setName(COLUMNS.get(i));
+			column.setImportIdx(i);
+			column.setTableDotColumn(REGISTRATION[i]);
+			column.setTemplate(template);
+			template.getColumns().add(column);
+		}
+		plan = new ImportPlan(template, new ArrayList<String>(COLUMNS));
+
+		rows.clear();
+		for (int i = 0; i < ROWS; i++) {
+			rows.add(new Object[] { "P" + i, "Given" + i, "Family" + i, i % 2 == 0 ? "F" : "M", "1980-01-01" });
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void importRows() throws Exception {
+		ImportOptions options = new ImportOptions();
+		options.setWorkers(writers);
+		options.setMaxConnections(maxConnections);
+		options.setVirtualThreads(virtualThreads);
+		options.setCreatorId(Integer.valueOf(1));
+		// the rows count as validated, so only the writers talk to the database
+		options.setValidateFirst(true);
+
+		final long latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+		ImportPipeline pipeline = new ImportPipeline(plan, new IteratorRowReader(COLUMNS, rows.iterator()), options) {
+
+			protected Connection openConnection() {
+				return LatencyConnection.create(latencyNanos);
+			}
+
+			protected String importRow(Connection conn, RowBuffer row) throws Exception {
+				Statement s = conn.createStatement();
+				try {
+					for (int i = 0; i < INSERTS_PER_ROW; i++) {
+						s.executeUpdate("insert");
+					}
+				}
+				finally {
+					s.close();
+				}
+				conn.commit();
+				return null;
+			}
+		};
+		pipeline.run();
+	}
+
+	private static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+}
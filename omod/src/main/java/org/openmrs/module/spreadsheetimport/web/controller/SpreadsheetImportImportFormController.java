@@ -14,9 +14,6 @@
 package org.openmrs.module.spreadsheetimport.web.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -25,11 +22,14 @@ import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportJobManager;
+import org.openmrs.module.spreadsheetimport.ImportOptions;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumn;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplateColumnPrespecifiedValue;
@@ -40,6 +40,7 @@ import org.openmrs.web.WebConstants;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.ServletRequestBindingException;
+import org.springframework.web.bind.ServletRequestUtils;
 import org.springframework.web.bind.annotation.ModelAttribute;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -60,6 +61,10 @@ public class SpreadsheetImportImportFormController {
 	 */
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	static final int DEFAULT_PREVIEW_ROWS = 20;
+	
+	static final int MAX_PREVIEW_ROWS = 1000;
+	
 	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportImport.form", method = RequestMethod.GET)
 	public String setupForm(@RequestParam(value = "id", required = true) Integer id, 
 							ModelMap model,
@@ -67,6 +72,7 @@ public class SpreadsheetImportImportFormController {
 		SpreadsheetImportTemplate template = null;
 		template = Context.getService(SpreadsheetImportService.class).getTemplateById(id);
 		model.addAttribute("template", template);
+		model.addAttribute("lanes", ImportJobManager.getLaneNames());
 		return "/module/spreadsheetimport/spreadsheetimportImportForm";
 	}
 	
@@ -75,6 +81,7 @@ public class SpreadsheetImportImportFormController {
 								ModelMap model, 
 	                            @RequestParam(value = "file", required = true) MultipartFile file,
 	                            @RequestParam(value = "sheet", required = true) String sheet,
+	                            @RequestParam(value = "lane", required = false) String lane,
 	                            HttpServletRequest request,
 	                            HttpServletResponse response) throws Exception {
 		
@@ -102,14 +109,29 @@ public class SpreadsheetImportImportFormController {
 		
 		
 		List<String> messages = new ArrayList<String>();
-		boolean rollbackTransaction = true;
-		if (request.getParameter("rollbackTransaction") == null) {
-			rollbackTransaction = false;
+		ImportOptions options = createOptions(request);
+		
+		// Run the import in the background, the form polls its progress
+		String invalidOptions = options.validate();
+		if (file.isEmpty()) {
+			messages.add("file must not be empty");
+		} else if (request.getParameter("preview") != null) {
+			// show the first rows as they would be imported, without starting a job
+			int rows = ServletRequestUtils.getIntParameter(request, "previewRows", DEFAULT_PREVIEW_ROWS);
+			model.addAttribute("preview", SpreadsheetImportUtil.preview(template, file, sheet, Math.max(1, Math.min(rows,
+			    MAX_PREVIEW_ROWS))));
+		} else if (invalidOptions != null) {
+			messages.add(invalidOptions);
+		} else {
+			File spoolFile = SpreadsheetImportUtil.spoolUpload(file, ImportJobManager.getSpoolDirectory());
+			boolean offPeak = (request.getParameter("offPeak") != null);
+			ImportJob job = ImportJobManager.submit(template, spoolFile, sheet, options, lane, offPeak);
+			if (job == null)
+				messages.add("too many imports are waiting, please try again later");
+			else
+				model.addAttribute("job", job);
 		}
 		
-		File returnedFile = SpreadsheetImportUtil.importTemplate(template, file, sheet, messages, rollbackTransaction);
-		boolean succeeded = (returnedFile != null);
-
 		String messageString = "";
 		for (int i = 0; i < messages.size(); i++) {
 			if (i != 0) {
@@ -117,28 +139,61 @@ public class SpreadsheetImportImportFormController {
 			}
 			messageString += messages.get(i);
 		}
-		if (succeeded) {
-			messageString += "Success!";
-			try {	    	
-			      InputStream is = new FileInputStream(returnedFile);
-			      response.setContentType("application/ms-excel");
-			      response.addHeader("content-disposition", "inline;filename=" + returnedFile.getName());
-			      IOUtils.copy(is, response.getOutputStream());			      
-			      response.flushBuffer();
-			    } catch (IOException ex) {
-			      log.info("Error writing file to output stream");
-			    }
-		}
-				
 		if (!messageString.isEmpty()) {
-			if (succeeded) {
-				request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, messageString);
-			} else {	
-				request.getSession().setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "Error processing request, " + messageString);
-			}
+			request.getSession().setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "Error processing request, " + messageString);
 		}
 		
+		model.addAttribute("lanes", ImportJobManager.getLaneNames());
 		return "/module/spreadsheetimport/spreadsheetimportImportForm";
 	}
+	
+	/**
+	 * The import options from the parameters of the import form, which other import requests
+	 * accept as well
+	 */
+	static ImportOptions createOptions(HttpServletRequest request) throws ServletRequestBindingException {
+		boolean rollbackTransaction = true;
+		if (request.getParameter("rollbackTransaction") == null) {
+			rollbackTransaction = false;
+		}
 		
+		ImportOptions options = new ImportOptions(rollbackTransaction);
+		options.setValidateFirst(request.getParameter("validateFirst") != null);
+		options.setContinueOnError(request.getParameter("continueOnError") != null);
+		options.setKeyManifest(request.getParameter("keyManifest") != null);
+		options.setDryRun(request.getParameter("dryRun") != null);
+		options.setSkipImportedRows(request.getParameter("skipImportedRows") != null);
+		options.setDeltaImport(request.getParameter("deltaImport") != null);
+		options.setFirstRow(ServletRequestUtils.getIntParameter(request, "firstRow"));
+		options.setLastRow(ServletRequestUtils.getIntParameter(request, "lastRow"));
+		Integer shardCount = ServletRequestUtils.getIntParameter(request, "shardCount");
+		if (shardCount != null) {
+			// shards are numbered from 1 on the form
+			options.setShardCount(shardCount);
+			options.setShardIndex(ServletRequestUtils.getIntParameter(request, "shard", 1) - 1);
+		}
+		Integer workers = ServletRequestUtils.getIntParameter(request, "workers");
+		if (workers != null)
+			options.setWorkers(workers);
+		Integer rowsPerSecond = ServletRequestUtils.getIntParameter(request, "rowsPerSecond");
+		if (rowsPerSecond != null)
+			options.setRowsPerSecond(rowsPerSecond);
+		Integer dbTimeShare = ServletRequestUtils.getIntParameter(request, "dbTimeShare");
+		if (dbTimeShare != null)
+			options.setDbTimeShare(dbTimeShare);
+		Integer latencyThresholdMillis = ServletRequestUtils.getIntParameter(request, "latencyThresholdMillis");
+		if (latencyThresholdMillis != null)
+			options.setLatencyThresholdMillis(latencyThresholdMillis);
+		options.setCreatorId(Context.getAuthenticatedUser().getId());
+		AdministrationService as = Context.getAdministrationService();
+		options.setVirtualThreads(Boolean.valueOf(as.getGlobalProperty("spreadsheetimport.virtualThreads", "false")));
+		try {
+			options.setMaxConnections(Integer.parseInt(as.getGlobalProperty("spreadsheetimport.maxConnections", "0")));
+		}
+		catch (NumberFormatException e) {
+			LogFactory.getLog(SpreadsheetImportImportFormController.class).warn(
+			    "Invalid value of global property spreadsheetimport.maxConnections");
+		}
+		return options;
+	}
 }
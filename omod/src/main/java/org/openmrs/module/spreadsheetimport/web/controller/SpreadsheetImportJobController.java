@@ -0,0 +1,309 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.web.controller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportJobManager;
+import org.openmrs.module.spreadsheetimport.ImportProgress;
+import org.openmrs.module.spreadsheetimport.ImportThrottle;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Progress and results of background imports, see {@link ImportJobManager}. Only the user who
+ * submitted a job can see it.
+ */
+@Controller
+public class SpreadsheetImportJobController {
+	
+	/**
+	 * Logger for this class
+	 */
+	protected final Log log = LogFactory.getLog(getClass());
+	
+	/**
+	 * Progress of a job as JSON, polled by the import form
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJob.form", method = RequestMethod.GET)
+	public void getProgress(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                            throws IOException {
+		ImportJob job = getJob(id);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		ImportProgress progress = job.getProgress();
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"id\":").append(quote(job.getId()));
+		json.append(",\"template\":").append(quote(job.getTemplateName()));
+		json.append(",\"state\":").append(quote(job.getState()));
+		json.append(",\"lane\":").append(quote(job.getLane()));
+		json.append(",\"offPeak\":").append(job.isOffPeak());
+		json.append(",\"phase\":").append(quote(progress.getPhase()));
+		json.append(",\"totalRows\":").append(progress.getTotalRows());
+		json.append(",\"rowsRead\":").append(progress.getRowsRead());
+		json.append(",\"rowsValidated\":").append(progress.getRowsValidated());
+		json.append(",\"rowsImported\":").append(progress.getRowsImported());
+		json.append(",\"rowsSkipped\":").append(progress.getRowsSkipped());
+		json.append(",\"rowsRejected\":").append(progress.getRowsRejected());
+		json.append(",\"rowsPerSecond\":").append(Math.round(progress.getRowsPerSecond()));
+		json.append(",\"etaSeconds\":").append(progress.getEtaSeconds());
+		json.append(",\"cancelled\":").append(progress.isCancelled());
+		ImportThrottle throttle = progress.getThrottle();
+		json.append(",\"limitRowsPerSecond\":").append(job.getOptions().getRowsPerSecond());
+		json.append(",\"dbTimeShare\":").append(job.getOptions().getDbTimeShare());
+		json.append(",\"latencyThresholdMillis\":").append(job.getOptions().getLatencyThresholdMillis());
+		json.append(",\"averageLatencyMillis\":").append(Math.round(throttle.getAverageLatencyMillis()));
+		json.append(",\"backoffMillis\":").append(throttle.getBackoffMillis());
+		json.append(",\"hasResult\":").append(job.getResultFile() != null);
+		json.append(",\"hasRejects\":").append(job.getRejectFile() != null && job.getRejectFile().exists());
+		json.append(",\"hasKeyManifest\":").append(
+		    job.getResultFile() != null && job.getKeyManifestFile() != null && job.getKeyManifestFile().exists());
+		json.append(",\"messages\":[");
+		List<String> messages = job.getMessages();
+		for (int i = 0; i < messages.size(); i++) {
+			if (i != 0)
+				json.append(',');
+			json.append(quote(messages.get(i)));
+		}
+		json.append("]}");
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter writer = response.getWriter();
+		writer.write(json.toString());
+		writer.flush();
+	}
+	
+	/**
+	 * Resume a failed job from its checkpoint
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobResume.form", method = RequestMethod.POST)
+	public void resume(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                       throws IOException {
+		ImportJob job = getJob(id);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (!ImportJobManager.resume(job.getId())) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, "import job cannot be resumed");
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+	}
+	
+	/**
+	 * Cancel a queued job, or stop a running job at its next row
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobCancel.form", method = RequestMethod.POST)
+	public void cancel(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                       throws IOException {
+		ImportJob job = getJob(id);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (!ImportJobManager.cancel(job.getId())) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, "import job is already finished");
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+	}
+	
+	/**
+	 * Change the throttle limits of a queued or running job
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobThrottle.form", method = RequestMethod.POST)
+	public void setLimits(@RequestParam(value = "id", required = true) String id,
+	                      @RequestParam(value = "rowsPerSecond", required = true) int rowsPerSecond,
+	                      @RequestParam(value = "dbTimeShare", required = true) int dbTimeShare,
+	                      @RequestParam(value = "latencyThresholdMillis", required = true) int latencyThresholdMillis,
+	                      HttpServletResponse response) throws IOException {
+		ImportJob job = getJob(id);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String invalid = ImportThrottle.checkLimits(rowsPerSecond, dbTimeShare, latencyThresholdMillis);
+		if (invalid != null) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, invalid);
+			return;
+		}
+		if (!ImportJobManager.setLimits(job.getId(), rowsPerSecond, dbTimeShare, latencyThresholdMillis)) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, "import job is already finished");
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+	}
+	
+	/**
+	 * The imported rows of a finished job with their generated keys, as CSV
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobResult.form", method = RequestMethod.GET)
+	public void getResult(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                          throws IOException {
+		ImportJob job = getJob(id);
+		File resultFile = (job == null ? null : job.getResultFile());
+		if (resultFile == null || !resultFile.exists()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		response.setContentType("text/csv");
+		response.setCharacterEncoding("UTF-8");
+		response.addHeader("content-disposition", "attachment;filename=result-" + job.getId() + ".csv");
+		sendFile(resultFile, response);
+	}
+	
+	/**
+	 * The rows rejected by a job which continued on errors, as CSV which can be fixed and imported
+	 * again
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobRejects.form", method = RequestMethod.GET)
+	public void getRejects(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                           throws IOException {
+		ImportJob job = getJob(id);
+		File rejectFile = (job == null ? null : job.getRejectFile());
+		if (rejectFile == null || !rejectFile.exists()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		response.setContentType("text/csv");
+		response.setCharacterEncoding("UTF-8");
+		response.addHeader("content-disposition", "attachment;filename=rejects-" + job.getId() + ".csv");
+		sendFile(rejectFile, response);
+	}
+	
+	/**
+	 * The manifest of the keys a finished job generated for every row, as CSV
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobKeys.form", method = RequestMethod.GET)
+	public void getKeyManifest(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                               throws IOException {
+		ImportJob job = getJob(id);
+		File keyManifestFile = (job == null || job.getResultFile() == null ? null : job.getKeyManifestFile());
+		if (keyManifestFile == null || !keyManifestFile.exists()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		response.setContentType("text/csv");
+		response.setCharacterEncoding("UTF-8");
+		response.addHeader("content-disposition", "attachment;filename=keys-" + job.getId() + ".csv");
+		sendFile(keyManifestFile, response);
+	}
+	
+	/**
+	 * The messages of a job as plain text, one per line
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportJobMessages.form", method = RequestMethod.GET)
+	public void getMessages(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                            throws IOException {
+		ImportJob job = getJob(id);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		response.setContentType("text/plain");
+		response.setCharacterEncoding("UTF-8");
+		response.addHeader("content-disposition", "attachment;filename=import-" + job.getId() + ".txt");
+		PrintWriter writer = response.getWriter();
+		for (String message : job.getMessages()) {
+			writer.println(message);
+		}
+		writer.flush();
+	}
+	
+	/**
+	 * Send a file as the body of the response. The servlet API only offers a stream, so the channel
+	 * over it still copies the file through a buffer, but files larger than 2 GB are sent whole.
+	 */
+	static void sendFile(File file, HttpServletResponse response) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			long size = channel.size();
+			response.setHeader("Content-Length", Long.toString(size));
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			for (long position = 0; position < size;) {
+				position += channel.transferTo(position, size - position, out);
+			}
+			response.flushBuffer();
+		}
+		finally {
+			channel.close();
+		}
+	}
+	
+	private ImportJob getJob(String id) {
+		ImportJob job = ImportJobManager.getJob(id);
+		User user = Context.getAuthenticatedUser();
+		if (job == null || user == null || !user.getId().equals(job.getSubmitterId()))
+			return null;
+		return job;
+	}
+	
+	static String quote(String s) {
+		if (s == null)
+			return "null";
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20 || c == '<' || c == '>')
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
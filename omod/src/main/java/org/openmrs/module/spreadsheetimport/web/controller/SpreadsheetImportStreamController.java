@@ -0,0 +1,175 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.web.controller;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.ImportOptions;
+import org.openmrs.module.spreadsheetimport.ImportProgress;
+import org.openmrs.module.spreadsheetimport.ImportResult;
+import org.openmrs.module.spreadsheetimport.RowOutcome;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportUtil;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Imports a sheet sent as the body of the request, for clients which upload without the import
+ * form. CSV is imported while the body is still arriving; .xls and .xlsx bodies are received in
+ * full first, as they can only be read with random access. The response is a stream of JSON
+ * objects, one per line, flushed as the import goes on:
+ * 
+ * <pre>
+ * {"event":"progress","phase":"importing","rowsRead":1200,"rowsImported":1150,...}
+ * {"event":"error","row":1187,"message":"..."}
+ * {"event":"done","succeeded":false,"rowsImported":1185,"messages":[...]}
+ * </pre>
+ * 
+ * The import takes the same options as the import form, as request parameters. If the client goes
+ * away, the import is cancelled.
+ */
+@Controller
+public class SpreadsheetImportStreamController {
+	
+	/**
+	 * Logger for this class
+	 */
+	protected final Log log = LogFactory.getLog(getClass());
+	
+	/** How often a progress event is sent while the import runs */
+	public static final long PROGRESS_INTERVAL_MILLIS = 1000;
+	
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportStream.form", method = RequestMethod.POST)
+	public void importStream(@RequestParam(value = "id", required = true) Integer id,
+	                         @RequestParam(value = "format", required = false) String format,
+	                         @RequestParam(value = "sheet", required = false) String sheet, HttpServletRequest request,
+	                         HttpServletResponse response) throws Exception {
+		if (Context.getAuthenticatedUser() == null) {
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		SpreadsheetImportService service = Context.getService(SpreadsheetImportService.class);
+		SpreadsheetImportTemplate template = service.getTemplateById(id);
+		if (template == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (format == null)
+			format = getFormat(request.getContentType());
+		if (format == null) {
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "format must be csv, xls or xlsx");
+			return;
+		}
+		
+		ImportOptions options = SpreadsheetImportImportFormController.createOptions(request);
+		ImportResult result;
+		try {
+			result = service.importStream(template, request.getInputStream(), format, sheet == null ? "" : sheet,
+			    options);
+		}
+		catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, e.getMessage());
+			return;
+		}
+		
+		// no content length, so the events are sent in chunks as they are flushed
+		response.setContentType("application/x-ndjson");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter writer = response.getWriter();
+		int outcomes = 0;
+		try {
+			boolean done = false;
+			while (!done) {
+				done = result.await(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				List<RowOutcome> added = result.getOutcomes(outcomes);
+				outcomes += added.size();
+				for (RowOutcome outcome : added) {
+					if (RowOutcome.FAILED.equals(outcome.getStatus()))
+						writer.println("{\"event\":\"error\",\"row\":" + (outcome.getRowNum() + 1) + ",\"message\":"
+						        + SpreadsheetImportJobController.quote(outcome.getMessage()) + "}");
+				}
+				if (!done)
+					writer.println(progressEvent("progress", result.getProgress()).append('}'));
+				writer.flush();
+				if (writer.checkError())
+					throw new IOException("client went away");
+			}
+			
+			StringBuilder json = progressEvent("done", result.getProgress());
+			json.append(",\"succeeded\":").append(result.isSucceeded());
+			json.append(",\"messages\":[");
+			List<String> messages = result.getMessages();
+			for (int i = 0; i < messages.size(); i++) {
+				if (i != 0)
+					json.append(',');
+				json.append(SpreadsheetImportJobController.quote(messages.get(i)));
+			}
+			writer.println(json.append("]}"));
+			writer.flush();
+		}
+		catch (IOException e) {
+			log.info("Cancelling the import of a stream: " + e.getMessage());
+			result.cancel();
+		}
+		finally {
+			if (!result.isDone())
+				result.cancel();
+			// the import reads the request body, which the container recycles once this returns
+			result.await();
+			// the response carries the outcome of every row, the files of the import are not needed
+			result.discardFiles();
+		}
+	}
+	
+	private static StringBuilder progressEvent(String event, ImportProgress progress) {
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"event\":").append(SpreadsheetImportJobController.quote(event));
+		json.append(",\"phase\":").append(SpreadsheetImportJobController.quote(progress.getPhase()));
+		json.append(",\"rowsRead\":").append(progress.getRowsRead());
+		json.append(",\"rowsImported\":").append(progress.getRowsImported());
+		json.append(",\"rowsSkipped\":").append(progress.getRowsSkipped());
+		json.append(",\"rowsRejected\":").append(progress.getRowsRejected());
+		json.append(",\"rowsPerSecond\":").append(Math.round(progress.getRowsPerSecond()));
+		return json;
+	}
+	
+	/**
+	 * @return the format of a request body of the given content type, or null if unknown
+	 */
+	private static String getFormat(String contentType) {
+		if (contentType == null)
+			return null;
+		contentType = contentType.toLowerCase();
+		if (contentType.startsWith("text/csv") || contentType.startsWith("text/plain"))
+			return SpreadsheetImportUtil.FORMAT_CSV;
+		if (contentType.startsWith("application/vnd.ms-excel"))
+			return SpreadsheetImportUtil.FORMAT_XLS;
+		if (contentType.startsWith("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"))
+			return SpreadsheetImportUtil.FORMAT_XLSX;
+		return null;
+	}
+}
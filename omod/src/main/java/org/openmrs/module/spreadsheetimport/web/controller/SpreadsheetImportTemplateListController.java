@@ -9,6 +9,7 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.ImportRun;
 import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
 import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
 import org.springframework.stereotype.Controller;
@@ -29,6 +30,9 @@ public class SpreadsheetImportTemplateListController<E> {
 	 */
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/** Number of import runs shown below the templates */
+	static final int RECENT_RUNS = 20;
+	
 	public SpreadsheetImportTemplateListController() {
 	}
 	
@@ -37,6 +41,11 @@ public class SpreadsheetImportTemplateListController<E> {
 		return Context.getService(SpreadsheetImportService.class).getAllTemplates();
 	}
 	
+	@ModelAttribute("runs")
+	List<ImportRun> populateRuns() {
+		return Context.getService(SpreadsheetImportService.class).getImportRuns(RECENT_RUNS);
+	}
+	
 	@RequestMapping(method = RequestMethod.GET)
 	public String listTemplates() {
 		return "/module/spreadsheetimport/spreadsheetimportTemplateList";
@@ -0,0 +1,193 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.web.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.spreadsheetimport.ImportJob;
+import org.openmrs.module.spreadsheetimport.ImportJobManager;
+import org.openmrs.module.spreadsheetimport.ImportOptions;
+import org.openmrs.module.spreadsheetimport.ImportUpload;
+import org.openmrs.module.spreadsheetimport.SpreadsheetImportTemplate;
+import org.openmrs.module.spreadsheetimport.service.SpreadsheetImportService;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Resumable uploads, see {@link ImportUpload}. A client starts an upload with a POST declaring
+ * the length and checksum of the file, PUTs the chunks as request bodies with their offsets, and
+ * after a failed chunk asks for the offset reached with a GET. When all bytes are in, a POST to
+ * spreadsheetimportUploadImport.form verifies the checksum and submits an import job of the file,
+ * with the same parameters as the import form; its progress is polled like that of any other job.
+ * Every response is the state of the upload as JSON. Only the user who started an upload can see
+ * it.
+ */
+@Controller
+public class SpreadsheetImportUploadController {
+	
+	/**
+	 * Logger for this class
+	 */
+	protected final Log log = LogFactory.getLog(getClass());
+	
+	/**
+	 * Start an upload
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportUpload.form", method = RequestMethod.POST)
+	public void create(@RequestParam(value = "name", required = false) String name,
+	                   @RequestParam(value = "length", required = true) long length,
+	                   @RequestParam(value = "checksum", required = true) String checksum, HttpServletResponse response)
+	                                                                                                                    throws IOException {
+		User user = Context.getAuthenticatedUser();
+		if (user == null) {
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+		ImportUpload upload;
+		try {
+			upload = ImportUpload.create(name, length, checksum, user.getId());
+		}
+		catch (IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_CREATED);
+		writeState(upload, null, response);
+	}
+	
+	/**
+	 * The offset reached, to resume an upload
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportUpload.form", method = RequestMethod.GET)
+	public void getState(@RequestParam(value = "id", required = true) String id, HttpServletResponse response)
+	                                                                                                         throws IOException {
+		ImportUpload upload = getUpload(id);
+		if (upload == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		writeState(upload, null, response);
+	}
+	
+	/**
+	 * Append the request body at the given offset. If the offset is not the one reached, nothing
+	 * is written and the response is 409 with the offset reached.
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportUpload.form", method = RequestMethod.PUT)
+	public void append(@RequestParam(value = "id", required = true) String id,
+	                   @RequestParam(value = "offset", required = true) long offset, HttpServletRequest request,
+	                   HttpServletResponse response) throws IOException {
+		ImportUpload upload = getUpload(id);
+		if (upload == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		long reached;
+		try {
+			reached = upload.append(offset, request.getInputStream());
+		}
+		catch (IOException e) {
+			// the bytes received are kept, the client resumes from the offset reached
+			log.info("Chunk of upload " + id + " broke off: " + e.getMessage());
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			writeState(upload, e.getMessage(), response);
+			return;
+		}
+		if (reached < 0) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			writeState(upload, "offset must be the offset reached, or another chunk is being written", response);
+			return;
+		}
+		writeState(upload, null, response);
+	}
+	
+	/**
+	 * Verify a complete upload and submit an import job of it
+	 */
+	@RequestMapping(value = "/module/spreadsheetimport/spreadsheetimportUploadImport.form", method = RequestMethod.POST)
+	public void submit(@RequestParam(value = "upload", required = true) String uploadId,
+	                   @RequestParam(value = "id", required = true) Integer templateId,
+	                   @RequestParam(value = "sheet", required = false) String sheet,
+	                   @RequestParam(value = "lane", required = false) String lane, HttpServletRequest request,
+	                   HttpServletResponse response) throws Exception {
+		ImportUpload upload = getUpload(uploadId);
+		SpreadsheetImportTemplate template = Context.getService(SpreadsheetImportService.class).getTemplateById(templateId);
+		if (upload == null || template == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		ImportOptions options = SpreadsheetImportImportFormController.createOptions(request);
+		String invalid = options.validate();
+		if (invalid == null)
+			invalid = upload.verify();
+		if (invalid != null) {
+			response.setStatus(upload.isComplete() ? HttpServletResponse.SC_BAD_REQUEST : HttpServletResponse.SC_CONFLICT);
+			writeState(upload, invalid, response);
+			return;
+		}
+		
+		File spoolFile = upload.claim();
+		boolean offPeak = (request.getParameter("offPeak") != null);
+		ImportJob job = ImportJobManager.submit(template, spoolFile, sheet == null ? "" : sheet, options, lane, offPeak);
+		if (job == null) {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+			    "too many imports are waiting, please upload again later");
+			return;
+		}
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		PrintWriter writer = response.getWriter();
+		writer.write("{\"job\":" + SpreadsheetImportJobController.quote(job.getId()) + "}");
+		writer.flush();
+	}
+	
+	private ImportUpload getUpload(String id) {
+		ImportUpload upload = ImportUpload.get(id);
+		User user = Context.getAuthenticatedUser();
+		if (upload == null || user == null || !user.getId().equals(upload.getOwnerId()))
+			return null;
+		return upload;
+	}
+	
+	private static void writeState(ImportUpload upload, String error, HttpServletResponse response) throws IOException {
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"id\":").append(SpreadsheetImportJobController.quote(upload.getId()));
+		json.append(",\"name\":").append(SpreadsheetImportJobController.quote(upload.getName()));
+		json.append(",\"length\":").append(upload.getLength());
+		json.append(",\"offset\":").append(upload.getOffset());
+		json.append(",\"complete\":").append(upload.isComplete());
+		if (error != null)
+			json.append(",\"error\":").append(SpreadsheetImportJobController.quote(error));
+		json.append('}');
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter writer = response.getWriter();
+		writer.write(json.toString());
+		writer.flush();
+	}
+}
@@ -60,6 +60,7 @@
 							<th>Name</th>
 							<th>Data</th>
 							<th>Disallow<br/>Duplicate<br/>Value</th>
+							<th>Row<br/>Key</th>
 							<th>Dataset Index<br/>(Optional)</th>							
 							<th>Delete?</th>
 						</tr>
@@ -71,6 +72,7 @@
 									<formsim:options items="${tableColumnMap}"/>
 								</formsim:select></td>
 								<td><formsim:checkbox path="columns[${status.index}].disallowDuplicateValue"/></td>
+								<td><formsim:checkbox path="columns[${status.index}].rowKey"/></td>
 								<td><formsim:select path="columns[${status.index}].datasetIdx">
 									<formsim:option value="" label="Unique Import into Table"/>
 									<%
@@ -26,10 +26,178 @@
 	<b>${template.name}</b><br />
 	Spreadsheet to upload: <input type="file" name="file" /> <br/>
 	Sheet: <input type="text" name="sheet" value="Sheet1"/> <br/>
+	Rows: <input type="text" name="firstRow" size="6"/> to <input type="text" name="lastRow" size="6"/> (leave empty to import all rows) <br/>
+	Shard: <input type="text" name="shard" size="3"/> of <input type="text" name="shardCount" size="3"/> (rows of one patient are always in the same shard) <br/>
+	<input type="checkbox" name="validateFirst" checked="checked"/> Validate all rows before importing <br/>
+	<input type="checkbox" name="continueOnError"/> Continue on errors: import the other rows and collect failed rows in a reject file <br/>
+	<input type="checkbox" name="dryRun"/> Dry run: check the rows and report what would be created, without writing anything <br/>
+	<input type="checkbox" name="keyManifest"/> Write a manifest of the ids generated for every row <br/>
+	<input type="checkbox" name="skipImportedRows" checked="checked"/> Skip rows imported before with this template <br/>
+	<input type="checkbox" name="deltaImport"/> Delta import: only import rows whose row key is new or whose content changed <br/>
+	Parallel workers: <input type="text" name="workers" value="1" size="3"/> <br/>
+	Lane:
+	<select name="lane">
+		<c:forEach var="lane" items="${lanes}">
+			<option value="${lane}">${lane}</option>
+		</c:forEach>
+	</select>
+	<input type="checkbox" name="offPeak"/> Wait for off-peak hours <br/>
+	Throttle: at most <input type="text" name="rowsPerSecond" value="0" size="5"/> rows/s (0 for no limit),
+	<input type="text" name="dbTimeShare" value="100" size="3"/> % of the time in the database,
+	back off above <input type="text" name="latencyThresholdMillis" value="0" size="5"/> ms per row (0 for no backoff) <br/>
 <!-- BEGIN: FOR TESTING ONLY -->
 	<input type="checkbox" name="rollbackTransaction"/> Rollback transaction <br/>
 <!-- END: FOR TESTING ONLY -->
 	<input type="submit" value="Upload"/>
+	<input type="submit" name="preview" value="Preview"/> the first <input type="text" name="previewRows" value="20" size="4"/> rows
 </form>
 
+<c:if test="${not empty preview}">
+<br/>
+<div id="importPreview">
+	<b>Preview of ${template.name}</b>: ${fn:length(preview.rows)} rows, ${preview.errorCount} with errors, read in ${preview.millis} ms<br/>
+	<ul>
+		<c:forEach var="message" items="${preview.messages}">
+			<li><c:out value="${message}"/></li>
+		</c:forEach>
+	</ul>
+	<table border="1" cellpadding="2" cellspacing="0">
+		<tr>
+			<th>Row</th>
+			<c:forEach var="columnName" items="${preview.columnNames}">
+				<th><c:out value="${columnName}"/></th>
+			</c:forEach>
+			<th>Error</th>
+		</tr>
+		<c:forEach var="row" items="${preview.rows}">
+			<tr<c:if test="${not empty row.error}"> class="error"</c:if>>
+				<td>${row.rowNum}</td>
+				<c:forEach var="value" items="${row.values}">
+					<td><c:out value="${value}"/></td>
+				</c:forEach>
+				<td><c:out value="${row.error}"/></td>
+			</tr>
+		</c:forEach>
+	</table>
+</div>
+</c:if>
+
+<c:if test="${not empty job}">
+<br/>
+<div id="importJob">
+	<b>Import of ${job.templateName}</b>: <span id="jobState">${job.state}</span><br/>
+	Rows read: <span id="rowsRead">0</span>,
+	validated: <span id="rowsValidated">0</span>,
+	imported: <span id="rowsImported">0</span>,
+	skipped: <span id="rowsSkipped">0</span>,
+	rejected: <span id="rowsRejected">0</span>
+	<span id="totalRows"></span><br/>
+	<span id="throughput"></span><br/>
+	<span id="jobControls">
+		Throttle: at most <input type="text" id="limitRowsPerSecond" size="5"/> rows/s,
+		<input type="text" id="dbTimeShare" size="3"/> % of the time in the database,
+		back off above <input type="text" id="latencyThresholdMillis" size="5"/> ms per row
+		<input type="button" value="Apply" onclick="throttleImportJob()"/>
+		<span id="latency"></span>
+		<input id="cancelButton" type="button" value="Cancel import" onclick="cancelImportJob()"/>
+	</span>
+	<ul id="jobMessages"></ul>
+	<span id="jobLinks" style="display: none">
+		<a id="resultLink" href="spreadsheetimportJobResult.form?id=${job.id}" style="display: none">Download imported rows with their generated keys</a>
+		<a id="rejectsLink" href="spreadsheetimportJobRejects.form?id=${job.id}" style="display: none">Download rejected rows</a>
+		<a id="keysLink" href="spreadsheetimportJobKeys.form?id=${job.id}" style="display: none">Download generated ids</a>
+		<a href="spreadsheetimportJobMessages.form?id=${job.id}">Download messages</a>
+		<input id="resumeButton" type="button" value="Resume" onclick="resumeImportJob()" style="display: none"/>
+	</span>
+</div>
+<script type="text/javascript">
+	var limitsShown = false;
+	function pollImportJob() {
+		var request = new XMLHttpRequest();
+		request.open("GET", "spreadsheetimportJob.form?id=${job.id}", true);
+		request.onreadystatechange = function() {
+			if (request.readyState != 4)
+				return;
+			if (request.status != 200) {
+				document.getElementById("jobState").innerHTML = "unknown";
+				return;
+			}
+			var job = window.JSON ? JSON.parse(request.responseText) : eval("(" + request.responseText + ")");
+			document.getElementById("jobState").innerHTML = job.state + (job.state == "running" ? " (" + job.phase + ")" : "")
+			        + (job.state == "queued" ? " in lane " + job.lane + (job.offPeak ? " until off-peak hours" : "") : "");
+			document.getElementById("rowsRead").innerHTML = job.rowsRead;
+			document.getElementById("rowsValidated").innerHTML = job.rowsValidated;
+			document.getElementById("rowsImported").innerHTML = job.rowsImported;
+			document.getElementById("rowsSkipped").innerHTML = job.rowsSkipped;
+			document.getElementById("rowsRejected").innerHTML = job.rowsRejected;
+			document.getElementById("totalRows").innerHTML = job.totalRows >= 0 ? "of about " + job.totalRows : "";
+			document.getElementById("throughput").innerHTML = job.state == "running" ? job.rowsPerSecond + " rows/s"
+			        + (job.etaSeconds >= 0 ? ", about " + job.etaSeconds + " s remaining" : "") : "";
+			if (!limitsShown) {
+				document.getElementById("limitRowsPerSecond").value = job.limitRowsPerSecond;
+				document.getElementById("dbTimeShare").value = job.dbTimeShare;
+				document.getElementById("latencyThresholdMillis").value = job.latencyThresholdMillis;
+				limitsShown = true;
+			}
+			document.getElementById("latency").innerHTML = job.state == "running" ? "average " + job.averageLatencyMillis
+			        + " ms per row" + (job.backoffMillis > 0 ? ", backing off " + job.backoffMillis + " ms" : "") : "";
+			document.getElementById("cancelButton").disabled = job.cancelled;
+			var list = document.getElementById("jobMessages");
+			while (list.firstChild)
+				list.removeChild(list.firstChild);
+			for (var i = 0; i < job.messages.length; i++) {
+				var item = document.createElement("li");
+				item.appendChild(document.createTextNode(job.messages[i]));
+				list.appendChild(item);
+			}
+			var finished = job.state == "succeeded" || job.state == "failed" || job.state == "cancelled";
+			document.getElementById("jobControls").style.display = finished ? "none" : "";
+			if (finished) {
+				document.getElementById("jobLinks").style.display = "";
+				if (job.hasResult)
+					document.getElementById("resultLink").style.display = "";
+				if (job.hasRejects)
+					document.getElementById("rejectsLink").style.display = "";
+				if (job.hasKeyManifest)
+					document.getElementById("keysLink").style.display = "";
+				document.getElementById("resumeButton").style.display = job.state != "succeeded" ? "" : "none";
+			} else {
+				setTimeout(pollImportJob, job.state == "queued" ? 10000 : 1000);
+			}
+		};
+		request.send(null);
+	}
+	function resumeImportJob() {
+		var request = new XMLHttpRequest();
+		request.open("POST", "spreadsheetimportJobResume.form?id=${job.id}", true);
+		request.onreadystatechange = function() {
+			if (request.readyState == 4) {
+				document.getElementById("jobLinks").style.display = "none";
+				pollImportJob();
+			}
+		};
+		request.send(null);
+	}
+	function cancelImportJob() {
+		var request = new XMLHttpRequest();
+		request.open("POST", "spreadsheetimportJobCancel.form?id=${job.id}", true);
+		document.getElementById("cancelButton").disabled = true;
+		request.send(null);
+	}
+	function throttleImportJob() {
+		var request = new XMLHttpRequest();
+		request.open("POST", "spreadsheetimportJobThrottle.form?id=${job.id}"
+		        + "&rowsPerSecond=" + encodeURIComponent(document.getElementById("limitRowsPerSecond").value)
+		        + "&dbTimeShare=" + encodeURIComponent(document.getElementById("dbTimeShare").value)
+		        + "&latencyThresholdMillis=" + encodeURIComponent(document.getElementById("latencyThresholdMillis").value), true);
+		request.onreadystatechange = function() {
+			if (request.readyState == 4 && request.status != 202)
+				alert("Cannot change the throttle: " + request.statusText);
+		};
+		request.send(null);
+	}
+	pollImportJob();
+</script>
+</c:if>
+
 <%@ include file="/WEB-INF/template/footer.jsp"%>
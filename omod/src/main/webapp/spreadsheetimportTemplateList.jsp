@@ -45,4 +45,48 @@
 	</form>
 </c:if>
 
+<c:if test="${fn:length(runs) > 0}">
+	<h3>Recent Imports</h3>
+	<table cellpadding="2">
+		<tr>
+			<th>Finished</th>
+			<th>Template</th>
+			<th>Outcome</th>
+			<th>Read</th>
+			<th>Imported</th>
+			<th>Skipped</th>
+			<th>Rejected</th>
+			<th>Failed</th>
+			<th>Rows/s</th>
+			<th>Read ms</th>
+			<th>Validate ms</th>
+			<th>Match ms</th>
+			<th>Insert ms</th>
+			<th>Commit ms</th>
+			<th>Inserted rows</th>
+			<th>File MD5</th>
+		</tr>
+		<c:forEach var="run" items="${runs}">
+			<tr>
+				<td><openmrs:formatDate date="${run.finished}" type="long"/></td>
+				<td><c:out value="${run.templateName}"/></td>
+				<td>${run.outcome}</td>
+				<td>${run.rowsRead}</td>
+				<td>${run.rowsImported}</td>
+				<td>${run.rowsSkipped}</td>
+				<td>${run.rowsRejected}</td>
+				<td>${run.rowsFailed}</td>
+				<td>${run.rowsPerSecond}</td>
+				<td>${run.readMillis}</td>
+				<td>${run.validateMillis}</td>
+				<td>${run.matchMillis}</td>
+				<td>${run.insertMillis}</td>
+				<td>${run.commitMillis}</td>
+				<td>${run.insertedRowsText}</td>
+				<td>${run.fileHash}</td>
+			</tr>
+		</c:forEach>
+	</table>
+</c:if>
+
 <%@ include file="/WEB-INF/template/footer.jsp" %>
\ No newline at end of file
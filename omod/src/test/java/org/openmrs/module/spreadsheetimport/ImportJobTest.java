@@ -0,0 +1,74 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Calendar;
+
+import junit.framework.TestCase;
+
+/**
+ * This test validates what is stored with a queued import job and when off-peak jobs may start
+ */
+public class ImportJobTest extends TestCase {
+
+	public void testOptionsSurviveStorage() {
+		ImportOptions options = new ImportOptions(true);
+		options.setFirstRow(10);
+		options.setShardCount(4);
+		options.setShardIndex(3);
+		options.setWorkers(8);
+		options.setValidateFirst(true);
+		options.setCreatorId(42);
+
+		ImportOptions stored = ImportOptions.parse(options.format());
+		assertTrue(stored.isRollbackTransaction());
+		assertEquals(Integer.valueOf(10), stored.getFirstRow());
+		assertNull(stored.getLastRow());
+		assertEquals(4, stored.getShardCount());
+		assertEquals(3, stored.getShardIndex());
+		assertEquals(8, stored.getWorkers());
+		assertTrue(stored.isValidateFirst());
+		assertFalse(stored.isVirtualThreads());
+		assertEquals(Integer.valueOf(42), stored.getCreatorId());
+		assertEquals(options.format(), stored.format());
+	}
+
+	public void testMessagesSurviveStorage() {
+		ImportJob job = new ImportJob();
+		job.addMessage("Validation failed for 2 rows, nothing was imported");
+		job.addMessage("row 3: Validation failed: invalid gender");
+
+		ImportJob stored = new ImportJob();
+		stored.setMessageText(job.getMessageText());
+		assertEquals(job.getMessages(), stored.getMessages());
+
+		stored.setMessageText("");
+		assertTrue(stored.getMessages().isEmpty());
+	}
+
+	public void testOffPeakHoursAcrossMidnight() {
+		assertTrue(ImportJobManager.isOffPeak(at(23), "22-6"));
+		assertTrue(ImportJobManager.isOffPeak(at(2), "22-6"));
+		assertFalse(ImportJobManager.isOffPeak(at(6), "22-6"));
+		assertFalse(ImportJobManager.isOffPeak(at(14), "22-6"));
+		assertTrue(ImportJobManager.isOffPeak(at(13), "12-14"));
+		assertFalse(ImportJobManager.isOffPeak(at(14), "12-14"));
+	}
+
+	private Calendar at(int hour) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.HOUR_OF_DAY, hour);
+		return calendar;
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.openmrs.module.spreadsheetimport.reader.CellValues;
+import org.openmrs.module.spreadsheetimport.reader.IteratorRowReader;
+
+/**
+ * This test validates that a job resumed from its checkpoint continues after the rows it imported
+ * or rejected before
+ */
+public class ImportPipelineTest extends TestCase {
+
+	/**
+	 * Keeps the checkpoint in memory instead of the database
+	 */
+	private static class MemoryCheckpoint extends ImportCheckpoint {
+
+		/** Whether the next rejection fails, as if the connection was lost */
+		boolean failRejection;
+
+		MemoryCheckpoint() {
+			super("job", 1);
+		}
+
+		public void record(Connection conn, int writer, int rowNum, String encounterId) {
+			lastRows[writer] = Math.max(lastRows[writer], rowNum);
+		}
+
+		public void recordRejected(Connection conn, int writer, int rowNum) throws SQLException {
+			if (failRejection) {
+				failRejection = false;
+				throw new SQLException("Connection lost");
+			}
+			lastRows[writer] = Math.max(lastRows[writer], rowNum);
+		}
+	}
+
+	private File rejectFile;
+
+	private List<String> imported = new ArrayList<String>();
+
+	protected void setUp() throws Exception {
+		rejectFile = File.createTempFile("sim", ".rejects.csv");
+		rejectFile.delete();
+	}
+
+	protected void tearDown() {
+		rejectFile.delete();
+	}
+
+	private ImportPlan createPlan() {
+		SpreadsheetImportTemplate template = new SpreadsheetImportTemplate();
+		template.getColumns().add(TemplateFixtures.createColumn(1, "Given Name", "person_name.given_name", 0));
+		return new ImportPlan(template, Arrays.asList("Given Name"));
+	}
+
+	/**
+	 * Import the names with one writer, continuing on errors; "Bad" names fail, and the import
+	 * stops at "Stop" as if the server went down
+	 *
+	 * @return the names imported by this run
+	 */
+	private List<String> importNames(ImportPlan plan, ImportCheckpoint checkpoint, boolean resumed, String... names)
+	    throws Exception {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (String name : names) {
+			rows.add(new Object[] { name });
+		}
+		ImportOptions options = new ImportOptions();
+		options.setContinueOnError(true);
+		options.setCreatorId(1);
+
+		imported.clear();
+		ImportPipeline pipeline = new ImportPipeline(plan, new IteratorRowReader(plan.getColumnNames(), rows.iterator()),
+		        options) {
+
+			protected Connection openConnection() {
+				return null;
+			}
+
+			protected void validateRow(Connection conn, RowBuffer row) {
+			}
+
+			protected String importRow(Connection conn, RowBuffer row) throws Exception {
+				String name = CellValues.unquote(row.get(0));
+				if (name.equals("Bad"))
+					throw new SpreadsheetImportTemplateValidationException("invalid name");
+				if (name.equals("Stop"))
+					throw new SpreadsheetImportCancelledException();
+				checkpoint.record(conn, 0, row.getRowNum(), null);
+				imported.add(name);
+				return null;
+			}
+		};
+		pipeline.setCheckpoint(checkpoint);
+		RejectFileWriter rejectWriter = new RejectFileWriter(rejectFile, plan.getColumnNames(), plan.getNeededColumns(),
+		        resumed);
+		pipeline.setRejectWriter(rejectWriter);
+		try {
+			pipeline.run();
+		}
+		finally {
+			rejectWriter.close();
+		}
+		return imported;
+	}
+
+	private int countLines(File file) throws Exception {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			int lines = 0;
+			while (in.readLine() != null) {
+				lines++;
+			}
+			return lines;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A job stopped after rejecting its last rows neither imports nor rejects them again
+	 */
+	public void testResumeAfterRejectDoesNotRejectAgain() throws Exception {
+		ImportPlan plan = createPlan();
+		ImportCheckpoint checkpoint = new MemoryCheckpoint();
+
+		assertEquals(Arrays.asList("Misha", "Olga"), importNames(plan, checkpoint, false, "Misha", "Olga", "Bad"));
+		assertEquals(4, checkpoint.getResumeRow());
+		assertEquals(2, countLines(rejectFile));
+
+		assertEquals(Arrays.asList("Petr"), importNames(plan, checkpoint, true, "Misha", "Olga", "Bad", "Petr"));
+		assertEquals(2, countLines(rejectFile));
+	}
+
+	/**
+	 * A rejected row stays rejected when a later row of the same writer was committed before the
+	 * job stopped
+	 */
+	public void testResumeAfterLaterRowCommitted() throws Exception {
+		ImportPlan plan = createPlan();
+		ImportCheckpoint checkpoint = new MemoryCheckpoint();
+
+		try {
+			importNames(plan, checkpoint, false, "Misha", "Bad", "Olga", "Stop");
+			fail("the import should stop");
+		}
+		catch (SpreadsheetImportCancelledException e) {}
+		assertEquals(Arrays.asList("Misha", "Olga"), imported);
+		assertEquals(4, checkpoint.getResumeRow());
+		assertEquals(2, countLines(rejectFile));
+
+		assertEquals(Arrays.asList("Petr"), importNames(plan, checkpoint, true, "Misha", "Bad", "Olga", "Petr"));
+		assertEquals(2, countLines(rejectFile));
+	}
+
+	/**
+	 * A row rejected again after its rejection could not be recorded is in the reject file once
+	 */
+	public void testRejectWrittenTwiceIsKeptOnce() throws Exception {
+		ImportPlan plan = createPlan();
+		MemoryCheckpoint checkpoint = new MemoryCheckpoint();
+		checkpoint.failRejection = true;
+
+		try {
+			importNames(plan, checkpoint, false, "Misha", "Bad", "Olga");
+			fail("the import should stop");
+		}
+		catch (SQLException e) {}
+		assertEquals(Arrays.asList("Misha"), imported);
+		assertEquals(2, countLines(rejectFile));
+
+		assertEquals(Arrays.asList("Olga"), importNames(plan, checkpoint, true, "Misha", "Bad", "Olga"));
+		assertEquals(2, countLines(rejectFile));
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+/**
+ * This test validates the column projection computed by ImportPlan
+ */
+public class ImportPlanTest extends TestCase {
+
+	private SpreadsheetImportTemplate createTemplate() {
+		SpreadsheetImportTemplate template = new SpreadsheetImportTemplate();
+		template.getColumns().add(TemplateFixtures.createColumn(1, "Given Name", "person_name.given_name", 0));
+		template.getColumns().add(TemplateFixtures.createColumn(2, "Family Name", "person_name.family_name", 1));
+		template.getColumns().add(TemplateFixtures.createColumn(3, "Encounter", "encounter.encounter_id", 2));
+		return template;
+	}
+
+	/**
+	 * Only the ordinals of template columns should be decoded
+	 */
+	public void testNeededColumnsSkipExtraColumns() {
+		ImportPlan plan = new ImportPlan(createTemplate(), Arrays.asList("Extra 1", "Family Name", "Extra 2",
+		    "Given Name", "Encounter", "Extra 3"));
+
+		BitSet expected = new BitSet();
+		expected.set(1);
+		expected.set(3);
+		expected.set(4);
+		assertEquals(expected, plan.getNeededColumns());
+		assertEquals(3, plan.getColumnNamesOnlyInSheet().size());
+		assertTrue(plan.getColumnNamesOnlyInTemplate().isEmpty());
+		assertEquals(1, plan.getEncounterOrdinals().length);
+		assertEquals(4, plan.getEncounterOrdinals()[0]);
+	}
+
+	/**
+	 * Missing cells count as data, blank cells do not
+	 */
+	public void testBindDistinguishesMissingAndBlankCells() {
+		ImportPlan plan = new ImportPlan(createTemplate(), Arrays.asList("Given Name", "Family Name", "Encounter"));
+		RowBuffer buffer = plan.createRowBuffer();
+
+		buffer.reset(1);
+		buffer.set(0, RowBuffer.BLANK);
+		buffer.set(1, RowBuffer.BLANK);
+		buffer.set(2, RowBuffer.BLANK);
+		assertFalse(plan.bind(buffer));
+
+		buffer.reset(2);
+		buffer.set(0, "'Misha'");
+		buffer.set(1, RowBuffer.BLANK);
+		buffer.set(2, RowBuffer.BLANK);
+		assertTrue(plan.bind(buffer));
+	}
+
+	/**
+	 * All rows of one patient go to the same shard, whatever their row number
+	 */
+	public void testShardFollowsPatientIdentifier() {
+		SpreadsheetImportTemplate template = createTemplate();
+		template.getColumns().add(TemplateFixtures.createColumn(4, "Identifier", "patient_identifier.identifier", 3));
+		ImportPlan plan = new ImportPlan(template, Arrays.asList("Given Name", "Family Name", "Encounter", "Identifier"));
+		assertEquals(3, plan.getPatientIdentifierOrdinal());
+		RowBuffer buffer = plan.createRowBuffer();
+
+		buffer.reset(1);
+		buffer.set(3, "'100-8'");
+		int shard = plan.getShard(buffer, 4);
+		assertTrue(shard >= 0 && shard < 4);
+		for (int rowNum = 2; rowNum < 50; rowNum++) {
+			buffer.reset(rowNum);
+			buffer.set(3, "'100-8'");
+			assertEquals(shard, plan.getShard(buffer, 4));
+		}
+		assertEquals(0, plan.getShard(buffer, 1));
+	}
+
+	/**
+	 * Observations depend on the encounter but not on each other, so only they are batched
+	 */
+	public void testObservationsAreBatched() {
+		SpreadsheetImportTemplate template = new SpreadsheetImportTemplate();
+		SpreadsheetImportTemplateColumn encounter = TemplateFixtures.createColumn(3, "Encounter",
+		    "encounter.encounter_id", 2);
+		template.getColumns().add(encounter);
+		for (int i = 0; i < 2; i++) {
+			SpreadsheetImportTemplateColumn obs = TemplateFixtures.createColumn(10 + i, "Obs " + i, "obs.value_numeric",
+			    3 + i);
+			obs.setDatasetIdx(i);
+			SpreadsheetImportTemplateColumnColumn cc = new SpreadsheetImportTemplateColumnColumn();
+			cc.setColumnImportFirst(encounter);
+			cc.setColumnImportNext(obs);
+			cc.setColumnName("encounter_id");
+			obs.getColumnColumnsImportBefore().add(cc);
+			template.getColumns().add(obs);
+		}
+		ImportPlan plan = new ImportPlan(template, Arrays.asList("Encounter", "Obs 0", "Obs 1"));
+
+		UniqueImport obs0 = new UniqueImport("obs", 0);
+		UniqueImport obs1 = new UniqueImport("obs", 1);
+		assertEquals(Collections.singleton(new UniqueImport("encounter", null)), plan.getDependencies().get(obs0));
+		assertTrue(plan.getBatchedImports().contains(obs0));
+		assertTrue(plan.getBatchedImports().contains(obs1));
+		assertFalse(plan.getBatchedImports().contains(new UniqueImport("encounter", null)));
+	}
+
+	/**
+	 * Row key columns are found in sheet order, and a changed row reuses its encounter
+	 */
+	public void testRowKeyAndReusedEncounter() {
+		SpreadsheetImportTemplate template = createTemplate();
+		for (SpreadsheetImportTemplateColumn column : template.getColumns()) {
+			column.setRowKey(!"Encounter".equals(column.getName()));
+		}
+		ImportPlan plan = new ImportPlan(template, Arrays.asList("Family Name", "Encounter", "Given Name"));
+		assertTrue(Arrays.equals(new int[] { 0, 2 }, plan.getRowKeyOrdinals()));
+
+		RowBuffer buffer = plan.createRowBuffer();
+		buffer.reset(1);
+		buffer.set(0, "'Zhang'");
+		buffer.set(1, RowBuffer.BLANK);
+		buffer.set(2, "'Misha'");
+		plan.bind(buffer);
+		plan.reuseEncounter(buffer, "42");
+		for (SpreadsheetImportTemplateColumn column : buffer.getColumns()) {
+			if ("encounter".equals(column.getTableName()))
+				assertEquals("42", column.getValue());
+			else
+				assertFalse("42".equals(column.getValue()));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import junit.framework.TestCase;
+
+/**
+ * This test validates the pauses of the import throttle and what ends them early
+ */
+public class ImportThrottleTest extends TestCase {
+
+	private static final long MILLIS = 1000000L;
+
+	public void testRowsAreSpacedByRate() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+		throttle.setRowsPerSecond(20);
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 5; i++) {
+			throttle.beforeRow();
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		// the first row starts right away, the others 50 ms apart
+		assertTrue("took " + elapsed + " ms", elapsed >= 190);
+		assertTrue("took " + elapsed + " ms", elapsed < 1000);
+	}
+
+	public void testNoLimitDoesNotPause() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++) {
+			throttle.beforeRow();
+			throttle.afterRow(100 * MILLIS);
+		}
+		assertTrue(System.currentTimeMillis() - start < 500);
+		assertEquals(0, throttle.getBackoffMillis());
+	}
+
+	public void testPauseKeepsDatabaseTimeShare() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+		throttle.setDbTimeShare(25);
+
+		long start = System.currentTimeMillis();
+		throttle.afterRow(40 * MILLIS);
+		long elapsed = System.currentTimeMillis() - start;
+		// 40 ms in the database are 25 percent of 160 ms, so the writer pauses for 120 ms
+		assertTrue("took " + elapsed + " ms", elapsed >= 115);
+		assertTrue("took " + elapsed + " ms", elapsed < 1000);
+	}
+
+	public void testBackoffDoublesWhileSlowAndHalvesWhenFast() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+		throttle.setLatencyThresholdMillis(5);
+
+		throttle.afterRow(10 * MILLIS);
+		assertEquals(ImportThrottle.MIN_BACKOFF_MILLIS, throttle.getBackoffMillis());
+		throttle.afterRow(10 * MILLIS);
+		assertEquals(20, throttle.getBackoffMillis());
+		throttle.afterRow(10 * MILLIS);
+		assertEquals(40, throttle.getBackoffMillis());
+
+		throttle.setLatencyThresholdMillis(100);
+		throttle.afterRow(10 * MILLIS);
+		assertEquals(20, throttle.getBackoffMillis());
+		throttle.afterRow(10 * MILLIS);
+		assertEquals(10, throttle.getBackoffMillis());
+		throttle.afterRow(10 * MILLIS);
+		assertEquals(0, throttle.getBackoffMillis());
+	}
+
+	public void testBackoffIsCapped() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+		throttle.setLatencyThresholdMillis(5);
+		for (int i = 0; i < 3; i++) {
+			throttle.afterRow(10 * MILLIS);
+		}
+		// no more pauses, only the backoff is computed
+		throttle.release();
+		for (int i = 0; i < 20; i++) {
+			throttle.afterRow(10 * MILLIS);
+		}
+		assertEquals(ImportThrottle.MAX_BACKOFF_MILLIS, throttle.getBackoffMillis());
+
+		throttle.setLatencyThresholdMillis(0);
+		assertEquals(0, throttle.getBackoffMillis());
+	}
+
+	public void testReleaseEndsPause() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+		throttle.setDbTimeShare(1);
+		Thread writer = startRow(throttle);
+
+		throttle.release();
+		writer.join(2000);
+		assertFalse(writer.isAlive());
+
+		// and later pauses end right away
+		throttle.setRowsPerSecond(1);
+		long start = System.currentTimeMillis();
+		throttle.beforeRow();
+		throttle.beforeRow();
+		assertTrue(System.currentTimeMillis() - start < 500);
+	}
+
+	public void testLimitChangeEndsPause() throws Exception {
+		ImportThrottle throttle = new ImportThrottle();
+		throttle.setDbTimeShare(1);
+		Thread writer = startRow(throttle);
+
+		throttle.setDbTimeShare(100);
+		writer.join(2000);
+		assertFalse(writer.isAlive());
+	}
+
+	public void testCheckLimits() {
+		assertNull(ImportThrottle.checkLimits(0, 100, 0));
+		assertNotNull(ImportThrottle.checkLimits(-1, 100, 0));
+		assertNotNull(ImportThrottle.checkLimits(0, 0, 0));
+		assertNotNull(ImportThrottle.checkLimits(0, 101, 0));
+		assertNotNull(ImportThrottle.checkLimits(0, 100, -1));
+	}
+
+	/**
+	 * Start a writer whose row took a second in the database, so it pauses for 99 seconds at a
+	 * share of 1 percent, and wait until it pauses
+	 */
+	private Thread startRow(final ImportThrottle throttle) throws InterruptedException {
+		Thread writer = new Thread() {
+
+			public void run() {
+				try {
+					throttle.afterRow(1000 * MILLIS);
+				}
+				catch (InterruptedException e) {}
+			}
+		};
+		writer.start();
+		while (writer.getState() != Thread.State.TIMED_WAITING && writer.isAlive()) {
+			Thread.sleep(10);
+		}
+		return writer;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import junit.framework.TestCase;
+
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * This test validates the protocol of chunked uploads: chunks at the offset reached, the declared
+ * length and checksum, and claiming the file for an import
+ */
+public class ImportUploadTest extends TestCase {
+
+	private static final byte[] CONTENT = "Name,Gender\nMisha,M\nOlga,F\n".getBytes();
+
+	private ImportUpload upload;
+
+	private File spoolFile;
+
+	protected void setUp() throws Exception {
+		upload = ImportUpload.create("patients.csv", CONTENT.length, md5(CONTENT), 1);
+	}
+
+	protected void tearDown() throws Exception {
+		upload.delete();
+		if (spoolFile != null)
+			spoolFile.delete();
+	}
+
+	public void testChunksAreAppendedAtTheOffsetReached() throws Exception {
+		assertEquals(10, upload.append(0, chunk(0, 10)));
+		assertEquals(10, upload.getOffset());
+		assertFalse(upload.isComplete());
+		assertNotNull(upload.verify());
+
+		// a chunk sent again, or one skipping ahead, is refused and changes nothing
+		assertEquals(-1, upload.append(0, chunk(0, 10)));
+		assertEquals(-1, upload.append(20, chunk(20, CONTENT.length)));
+		assertEquals(10, upload.getOffset());
+
+		assertEquals(CONTENT.length, upload.append(10, chunk(10, CONTENT.length)));
+		assertTrue(upload.isComplete());
+		assertNull(upload.verify());
+	}
+
+	public void testChunkPastLengthIsCut() throws Exception {
+		byte[] tooLong = new byte[CONTENT.length + 5];
+		System.arraycopy(CONTENT, 0, tooLong, 0, CONTENT.length);
+		try {
+			upload.append(0, new ByteArrayInputStream(tooLong));
+			fail("a chunk past the declared length should fail");
+		}
+		catch (IOException e) {}
+		// the bytes up to the declared length are kept
+		assertEquals(CONTENT.length, upload.getOffset());
+		assertNull(upload.verify());
+	}
+
+	public void testChecksumMismatchDeletesUpload() throws Exception {
+		byte[] corrupt = CONTENT.clone();
+		corrupt[0] = 'n';
+		upload.append(0, new ByteArrayInputStream(corrupt));
+
+		assertNotNull(upload.verify());
+		assertFalse(upload.getPartFile().exists());
+		assertNull(ImportUpload.get(upload.getId()));
+	}
+
+	public void testUploadSurvivesRestart() throws Exception {
+		upload.append(0, chunk(0, 10));
+
+		ImportUpload stored = ImportUpload.get(upload.getId());
+		assertEquals("patients.csv", stored.getName());
+		assertEquals(CONTENT.length, stored.getLength());
+		assertEquals(Integer.valueOf(1), stored.getOwnerId());
+		assertEquals(10, stored.getOffset());
+		assertNull(ImportUpload.get("../" + upload.getId().substring(3)));
+	}
+
+	public void testClaimTakesTheFile() throws Exception {
+		upload.append(0, chunk(0, CONTENT.length));
+		assertNull(upload.verify());
+
+		spoolFile = upload.claim();
+		assertEquals(new String(CONTENT), new String(FileCopyUtils.copyToByteArray(spoolFile)));
+		assertFalse(upload.getPartFile().exists());
+		assertNull(ImportUpload.get(upload.getId()));
+	}
+
+	private InputStream chunk(int from, int to) {
+		return new ByteArrayInputStream(CONTENT, from, to - from);
+	}
+
+	private static String md5(byte[] content) throws Exception {
+		return RowLedger.toHex(MessageDigest.getInstance("MD5").digest(content));
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * This test validates the row fingerprints of RowLedger
+ */
+public class RowLedgerTest extends TestCase {
+
+	private ImportPlan createPlan(SpreadsheetImportTemplate template) {
+		template.getColumns().add(TemplateFixtures.createColumn(1, "Given Name", "person_name.given_name", 0));
+		template.getColumns().add(TemplateFixtures.createColumn(2, "Encounter", "encounter.encounter_id", 1));
+		return new ImportPlan(template, Arrays.asList("Given Name", "Encounter", "Extra"));
+	}
+
+	/**
+	 * A sheet returned with encounter IDs written back must match the rows it was imported from
+	 */
+	public void testFingerprintIgnoresEncounterColumn() {
+		ImportPlan plan = createPlan(new SpreadsheetImportTemplate());
+		RowLedger ledger = new RowLedger(1, plan);
+		RowBuffer row = plan.createRowBuffer();
+
+		row.reset(1);
+		row.set(0, "'Misha'");
+		row.set(1, RowBuffer.BLANK);
+		String before = ledger.fingerprint(row);
+
+		row.reset(1);
+		row.set(0, "'Misha '");
+		row.set(1, "42");
+		assertEquals(before, ledger.fingerprint(row));
+		assertEquals(32, before.length());
+	}
+
+	/**
+	 * The same row imported with another template is a different row
+	 */
+	public void testFingerprintDependsOnTemplate() {
+		ImportPlan plan = createPlan(new SpreadsheetImportTemplate());
+		RowBuffer row = plan.createRowBuffer();
+		row.reset(1);
+		row.set(0, "'Misha'");
+		row.set(1, RowBuffer.BLANK);
+
+		assertFalse(new RowLedger(1, plan).fingerprint(row).equals(new RowLedger(2, plan).fingerprint(row)));
+	}
+
+	/**
+	 * A row which failed does not make the equal rows after it skipped
+	 */
+	public void testFailedRowReleasesItsFingerprint() throws Exception {
+		ImportPlan plan = createPlan(new SpreadsheetImportTemplate());
+		RowLedger ledger = new RowLedger(1, plan);
+		RowBuffer[] rows = new RowBuffer[3];
+		for (int i = 0; i < rows.length; i++) {
+			rows[i] = plan.createRowBuffer();
+			rows[i].reset(i + 1);
+			rows[i].set(0, "'Misha'");
+			rows[i].set(1, RowBuffer.BLANK);
+			rows[i].setHasData(true);
+			rows[i].setFingerprint(ledger.fingerprint(rows[i]));
+		}
+
+		assertTrue(ledger.claim(rows[0]));
+		ledger.release(rows[0], false, null);
+
+		assertTrue(ledger.claim(rows[1]));
+		ledger.release(rows[1], true, "42");
+
+		assertFalse(ledger.claim(rows[2]));
+		assertTrue(rows[2].isSkipped());
+		assertEquals("42", rows[2].getEncounterId());
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport;
+
+/**
+ * Templates and columns for the tests, built in memory without the database
+ */
+public class TemplateFixtures {
+
+	private TemplateFixtures() {
+	}
+
+	public static SpreadsheetImportTemplateColumn createColumn(int id, String name, String tableDotColumn,
+	                                                           int importIdx) {
+		SpreadsheetImportTemplateColumn column = new SpreadsheetImportTemplateColumn();
+		column.setId(id);
+		column.setName(name);
+		column.setTableDotColumn(tableDotColumn);
+		column.setImportIdx(importIdx);
+		return column;
+	}
+}
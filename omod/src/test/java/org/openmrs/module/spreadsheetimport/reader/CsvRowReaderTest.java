@@ -0,0 +1,75 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import junit.framework.TestCase;
+
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+
+/**
+ * This test validates the parsing and cell conversion of CsvRowReader
+ */
+public class CsvRowReaderTest extends TestCase {
+
+	/**
+	 * Quoted fields may contain delimiters, doubled quotes and line breaks
+	 */
+	public void testQuotedFields() throws Exception {
+		CsvRowReader reader = new CsvRowReader(new StringReader("\uFEFFName,Note,Weight\r\n"
+		        + "Misha,\"says \"\"hi\"\", twice\",50.5\r\n" + "\"Anna\",\"two\nlines\",\n"));
+		assertEquals(Arrays.asList("Name", "Note", "Weight"), reader.readHeader());
+
+		RowBuffer row = new RowBuffer(3);
+		assertTrue(reader.nextRow(row));
+		assertEquals(1, row.getRowNum());
+		assertEquals("'Misha'", row.get(0));
+		assertEquals("'says \"hi\", twice'", row.get(1));
+		assertEquals(Double.valueOf(50.5), row.get(2));
+
+		assertTrue(reader.nextRow(row));
+		assertEquals(2, row.getRowNum());
+		assertEquals("'Anna'", row.get(0));
+		assertEquals("'two\nlines'", row.get(1));
+		assertEquals(RowBuffer.BLANK, row.get(2));
+
+		assertFalse(reader.nextRow(row));
+	}
+
+	/**
+	 * Only the projected columns of the rows from skipTo on are converted; identifiers with leading
+	 * zeros stay strings
+	 */
+	public void testProjectionAndSkip() throws Exception {
+		CsvRowReader reader = new CsvRowReader(new StringReader("Id,Name\n1,A\n007,B\n-3,C\n"));
+		reader.readHeader();
+		BitSet needed = new BitSet();
+		needed.set(0);
+		reader.setProjection(needed);
+		reader.skipTo(2);
+
+		RowBuffer row = new RowBuffer(2);
+		assertTrue(reader.nextRow(row));
+		assertEquals(2, row.getRowNum());
+		assertEquals("'007'", row.get(0));
+		assertNull(row.get(1));
+
+		assertTrue(reader.nextRow(row));
+		assertEquals(Double.valueOf(-3), row.get(0));
+		assertFalse(reader.nextRow(row));
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+package org.openmrs.module.spreadsheetimport.reader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.openmrs.module.spreadsheetimport.RowBuffer;
+
+/**
+ * This test validates the cell decoding of XlsxStreamingRowReader on a small workbook written
+ * part by part, so that it has what spreadsheet programs write but POI does not: rich text shared
+ * strings, custom date formats and rows and cells without a reference
+ */
+public class XlsxStreamingRowReaderTest extends TestCase {
+
+	private static final String NS = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+
+	private static final String REL_NS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+	private static final String SHEET = "<worksheet xmlns=\"" + NS + "\"><dimension ref=\"A1:C5\"/><sheetData>"
+	        // header of shared strings
+	        + "<row r=\"1\"><c r=\"A1\" t=\"s\"><v>0</v></c><c r=\"B1\" t=\"s\"><v>1</v></c>"
+	        + "<c r=\"C1\" t=\"s\"><v>2</v></c></row>"
+	        // a built-in date format
+	        + "<row r=\"2\"><c r=\"A2\" t=\"s\"><v>3</v></c><c r=\"B2\" s=\"1\"><v>36526</v></c>"
+	        + "<c r=\"C2\"><v>50.5</v></c></row>"
+	        // no references, and a custom date format
+	        + "<row><c t=\"s\"><v>4</v></c><c s=\"2\"><v>36527</v></c><c><v>60</v></c></row>"
+	        // after a missing row, with an inline string and a missing cell
+	        + "<row r=\"5\"><c r=\"A5\" t=\"inlineStr\"><is><t>Anna</t></is></c><c r=\"C5\"><v>70</v></c></row>"
+	        + "</sheetData></worksheet>";
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		file = File.createTempFile("reader", ".xlsx");
+		writeWorkbook(file);
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+	}
+
+	public void testCellsAreDecoded() throws Exception {
+		XlsxStreamingRowReader reader = new XlsxStreamingRowReader(file, "Patients");
+		try {
+			assertEquals(Arrays.asList("Name", "Birthdate", "Weight"), reader.readHeader());
+			assertEquals(4, reader.getLastRowNum());
+
+			RowBuffer row = new RowBuffer(3);
+			assertTrue(reader.nextRow(row));
+			assertEquals(1, row.getRowNum());
+			assertEquals("'Misha'", row.get(0));
+			assertEquals("'2000-01-01 00:00:00.0'", row.get(1));
+			assertEquals(Double.valueOf(50.5), row.get(2));
+
+			// numbered by their position, as are the cells
+			assertTrue(reader.nextRow(row));
+			assertEquals(2, row.getRowNum());
+			assertEquals("'Petr'", row.get(0));
+			assertEquals("'2000-01-02 00:00:00.0'", row.get(1));
+			assertEquals(Double.valueOf(60), row.get(2));
+
+			assertTrue(reader.nextRow(row));
+			assertEquals(4, row.getRowNum());
+			assertEquals("'Anna'", row.get(0));
+			assertNull(row.get(1));
+			assertEquals(Double.valueOf(70), row.get(2));
+
+			assertFalse(reader.nextRow(row));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Only the projected columns of the rows from skipTo on are decoded
+	 */
+	public void testProjectionAndSkip() throws Exception {
+		XlsxStreamingRowReader reader = new XlsxStreamingRowReader(file, "");
+		try {
+			reader.readHeader();
+			BitSet needed = new BitSet();
+			needed.set(2);
+			reader.setProjection(needed);
+			reader.skipTo(2);
+
+			RowBuffer row = new RowBuffer(3);
+			assertTrue(reader.nextRow(row));
+			assertEquals(2, row.getRowNum());
+			assertNull(row.get(0));
+			assertNull(row.get(1));
+			assertEquals(Double.valueOf(60), row.get(2));
+
+			assertTrue(reader.nextRow(row));
+			assertEquals(4, row.getRowNum());
+			assertNull(row.get(0));
+			assertFalse(reader.nextRow(row));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	public void testUnknownSheetHasNoRows() throws Exception {
+		XlsxStreamingRowReader reader = new XlsxStreamingRowReader(file, "Visits");
+		try {
+			assertNull(reader.readHeader());
+			assertFalse(reader.nextRow(new RowBuffer(3)));
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private static void writeWorkbook(File file) throws Exception {
+		ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+		try {
+			String ct = "application/vnd.openxmlformats-officedocument.spreadsheetml.";
+			write(zip, "[Content_Types].xml", "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+			        + "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+			        + "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+			        + "<Override PartName=\"/xl/workbook.xml\" ContentType=\"" + ct + "sheet.main+xml\"/>"
+			        + "<Override PartName=\"/xl/worksheets/sheet1.xml\" ContentType=\"" + ct + "worksheet+xml\"/>"
+			        + "<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"" + ct + "sharedStrings+xml\"/>"
+			        + "<Override PartName=\"/xl/styles.xml\" ContentType=\"" + ct + "styles+xml\"/></Types>");
+			write(zip, "_rels/.rels", "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+			        + "<Relationship Id=\"rId1\" Type=\"" + REL_NS + "/officeDocument\" Target=\"xl/workbook.xml\"/>"
+			        + "</Relationships>");
+			write(zip, "xl/workbook.xml", "<workbook xmlns=\"" + NS + "\" xmlns:r=\"" + REL_NS + "\">"
+			        + "<workbookPr/><sheets><sheet name=\"Patients\" sheetId=\"1\" r:id=\"rId1\"/></sheets></workbook>");
+			write(zip, "xl/_rels/workbook.xml.rels",
+			    "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+			            + "<Relationship Id=\"rId1\" Type=\"" + REL_NS + "/worksheet\" Target=\"worksheets/sheet1.xml\"/>"
+			            + "<Relationship Id=\"rId2\" Type=\"" + REL_NS + "/sharedStrings\" Target=\"sharedStrings.xml\"/>"
+			            + "<Relationship Id=\"rId3\" Type=\"" + REL_NS + "/styles\" Target=\"styles.xml\"/>"
+			            + "</Relationships>");
+			// the name of the second row is rich text with a phonetic reading, which is not part of it
+			write(zip, "xl/sharedStrings.xml", "<sst xmlns=\"" + NS + "\"><si><t>Name</t></si><si><t>Birthdate</t></si>"
+			        + "<si><t>Weight</t></si><si><t>Misha</t></si>"
+			        + "<si><r><t>Pe</t></r><r><t>tr</t></r><rPh sb=\"0\" eb=\"2\"><t>ぺ</t></rPh></si></sst>");
+			write(zip, "xl/styles.xml", "<styleSheet xmlns=\"" + NS + "\">"
+			        + "<numFmts count=\"1\"><numFmt numFmtId=\"164\" formatCode=\"dd/mm/yyyy\"/></numFmts>"
+			        + "<cellXfs count=\"3\"><xf numFmtId=\"0\"/><xf numFmtId=\"14\"/><xf numFmtId=\"164\"/></cellXfs>"
+			        + "</styleSheet>");
+			write(zip, "xl/worksheets/sheet1.xml", SHEET);
+		}
+		finally {
+			zip.close();
+		}
+	}
+
+	private static void write(ZipOutputStream zip, String name, String xml) throws Exception {
+		zip.putNextEntry(new ZipEntry(name));
+		zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" + xml).getBytes("UTF-8"));
+		zip.closeEntry();
+	}
+}